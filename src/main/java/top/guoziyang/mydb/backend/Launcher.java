@@ -7,6 +7,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -33,10 +34,23 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("pool", true, "-pool 32GB (off-heap buffer pool, with -open)");
+        options.addOption("compress", false, "-compress (with -create)");
+        options.addOption("pagesize", true, "-pagesize 8KB (with -create)");
+        options.addOption("nochecksum", false, "-nochecksum (with -create)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
-        // debug用 begin
+        if(cmd.hasOption("open")) {
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parsePool(cmd.getOptionValue("pool")));
+            return;
+        }
+        if(cmd.hasOption("create")) {
+            createDB(cmd.getOptionValue("create"), parsePageSize(cmd.getOptionValue("pagesize")), cmd.hasOption("compress"), !cmd.hasOption("nochecksum"));
+            return;
+        }
+
+        // debug用 begin：命令行没有给出 -open / -create 时从标准输入读取，其余选项仍然取自命令行
         Scanner scanner = new Scanner(System.in);
         System.out.println("请输入操作选项（open/create）:");
         String option = scanner.nextLine();
@@ -44,43 +58,50 @@ public class Launcher {
         if ("open".equalsIgnoreCase(option)) {
             System.out.println("请输入数据库路径:");
             String dbPath = scanner.nextLine();
-
-            String mem = "";
-            openDB(dbPath, parseMem(mem));
+            openDB(dbPath, parseMem(cmd.getOptionValue("mem")), parsePool(cmd.getOptionValue("pool")));
             return;
         }
         //debug用 end
 
-//        if(cmd.hasOption("open")) {
-//            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
-//            return;
-//        }
-//        if(cmd.hasOption("create")) {
-//            createDB(cmd.getOptionValue("create"));
-//            return;
-//        }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("Usage: launcher (-open|-create) DBPath");
     }
 
-    // 创建数据库文件
-    private static void createDB(String path) {
+    // 创建数据库文件，compress 为 true 时数据页压缩存放，checksum 为 true 时数据页带校验和，建库后都不能再改
+    private static void createDB(String path, int pageSize, boolean compress, boolean checksum) {
         TransactionManager tm = TransactionManager.create(path);    // 新建tm
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm); // 新建dm
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, pageSize, compress, checksum); // 新建dm
         VersionManager vm = new VersionManagerImpl(tm, dm);         // 新建vm
-        TableManager.create(path, vm, dm);                          // 新建tbm
+        TableManager tbm = TableManager.create(path, vm, dm);       // 新建tbm
+        tbm.close();
         tm.close();
         dm.close();
     }
 
-    // 开启数据库文件
-    private static void openDB(String path, long mem) {
+    // 开启数据库文件，poolMem 大于 0 时开启堆外缓冲池
+    private static void openDB(String path, long mem, long poolMem) {
         TransactionManager tm = TransactionManager.open(path);      // 打开tm
-        DataManager dm = DataManager.open(path, mem, tm);           // 打开dm
+        DataManager dm = DataManager.open(path, mem, tm, poolMem);  // 打开dm
         VersionManager vm = new VersionManagerImpl(tm, dm);         // 打开vm
         TableManager tbm = TableManager.open(path, vm, dm);         // 打开tbm
         new Server(port, tbm).start();                              // 打开sql服务器
     }
 
+    // 页面大小和内存大小写法相同，如 32KB，不指定时使用默认的 8KB
+    private static int parsePageSize(String sizeStr) {
+        if(sizeStr == null || "".equals(sizeStr)) {
+            return PageCache.PAGE_SIZE;
+        }
+        return (int) parseMem(sizeStr);
+    }
+
+    // 堆外缓冲池大小，不指定时不开启
+    private static long parsePool(String poolStr) {
+        if(poolStr == null || "".equals(poolStr)) {
+            return 0;
+        }
+        return parseMem(poolStr);
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -1,10 +1,13 @@
 package top.guoziyang.mydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.collection.LongIntMap;
+import top.guoziyang.mydb.backend.common.collection.LongObjectMap;
+import top.guoziyang.mydb.backend.common.collection.LongSet;
 import top.guoziyang.mydb.common.Error;
 
 /**
@@ -18,9 +21,9 @@ import top.guoziyang.mydb.common.Error;
  * getForCache(long key): 当资源不在缓存时的获取行为
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                 // key：缓存资源的标签（pgno或者UID），value：实际缓存的数据
-    private HashMap<Long, Integer> references;      // key：缓存资源的标签，value：资源的引用个数
-    private HashMap<Long, Boolean> getting;         // key：缓存资源的标签，value：是否有线程正在从数据源中获取该资源
+    private LongObjectMap<T> cache;                 // key：缓存资源的标签（pgno或者UID），value：实际缓存的数据
+    private LongIntMap references;                  // key：缓存资源的标签，value：资源的引用个数
+    private LongSet getting;                        // 正在有线程从数据源中获取的资源的标签
 
     private int maxResource;                        // 缓存的最大缓存资源数
     private int count = 0;                          // 缓存中元素的个数
@@ -28,9 +31,9 @@ public abstract class AbstractCache<T> {
 
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
+        cache = new LongObjectMap<>();
+        references = new LongIntMap();
+        getting = new LongSet();
         lock = new ReentrantLock();
     }
 
@@ -60,7 +63,7 @@ public abstract class AbstractCache<T> {
         while (true) {
             lock.lock();
             // 判断是否有线程在数据源中获取 key 资源
-            if (getting.containsKey(key)) {
+            if (getting.contains(key)) {
                 // key资源正在被某个线程在数据源中获取，所以肯定不在缓存中
                 lock.unlock();
                 // 等待 1s 后再重新循环判断
@@ -74,9 +77,9 @@ public abstract class AbstractCache<T> {
             }
 
             // key资源已经在缓存中，直接返回
-            if (cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);   // 对该资源的引用计数加一
+            T obj = cache.get(key);
+            if (obj != null) {
+                references.addTo(key, 1);       // 对该资源的引用计数加一
                 lock.unlock();
                 return obj;
             }
@@ -89,7 +92,7 @@ public abstract class AbstractCache<T> {
             }
             // 缓存数+1
             count++;
-            getting.put(key, true);     // 在getting中注册以下key，表示key资源此时有某个线程正在从数据源中获取
+            getting.add(key);           // 在getting中注册以下key，表示key资源此时有某个线程正在从数据源中获取
             lock.unlock();
             // 跳出循环，去完成从数据源获取 key 资源的操作
             break;
@@ -142,19 +145,33 @@ public abstract class AbstractCache<T> {
         }
     }
 
+    /**
+     * 获取当前缓存中所有资源的快照，资源本身没有拷贝，每个资源的引用计数加一，
+     * 调用者用完之后要逐个 release()，在此之前这些资源不会被驱逐
+     */
+    protected List<T> pinCachedResources() {
+        lock.lock();
+        try {
+            List<T> resources = new ArrayList<>(cache.size());
+            cache.forEach((obj, key) -> {
+                references.addTo(key, 1);
+                resources.add(obj);
+            });
+            return resources;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 关闭缓存器，写回所有资源，其实就是将所有缓存释放掉
      */
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);   // 调用释放缓存方法
-                references.remove(key);
-                cache.remove(key);
-            }
+            cache.forEachValue(this::releaseForCache);     // 调用释放缓存方法
+            references.clear();
+            cache.clear();
         } finally {
             lock.unlock();
         }
@@ -0,0 +1,43 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+/**
+ * 以 long 为键的开放寻址哈希表共用的计算：
+ * 容量是 2 的幂，装载因子 1/2，键乘黄金分割常数后取高位作为初始位置，冲突时线性探测。
+ * 键 0 用来标记空格子，各个表单独存放。删除时把后面同一探测链上的元素前移，不留墓碑。
+ */
+final class LongHashing {
+    static final int MIN_CAPACITY = 8;
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private LongHashing() {}
+
+    // 能放下 expected 个元素的最小容量
+    static int capacity(int expected) {
+        int cap = MIN_CAPACITY;
+        while(maxSize(cap) < expected) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    static int maxSize(int capacity) {
+        return capacity >>> 1;
+    }
+
+    static int shift(int capacity) {
+        return 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    static int slot(long key, int shift) {
+        return (int) ((key * GOLDEN) >>> shift);
+    }
+
+    /**
+     * 删除 hole 处的元素后，j 处初始位置为 home 的元素能否前移到 hole
+     * home 不在 (hole, j] 之间时可以前移，前移后仍然能从 home 探测到
+     */
+    static boolean canShift(int home, int hole, int j, int mask) {
+        return ((j - home) & mask) >= ((j - hole) & mask);
+    }
+}
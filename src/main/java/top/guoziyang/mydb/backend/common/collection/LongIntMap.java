@@ -0,0 +1,155 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+import java.util.Arrays;
+
+/**
+ * 键为 long、值为 int 的哈希表，不装箱，不是线程安全的
+ * 键不存在时 get() 返回 0，需要区分时先用 containsKey()
+ */
+public class LongIntMap {
+    private long[] keys;
+    private int[] values;
+    private int shift;
+    private int size;               // 不含键 0
+    private boolean hasZero;
+    private int zeroValue;
+
+    public LongIntMap() {
+        this(0);
+    }
+
+    public LongIntMap(int expected) {
+        allocate(LongHashing.capacity(expected));
+    }
+
+    public int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZero : indexOf(key) >= 0;
+    }
+
+    public int get(long key) {
+        if(key == 0) {
+            return zeroValue;
+        }
+        int i = indexOf(key);
+        return i < 0 ? 0 : values[i];
+    }
+
+    /**
+     * @return 原来的值，不存在时返回 0
+     */
+    public int put(long key, int value) {
+        if(key == 0) {
+            int old = zeroValue;
+            hasZero = true;
+            zeroValue = value;
+            return old;
+        }
+        int mask = keys.length - 1;
+        int i = LongHashing.slot(key, shift);
+        for (long k; (k = keys[i]) != 0; i = (i + 1) & mask) {
+            if(k == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size > LongHashing.maxSize(keys.length)) {
+            allocate(keys.length << 1);
+        }
+        return 0;
+    }
+
+    /**
+     * 把 key 的值加上 delta，不存在时视为 0
+     * @return 相加之后的值
+     */
+    public int addTo(long key, int delta) {
+        int value = get(key) + delta;
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * @return 删除的值，不存在时返回 0
+     */
+    public int remove(long key) {
+        if(key == 0) {
+            int old = zeroValue;
+            hasZero = false;
+            zeroValue = 0;
+            return old;
+        }
+        int i = indexOf(key);
+        if(i < 0) {
+            return 0;
+        }
+        int old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZero = false;
+        zeroValue = 0;
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        for (int i = LongHashing.slot(key, shift); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if(k == key) {
+                return i;
+            }
+            if(k == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void removeAt(int hole) {
+        int mask = keys.length - 1;
+        for (int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            if(LongHashing.canShift(LongHashing.slot(keys[j], shift), hole, j, mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        size --;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        shift = LongHashing.shift(capacity);
+        if(oldKeys == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] != 0) {
+                int i = LongHashing.slot(oldKeys[j], shift);
+                while(keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
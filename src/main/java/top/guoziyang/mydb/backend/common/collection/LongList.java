@@ -0,0 +1,58 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+import java.util.Arrays;
+
+/**
+ * 可增长的 long 数组，不装箱，不是线程安全的
+ */
+public class LongList {
+    private long[] elements;
+    private int size;
+
+    public LongList() {
+        this(8);
+    }
+
+    public LongList(int capacity) {
+        elements = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(int i) {
+        if(i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return elements[i];
+    }
+
+    public void add(long e) {
+        if(size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = e;
+    }
+
+    public boolean contains(long e) {
+        for (int i = 0; i < size; i++) {
+            if(elements[i] == e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+}
@@ -0,0 +1,175 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * 键为 long 的哈希表，不装箱，不是线程安全的
+ * 值不能为 null，get() 返回 null 表示键不存在
+ */
+public class LongObjectMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int shift;
+    private int size;               // 不含键 0
+    private Object zeroValue;       // 键 0 的值
+
+    public LongObjectMap() {
+        this(0);
+    }
+
+    public LongObjectMap(int expected) {
+        allocate(LongHashing.capacity(expected));
+    }
+
+    public int size() {
+        return zeroValue != null ? size + 1 : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if(key == 0) {
+            return (V) zeroValue;
+        }
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * @return 原来的值，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(value == null) {
+            throw new NullPointerException();
+        }
+        if(key == 0) {
+            V old = (V) zeroValue;
+            zeroValue = value;
+            return old;
+        }
+        int mask = keys.length - 1;
+        int i = LongHashing.slot(key, shift);
+        for (long k; (k = keys[i]) != 0; i = (i + 1) & mask) {
+            if(k == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size > LongHashing.maxSize(keys.length)) {
+            allocate(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return 删除的值，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if(key == 0) {
+            V old = (V) zeroValue;
+            zeroValue = null;
+            return old;
+        }
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        removeAt(i);
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+        zeroValue = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        if(zeroValue != null) {
+            action.accept((V) zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if(keys[i] != 0) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjLongConsumer<? super V> action) {
+        if(zeroValue != null) {
+            action.accept((V) zeroValue, 0);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if(keys[i] != 0) {
+                action.accept((V) values[i], keys[i]);
+            }
+        }
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        for (int i = LongHashing.slot(key, shift); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if(k == key) {
+                return i;
+            }
+            if(k == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void removeAt(int hole) {
+        int mask = keys.length - 1;
+        for (int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            if(LongHashing.canShift(LongHashing.slot(keys[j], shift), hole, j, mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size --;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        shift = LongHashing.shift(capacity);
+        if(oldKeys == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] != 0) {
+                int i = LongHashing.slot(oldKeys[j], shift);
+                while(keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
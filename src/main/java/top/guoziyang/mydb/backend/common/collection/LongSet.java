@@ -0,0 +1,140 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * long 集合，不装箱，不是线程安全的
+ */
+public class LongSet {
+    private long[] keys;
+    private int shift;
+    private int size;               // 不含键 0
+    private boolean hasZero;
+
+    public LongSet() {
+        this(0);
+    }
+
+    public LongSet(int expected) {
+        allocate(LongHashing.capacity(expected));
+    }
+
+    public int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean contains(long key) {
+        if(key == 0) {
+            return hasZero;
+        }
+        int mask = keys.length - 1;
+        for (int i = LongHashing.slot(key, shift); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if(k == key) {
+                return true;
+            }
+            if(k == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return 原来不在集合中时返回 true
+     */
+    public boolean add(long key) {
+        if(key == 0) {
+            boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+        int mask = keys.length - 1;
+        int i = LongHashing.slot(key, shift);
+        for (long k; (k = keys[i]) != 0; i = (i + 1) & mask) {
+            if(k == key) {
+                return false;
+            }
+        }
+        keys[i] = key;
+        if(++size > LongHashing.maxSize(keys.length)) {
+            allocate(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return 原来在集合中时返回 true
+     */
+    public boolean remove(long key) {
+        if(key == 0) {
+            boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+        int mask = keys.length - 1;
+        for (int i = LongHashing.slot(key, shift); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if(k == key) {
+                removeAt(i);
+                return true;
+            }
+            if(k == 0) {
+                return false;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    public void forEach(LongConsumer action) {
+        if(hasZero) {
+            action.accept(0);
+        }
+        for (long k : keys) {
+            if(k != 0) {
+                action.accept(k);
+            }
+        }
+    }
+
+    private void removeAt(int hole) {
+        int mask = keys.length - 1;
+        for (int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            if(LongHashing.canShift(LongHashing.slot(keys[j], shift), hole, j, mask)) {
+                keys[hole] = keys[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        size --;
+    }
+
+    // 分配新的数组，把已有的元素重新放进去
+    private void allocate(int capacity) {
+        long[] old = keys;
+        keys = new long[capacity];
+        shift = LongHashing.shift(capacity);
+        if(old == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (long k : old) {
+            if(k != 0) {
+                int i = LongHashing.slot(k, shift);
+                while(keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+            }
+        }
+    }
+}
@@ -1,32 +1,61 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.List;
+import java.util.function.LongPredicate;
+
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 /**
  * 数据管理模块接口：
  * 默认提供两个静态功能： 新建数据管理模块 和 打开数据管理器
  *  create(String path, long mem, TransactionManager tm)：
+ *  create(String path, long mem, TransactionManager tm, boolean compress)：compress 为 true 时数据页压缩存放
+ *  create(String path, long mem, TransactionManager tm, int pageSize, boolean compress)：同上，并指定页面大小
+ *  create(String path, long mem, TransactionManager tm, int pageSize, boolean compress, boolean checksum)：同上，
+ *      checksum 为 true 时数据页带校验和与 LSN，读入时校验，恢复时跳过已经落盘的修改，其余 create 默认开启
  *  open(String path, long mem, TransactionManager tm)：
+ *  open(String path, long mem, TransactionManager tm, long poolMem)：poolMem 大于 0 时开启堆外缓冲池
  */
 public interface DataManager {
     DataItem read(long uid) throws Exception;                   // 读取数据
     long insert(long xid, byte[] data) throws Exception;        // 插入数据
     void close();                                               // 关闭数据管理器
+    // 同一页面上的一组 DataItem 都调用过 before() 并修改完成后调用，整页只写一条日志，再关闭它们的写锁
+    void afterAll(long xid, List<DataItem> items);
+
+    void setAsyncCommit(LongPredicate asyncCommit);             // 对异步提交的事务，写日志时不落盘
+    void flushLog();                                            // 将之前写入的日志全部落盘
 
     //从空文件创建首先需要对第一页进行初始化
-    // 静态方法，用于创建DataManager实例
+    // 静态方法，用于创建DataManager实例，不压缩，使用默认页面大小，数据页默认带校验和
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        // 创建一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.create(path, mem);             // 新建页面缓存
+        return create(path, mem, tm, false);
+    }
+
+    // 使用默认页面大小，数据页默认带校验和
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean compress) {
+        return create(path, mem, tm, PageCache.PAGE_SIZE, compress);
+    }
+
+    // 数据页默认带校验和，不需要时用下面的重载传入 checksum = false
+    public static DataManager create(String path, long mem, TransactionManager tm, int pageSize, boolean compress) {
+        return create(path, mem, tm, pageSize, compress, true);
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, int pageSize, boolean compress, boolean checksum) {
+        // 创建一个PageCache实例，path是文件路径，mem是内存大小，页面大小和是否校验记录在第一页中
+        PageCache pc = PageCache.create(path, mem, pageSize, compress, checksum); // 新建页面缓存
         // 创建一个Logger实例，path是文件路径
         Logger lg = Logger.create(path);                        // 新建日志
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);           // 空闲空间表，关闭时写入
 
         // 创建一个DataManagerImpl实例，pc是PageCache实例，lg是Logger实例，tm是TransactionManager实例
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);   // 新建数据管理器
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);   // 新建数据管理器
         dm.initPageOne();                                       // 初始化校验页面1
         return dm;                                              // 返回创建的DataManagerImpl实例
     }
@@ -34,14 +63,24 @@ public interface DataManager {
 
     // 静态方法，用于打开已存在的DataManager实例
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);               // 打开页面缓存
+        return open(path, mem, tm, 0);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, long poolMem) {
+        PageCache pc = PageCache.open(path, mem, poolMem);      // 打开页面缓存
         Logger lg = Logger.open(path);                          // 打开日志
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);   // 打开数据管理器
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);             // 打开空闲空间表
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);   // 打开数据管理器
         if(!dm.loadCheckPageOne()) {
-            // 校验页面1错误，说明数据库非正常关闭，需要进行崩溃恢复
+            // 校验页面1错误，说明数据库非正常关闭，需要进行崩溃恢复，并扫描所有页面重建页面索引
+            // 恢复和扫描时都可能读到崩溃时只写了一部分的页面
+            pc.beginRecovery();
             Recover.recover(tm, lg, pc);
+            dm.fillPageIndex();
+            pc.endRecovery();
+        } else if(!dm.loadPageIndex()) {
+            dm.fillPageIndex();                                 // 没有可用的空闲空间表，重新填写页面索引
         }
-        dm.fillPageIndex();                                     // 重新填写页面索引
         PageOne.setVcOpen(dm.pageOne);                          // 重新填写 校验页面1
         dm.pc.flushPage(dm.pageOne);                            // 将校验页面1 强行写入数据源
 
@@ -1,13 +1,21 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
+import top.guoziyang.mydb.backend.dm.page.PageTrailer;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -35,8 +43,10 @@ import top.guoziyang.mydb.common.Error;
  * 4、实现 DataItem 缓存 重写的两个方法： getForCache(long uid)；releaseForCache(DataItem di)
  * 5、为 DataItemImpl.after() 提供的记录更新日志方法：logDataItem(long xid, DataItem di)
  * 6、为 DataItemImpl.release() 提供的释放 DataItem 缓存方法：releaseDataItem(DataItem di)
- * 7、初始化页面索引：fillPageIndex()
- * 8、关闭 DM
+ * 7、初始化页面索引：fillPageIndex()，正常关闭过的数据库直接从空闲空间表 .fsm 读入
+ * 8、关闭 DM，同时写回空闲空间表，并做一次检查点丢弃所有旧日志
+ * 9、日志段累积过多时做检查点：checkpoint()
+ * 10、批量修改同一页面上的 DataItem 时合并日志：afterAll(long xid, List<DataItem> items)
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
@@ -44,14 +54,26 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    // 检查点栅栏：插入先写日志再改页面，两步之间不能插入检查点，否则检查点之前的日志对应的修改可能没有落盘
+    private ReadWriteLock checkpointLock;
+    private AtomicBoolean checkpointing;
+
+    private volatile LongPredicate asyncCommit;     // 异步提交的事务，日志写入后不立即落盘
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.fsm = fsm;
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.checkpointing = new AtomicBoolean(false);
+        this.asyncCommit = xid -> false;
+        pc.setLogFlusher(logger::flush);
     }
 
 
@@ -88,7 +110,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     public long insert(long xid, byte[] data) throws Exception {
         // 将数据打包为 DataItem 格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if (raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getUsableSize());
+        if (raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
@@ -101,9 +124,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 break;
             } else {
                 // 获取失败说明已经存在的数据页没有足够的空闲空间插入数据，那么就新建一个数据页
-                int newPgno = pc.newPage(PageX.initRaw());
+                int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
                 // 更新页面索引
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                pIndex.add(newPgno, maxFreeSpace);
             }
         }
         if (pi == null) {
@@ -115,13 +138,28 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         try {
             // 获取插入页号
             pg = pc.getPage(pi.pgno);
-            // 写入插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            freeSpace = PageX.getFreeSpace(pg, pc.getUsableSize());
+            short offset;
+            checkpointLock.readLock().lock();
+            // 插入是先写日志再改页面，从写日志到记下 LSN 都持有页面锁：
+            // 别的线程在这期间修改同一页面时记不上更大的 LSN，写回时拷贝不出带着更大的 LSN 却没有这条插入的页面，
+            // 否则恢复时会因为 LSN 不大于页面 LSN 跳过这条插入
+            pg.lock();
+            try {
+                // 写入插入日志
+                byte[] log = Recover.insertLog(xid, pg, raw);
+                long lsn = logger.log(log, !asyncCommit.test(xid));
 
-            // 完成页面数据插入，返回在此页面中的插入位置偏移量
-            short offset = PageX.insert(pg, raw);
+                // 完成页面数据插入，返回在此页面中的插入位置偏移量
+                offset = PageX.insert(pg, raw);
+                stampLsn(pg, lsn);
+            } finally {
+                pg.unlock();
+                checkpointLock.readLock().unlock();
+            }
 
+            // 释放之前记下空闲空间，页面释放后它的内存可能被别的页面复用
+            freeSpace = PageX.getFreeSpace(pg, pc.getUsableSize());
             // 释放此页面缓存
             pg.release();
             // 返回 UID
@@ -129,31 +167,117 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
         } finally {
             // 最后必须更新pIndex，将取出的pg重新插入pIndex
-            if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
-            }
+            pIndex.add(pi.pgno, freeSpace);
+            maybeCheckpoint();
+        }
+    }
+
+    /**
+     * 日志累积的段数足够多时做一次检查点，同一时间只有一个线程在做
+     */
+    private void maybeCheckpoint() {
+        if (!logger.needCheckpoint() || !checkpointing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            checkpoint();
+        } finally {
+            checkpointing.set(false);
         }
     }
 
+    /**
+     * 检查点：
+     * 1. 在栅栏内切换日志段，并写入检查点日志（记录当前页面总数），此时之前日志对应的修改都已经在缓存的页面中；
+     * 2. 将缓存中所有脏页落盘，被驱逐的页面在驱逐时已经落盘；
+     * 3. 丢弃检查点之前的日志段。
+     * 更新操作是先改页面再写日志，所以日志在检查点之前的修改一定会被第 2 步写下去。
+     */
+    void checkpoint() {
+        long seq;
+        checkpointLock.writeLock().lock();
+        try {
+            seq = logger.beginCheckpoint(Recover.checkpointLog(pc.getPageNumber()));
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        pc.flushAll();
+        logger.endCheckpoint(seq);
+    }
+
     /**
      * 关闭DM
      */
     @Override
     public void close() {
         super.close();
-        logger.close();
 
+        // 空闲空间表必须在校验页标记正常关闭之前落盘，中途崩溃时下次启动会重新扫描
+        int pageNumber = pc.getPageNumber();
+        fsm.save(pIndex, pageNumber);
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
+
+        // 所有页面都已经落盘，之前的日志都不再需要
+        long seq = logger.beginCheckpoint(Recover.checkpointLog(pageNumber));
+        logger.endCheckpoint(seq);
+        logger.close();
     }
 
-    // 为xid生成update日志，DataItemImpl.after() 依赖的方法
+    // 为xid生成update日志，DataItemImpl.after() 依赖的方法，此时页面已经修改完了
     public void logDataItem(long xid, DataItem di) {
+        logDataItem(xid, di, !asyncCommit.test(xid));
+    }
+
+    public void logDataItem(long xid, DataItem di, boolean force) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        long lsn = logger.log(log, force);
+        stampLsn(di.page(), lsn);
+        maybeCheckpoint();
+    }
+
+    /**
+     * 同一页面上的一组 DataItem 修改完成，写一条页面更新日志，页面只记一次 LSN，最后关闭所有 DataItem 的写锁
+     * 和 after() 一样是先改页面再写日志，不需要检查点栅栏
+     */
+    @Override
+    public void afterAll(long xid, List<DataItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        try {
+            Page pg = items.get(0).page();
+            byte[] log = Recover.pageUpdateLog(xid, pg.getPageNumber(), items);
+            long lsn = logger.log(log, !asyncCommit.test(xid));
+            stampLsn(pg, lsn);
+        } finally {
+            for (DataItem di : items) {
+                di.unlock();
+            }
+        }
+        maybeCheckpoint();
+    }
+
+    /**
+     * 异步提交的事务写日志时不落盘，由上层在持久化提交状态之前调用 flushLog()，
+     * 页面写回前也会先让日志落盘，所以没落盘的日志对应的修改不会先出现在磁盘上
+     */
+    @Override
+    public void setAsyncCommit(LongPredicate asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    @Override
+    public void flushLog() {
+        logger.flush(Long.MAX_VALUE);
+    }
+
+    // 页面修改完之后记下修改对应日志的 LSN，恢复时可以跳过已经落盘的修改
+    private void stampLsn(Page pg, long lsn) {
+        if (pc.hasChecksum()) {
+            PageTrailer.setLsn(pg, lsn);
+        }
     }
 
     // 释放DataItem缓存，DataItemImpl.release() 依赖的方法，其实就是释放DataItem所在页的缓存
@@ -196,7 +320,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 在创建文件时初始化PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize(), pc.hasChecksum()));
         assert pgno == 1; // 断言，只有pgno == 1才能继续执行
         try {
             pageOne = pc.getPage(pgno);
@@ -216,7 +340,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
+    // 从空闲空间表初始化pageIndex，只有上次正常关闭时才能使用
+    boolean loadPageIndex() {
+        return fsm.load(pIndex, pc.getPageNumber());
+    }
+
+    // 扫描所有数据页初始化pageIndex
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
         for (int i = 2; i <= pageNumber; i++) {
@@ -226,7 +355,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg, pc.getUsableSize()));
             pg.release();
         }
     }
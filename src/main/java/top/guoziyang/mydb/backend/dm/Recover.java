@@ -1,11 +1,16 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.google.common.primitives.Bytes;
 
@@ -13,6 +18,7 @@ import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageTrailer;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -20,54 +26,110 @@ import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
- * recover 例程主要也是两步：重做所有已完成事务 redo，撤销所有未完成事务undo：
- * 两个日志格式：
+ * recover 例程主要也是两步：重做所有已完成事务 redo，撤销所有未完成事务undo，不同页面的日志并行回放：
+ * 五个日志格式：
  *      updateLog:
  *      [LogType] [XID] [UID] [OldRaw] [NewRaw]
+ *      deltaUpdateLog:
+ *      [LogType] [XID] [UID] [RangeCount] [Range1] ... [RangeN]
+ *      Range: [Offset] [Length] [OldBytes] [NewBytes]，只记录 DataItem 中发生变化的字节区间
+ *      pageUpdateLog:
+ *      [LogType] [XID] [Pgno] [RangeCount] [Range1] ... [RangeN]
+ *      同一页面上多个 DataItem 的修改合成一条，Range 的 Offset 是在页面中的偏移
  *      insertLog:
  *      [LogType] [XID] [Pgno] [Offset] [Raw]
+ *      checkpointLog:
+ *      [LogType] [PageNumber]
+ * 检查点之前的日志会被丢弃，检查点日志是检查点之后的第一条日志，记录了当时数据文件的页面总数，
+ * 截断数据文件时不能低于这个页数，否则检查点之前已经落盘的页面会被截掉。
+ * 开启页面校验的数据库，每页记录了最后一次修改它的日志的 LSN（见 PageTrailer），LSN 不大于它的日志不必重做；
+ * 校验失败的页面（崩溃时只写了一部分）LSN 会被清掉，这一页的日志全部重做。
  */
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_UPDATE_DELTA = 3;
+    private static final byte LOG_TYPE_UPDATE_PAGE = 4;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
-    static class InsertLogInfo {
+    static class LogInfo {
+        long lsn;
         long xid;
         int pgno;
         short offset;
+    }
+
+    static class InsertLogInfo extends LogInfo {
         byte[] raw;
     }
 
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    // 全量更新日志看作一个从 DataItem 起始位置开始的区间
+    static class UpdateLogInfo extends LogInfo {
+        int[] rangeOffsets;
+        byte[][] oldRanges;
+        byte[][] newRanges;
     }
 
+    // 一个页面上需要重做和撤销的日志，都按日志顺序排列
+    static class PageLogs {
+        List<LogInfo> redo = new ArrayList<>();
+        List<LogInfo> undo = new ArrayList<>();
+    }
+
+    // 回放日志的最大并行度，每个线程同时只持有一个页面，不能超过页面缓存的最小容量
+    private static final int MAX_PARALLELISM = 8;
+
+    /**
+     * 恢复流程：
+     * 1. 顺序读一遍日志，解析出每条日志，同时得到最大页号（包括检查点时的页面总数），并按页号把日志分组：已结束事务的日志需要重做，活跃事务的日志需要撤销；
+     * 2. 按最大页号截断数据文件；
+     * 3. 不同页面之间的日志互不影响，按页面并行回放：每个页面只取一次，先按日志顺序重做（跳过页面中已有的修改），再按日志逆序撤销；
+     * 4. 将所有活跃事务标记为 abort 状态。
+     * 调用前 pc 需要进入恢复状态（beginRecovery），崩溃时写了一半的页面照常读入。
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        Map<Integer, PageLogs> pageLogs = new HashMap<>();
+        Set<Long> activeXids = new HashSet<>();
+        Map<Long, Boolean> activeCache = new HashMap<>();
         int maxPgno = 0;
+
+        lg.rewind();
         while(true) {
-            byte[] log = lg.next();
+            // 解析时会把需要的内容拷贝出来，直接使用读缓冲上的视图即可
+            SubArray log = lg.nextView();
             if(log == null) break;
-            int pgno;
+            if(isCheckpointLog(log)) {
+                maxPgno = Math.max(maxPgno, parseCheckpointLog(log));
+                continue;
+            }
+            LogInfo li;
             if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
+                li = parseInsertLog(log);
+            } else if(isDeltaUpdateLog(log)) {
+                li = parseDeltaUpdateLog(log);
+            } else if(isPageUpdateLog(log)) {
+                li = parsePageUpdateLog(log);
             } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+                li = parseUpdateLog(log);
+            }
+            li.lsn = lg.lsn();
+            if(li.pgno > maxPgno) {
+                maxPgno = li.pgno;
             }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
+            // 事务状态在恢复期间不会改变，每个事务只查一次 XID 文件
+            boolean active = activeCache.computeIfAbsent(li.xid, tm::isActive);
+            PageLogs logs = pageLogs.computeIfAbsent(li.pgno, k -> new PageLogs());
+            if(active) {
+                logs.undo.add(li);
+                activeXids.add(li.xid);
+            } else {
+                logs.redo.add(li);
             }
         }
         if(maxPgno == 0) {
@@ -76,98 +138,79 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
+        LongAdder skipped = new LongAdder();
+        replayPages(pc, pageLogs, skipped);
+        if(pc.hasChecksum()) {
+            System.out.println("Skipped " + skipped.sum() + " logs already on disk.");
+        }
         System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
         System.out.println("Undo Transactions Over.");
 
+        // 将活跃事务标记为 abort状态
+        for(long xid : activeXids) {
+            tm.abort(xid);
+        }
+
         System.out.println("Recovery Over.");
     }
 
     /**
-     * 重做事务
-     * @param tm 事务管理器
-     * @param lg 日志
+     * 按页面并行回放日志，同一页面上的日志只由一个线程按顺序回放
      * @param pc 页面缓存
+     * @param pageLogs 每个页面需要重做和撤销的日志
+     * @param skipped 统计因为已经在页面中而跳过的日志数
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind(); // 日志文件指针指向第一条记录
-        // 无限循环遍历日志，进行重做操作
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                // 如果是一条插入日志，则进行doInsertLog的重做操作
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                // 如果是一条更新日志，则进行doUpdateLog的重做操作
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    // 此事务在数据库崩溃的时候必须是非活跃状态，也就是已提交状态才能进行重做
-                    doUpdateLog(pc, log, REDO);
-                }
-            }
+    private static void replayPages(PageCache pc, Map<Integer, PageLogs> pageLogs, LongAdder skipped) {
+        int parallelism = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> pageLogs.entrySet().parallelStream()
+                    .forEach(e -> replayPage(pc, e.getKey(), e.getValue(), skipped))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
         }
     }
 
-    /**
-     * 撤销事务
-     * @param tm 事务
-     * @param lg 日志
-     * @param pc 页面缓存
-     */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 日志缓存，key：事务ID，value：日志DATA内容的List；方便后面一次性撤销操作
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();     // 日志文件指针指向第一条记录
-        // 无限循环遍历日志，进行撤销操作
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);     // 解析为InsertLog格式
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    // 事务处于为提交状态，才能进行撤销
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);             // 使用一个日志缓存Map记录此事务需要撤销的日志数据
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+    private static void replayPage(PageCache pc, int pgno, PageLogs logs, LongAdder skipped) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            long pageLsn = pc.hasChecksum() ? PageTrailer.getLsn(pg.getData()) : 0;
+            long lastLsn = pageLsn;
+            // 重做所有已完成事务，页面中已有的修改跳过
+            for(LogInfo li : logs.redo) {
+                if(li.lsn <= pageLsn) {
+                    skipped.increment();
+                    continue;
                 }
+                doLog(pg, li, REDO);
+                lastLsn = Math.max(lastLsn, li.lsn);
+            }
+            // 倒序撤销所有未完成事务
+            for(int i = logs.undo.size()-1; i >= 0; i--) {
+                doLog(pg, logs.undo.get(i), UNDO);
+                lastLsn = Math.max(lastLsn, logs.undo.get(i).lsn);
+            }
+            // 这一页的日志都已经回放过了，下次恢复时不必再重做
+            if(pc.hasChecksum()) {
+                PageTrailer.setLsn(pg, lastLsn);
             }
+        } finally {
+            pg.release();
         }
+    }
 
-        // 对所有active log进行倒序undo，遍历logCache即可
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            // 获得一个事务的所有日志List
-            List<byte[]> logs = entry.getValue();
-            // 倒序进行撤销操作
-            for (int i = logs.size()-1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
-            }
-            // 将此事务标记为 abort状态
-            tm.abort(entry.getKey());
+    private static void doLog(Page pg, LogInfo li, int flag) {
+        if(li instanceof InsertLogInfo) {
+            doInsertLog(pg, (InsertLogInfo) li, flag);
+        } else {
+            doUpdateLog(pg, (UpdateLogInfo) li, flag);
         }
     }
 
@@ -178,8 +221,8 @@ public class Recover {
      * 直接读取日志的第一位状态即可
      * @param log 日志
      */
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertLog(SubArray log) {
+        return log.raw[log.start + OF_TYPE] == LOG_TYPE_INSERT;
     }
 
     /**
@@ -194,59 +237,215 @@ public class Recover {
 
     /**
      * 更新日志
+     * 优先生成只记录变化区间的增量日志，增量日志不比全量日志小时才记录完整的新旧数据
      * @param xid 事务ID
      * @param di 抽象数据
      * @return
      */
     public static byte[] updateLog(long xid, DataItem di) {
+        byte[] oldRaw = di.getOldRaw(); // 获取DataItem对象的旧原始数据
+        SubArray raw = di.getRaw(); // 获取DataItem对象的新原始数据
+        byte[] delta = deltaUpdateLog(xid, di.getUid(), oldRaw, raw);
+        if(delta != null) {
+            return delta;
+        }
         byte[] logType = {LOG_TYPE_UPDATE}; // 创建一个表示日志类型的字节数组，并设置其值为LOG_TYPE_UPDATE
         byte[] xidRaw = Parser.long2Byte(xid); // 将事务ID转换为字节数组
         byte[] uidRaw = Parser.long2Byte(di.getUid()); // 将DataItem对象的唯一标识符转换为字节数组
-        byte[] oldRaw = di.getOldRaw(); // 获取DataItem对象的旧原始数据
-        SubArray raw = di.getRaw(); // 获取DataItem对象的新原始数据
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end); // 将新原始数据转换为字节数组
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw); // 将所有字节数组连接在一起，形成一个完整的更新日志，并返回这个日志
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    private static UpdateLogInfo parseUpdateLog(SubArray log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        li.xid = buf.getLong(log.start + OF_XID);
+        setUpdateAddress(li, buf.getLong(log.start + OF_UPDATE_UID));
+        int raw = log.start + OF_UPDATE_RAW;
+        int length = (log.end - raw) / 2;
+        li.rangeOffsets = new int[] {0};
+        li.oldRanges = new byte[][] {Arrays.copyOfRange(log.raw, raw, raw+length)};
+        li.newRanges = new byte[][] {Arrays.copyOfRange(log.raw, raw+length, raw+length*2)};
+        return li;
+    }
+
+    private static void setUpdateAddress(UpdateLogInfo li, long uid) {
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
-        return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
+    private static void doUpdateLog(Page pg, UpdateLogInfo xi, int flag) {
+        byte[][] ranges;
         if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
+            ranges = xi.newRanges;
         } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
+            ranges = xi.oldRanges;
         }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+        for(int i = 0; i < ranges.length; i++) {
+            PageX.recoverUpdate(pg, ranges[i], (short)((xi.offset & 0xFFFF) + xi.rangeOffsets[i]));
         }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
+    }
+
+    /**
+     * deltaUpdateLog:
+     * [LogType] [XID] [UID] [RangeCount] [Range1] ... [RangeN]
+     *   1字节    8字节 8字节   2字节
+     * Range:
+     * [Offset] [Length] [OldBytes] [NewBytes]
+     *  2字节     2字节    Length    Length
+     * Offset 是区间在 DataItem 中的偏移，Offset 和 Length 都按无符号数解析
+     */
+    private static final int OF_DELTA_COUNT = OF_UPDATE_UID+8;
+    private static final int OF_DELTA_RANGES = OF_DELTA_COUNT+2;
+    private static final int RANGE_HEADER_SIZE = 4;
+    // 两个变化区间之间相同的字节不超过这个数时合并成一个区间，比单独再记一个区间头更省
+    private static final int RANGE_MERGE_GAP = RANGE_HEADER_SIZE / 2;
+
+    /**
+     * 对比修改前后的数据，生成只包含变化区间的增量更新日志
+     * @return 增量日志不比全量日志小时返回 null
+     */
+    private static byte[] deltaUpdateLog(long xid, long uid, byte[] oldRaw, SubArray raw) {
+        int length = oldRaw.length;
+        List<int[]> ranges = diffRanges(oldRaw, raw);
+
+        int size = OF_DELTA_RANGES;
+        for(int[] r : ranges) {
+            size += RANGE_HEADER_SIZE + 2 * r[1];
+        }
+        if(ranges.size() > 0xFFFF || size >= OF_UPDATE_RAW + 2 * length) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(LOG_TYPE_UPDATE_DELTA).putLong(xid).putLong(uid).putShort((short) ranges.size());
+        for(int[] r : ranges) {
+            buf.putShort((short) r[0]).putShort((short) r[1]);
+            buf.put(oldRaw, r[0], r[1]);
+            buf.put(raw.raw, raw.start + r[0], r[1]);
+        }
+        return buf.array();
+    }
+
+    // 找出修改前后不同的字节区间 [在 DataItem 中的偏移, 长度]
+    private static List<int[]> diffRanges(byte[] oldRaw, SubArray raw) {
+        int length = oldRaw.length;
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while(i < length) {
+            if(oldRaw[i] == raw.raw[raw.start + i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // 向后扩展区间，直到遇到足够长的一段相同字节
+            for(int j = end; j < length; j++) {
+                if(oldRaw[j] != raw.raw[raw.start + j]) {
+                    end = j + 1;
+                } else if(j - end >= RANGE_MERGE_GAP) {
+                    break;
+                }
+            }
+            ranges.add(new int[] {start, end - start});
+            i = end;
         }
+        return ranges;
+    }
+
+    private static boolean isDeltaUpdateLog(SubArray log) {
+        return log.raw[log.start + OF_TYPE] == LOG_TYPE_UPDATE_DELTA;
+    }
+
+    private static UpdateLogInfo parseDeltaUpdateLog(SubArray log) {
+        UpdateLogInfo li = new UpdateLogInfo();
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        li.xid = buf.getLong(log.start + OF_XID);
+        setUpdateAddress(li, buf.getLong(log.start + OF_UPDATE_UID));
+        int count = buf.getShort(log.start + OF_DELTA_COUNT) & 0xFFFF;
+        li.rangeOffsets = new int[count];
+        li.oldRanges = new byte[count][];
+        li.newRanges = new byte[count][];
+        int pos = log.start + OF_DELTA_RANGES;
+        for(int i = 0; i < count; i++) {
+            li.rangeOffsets[i] = buf.getShort(pos) & 0xFFFF;
+            int length = buf.getShort(pos + 2) & 0xFFFF;
+            pos += RANGE_HEADER_SIZE;
+            li.oldRanges[i] = Arrays.copyOfRange(log.raw, pos, pos + length);
+            li.newRanges[i] = Arrays.copyOfRange(log.raw, pos + length, pos + 2 * length);
+            pos += 2 * length;
+        }
+        return li;
+    }
+
+    /**
+     * pageUpdateLog:
+     * [LogType] [XID] [Pgno] [RangeCount] [Range1] ... [RangeN]
+     *   1字节    8字节 4字节    4字节
+     * Range 的格式同 deltaUpdateLog，Offset 是区间在页面中的偏移，页面不超过 64K，2 字节足够
+     */
+    private static final int OF_PAGE_PGNO = OF_XID+8;
+    private static final int OF_PAGE_COUNT = OF_PAGE_PGNO+4;
+    private static final int OF_PAGE_RANGES = OF_PAGE_COUNT+4;
+
+    /**
+     * 同一页面上一组 DataItem 的更新日志，批量修改时整页只写一条，只记录变化的区间
+     * @param xid 事务ID
+     * @param pgno 页号，所有 DataItem 都在这一页上
+     * @param items 修改过的 DataItem，旧数据暂存在 getOldRaw() 中
+     * @return
+     */
+    public static byte[] pageUpdateLog(long xid, int pgno, List<DataItem> items) {
+        List<int[]> ranges = new ArrayList<>();
+        List<DataItem> owners = new ArrayList<>();
+        int size = OF_PAGE_RANGES;
+        for(DataItem di : items) {
+            for(int[] r : diffRanges(di.getOldRaw(), di.getRaw())) {
+                ranges.add(r);
+                owners.add(di);
+                size += RANGE_HEADER_SIZE + 2 * r[1];
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(LOG_TYPE_UPDATE_PAGE).putLong(xid).putInt(pgno).putInt(ranges.size());
+        for(int i = 0; i < ranges.size(); i++) {
+            int[] r = ranges.get(i);
+            DataItem di = owners.get(i);
+            SubArray raw = di.getRaw();
+            int itemOffset = (int) (di.getUid() & ((1L << 16) - 1));
+            buf.putShort((short) (itemOffset + r[0])).putShort((short) r[1]);
+            buf.put(di.getOldRaw(), r[0], r[1]);
+            buf.put(raw.raw, raw.start + r[0], r[1]);
+        }
+        return buf.array();
+    }
+
+    private static boolean isPageUpdateLog(SubArray log) {
+        return log.raw[log.start + OF_TYPE] == LOG_TYPE_UPDATE_PAGE;
+    }
+
+    private static UpdateLogInfo parsePageUpdateLog(SubArray log) {
+        UpdateLogInfo li = new UpdateLogInfo();
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        li.xid = buf.getLong(log.start + OF_XID);
+        li.pgno = buf.getInt(log.start + OF_PAGE_PGNO);
+        li.offset = 0;
+        int count = buf.getInt(log.start + OF_PAGE_COUNT);
+        li.rangeOffsets = new int[count];
+        li.oldRanges = new byte[count][];
+        li.newRanges = new byte[count][];
+        int pos = log.start + OF_PAGE_RANGES;
+        for(int i = 0; i < count; i++) {
+            li.rangeOffsets[i] = buf.getShort(pos) & 0xFFFF;
+            int length = buf.getShort(pos + 2) & 0xFFFF;
+            pos += RANGE_HEADER_SIZE;
+            li.oldRanges[i] = Arrays.copyOfRange(log.raw, pos, pos + length);
+            li.newRanges[i] = Arrays.copyOfRange(log.raw, pos + length, pos + 2 * length);
+            pos += 2 * length;
+        }
+        return li;
     }
 
     // [LogType] [XID] [Pgno] [Offset] [Raw]
@@ -269,30 +468,41 @@ public class Recover {
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    private static InsertLogInfo parseInsertLog(SubArray log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        li.xid = buf.getLong(log.start + OF_XID);
+        li.pgno = buf.getInt(log.start + OF_INSERT_PGNO);
+        li.offset = buf.getShort(log.start + OF_INSERT_OFFSET);
+        li.raw = Arrays.copyOfRange(log.raw, log.start + OF_INSERT_RAW, log.end);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
-        try {
-            pg = pc.getPage(li.pgno);
-        } catch(Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            PageX.recoverInsert(pg, li.raw, li.offset);
-        } finally {
-            pg.release();
+    private static void doInsertLog(Page pg, InsertLogInfo li, int flag) {
+        if(flag == UNDO) {
+            DataItem.setDataItemRawInvalid(li.raw);
         }
+        PageX.recoverInsert(pg, li.raw, li.offset);
+    }
+
+    // [LogType] [PageNumber]
+    private static final int OF_CHECKPOINT_PAGE_NUMBER = OF_TYPE+1;
+
+    /**
+     * 检查点日志
+     * @param pageNumber 检查点开始时数据文件的页面总数
+     * @return
+     */
+    public static byte[] checkpointLog(int pageNumber) {
+        byte[] logTypeRaw = {LOG_TYPE_CHECKPOINT};
+        return Bytes.concat(logTypeRaw, Parser.int2Byte(pageNumber));
+    }
+
+    private static boolean isCheckpointLog(SubArray log) {
+        return log.raw[log.start + OF_TYPE] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static int parseCheckpointLog(SubArray log) {
+        return ByteBuffer.wrap(log.raw).getInt(log.start + OF_CHECKPOINT_PAGE_NUMBER);
     }
 }
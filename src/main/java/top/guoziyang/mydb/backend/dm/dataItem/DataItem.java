@@ -26,6 +26,8 @@ public interface DataItem {
 
     void after(long xid);   // 修改数据完成后的方法，记录此事务的修改操作到日志，关闭写锁
 
+    void after(long xid, boolean force);    // 同上，force 为 false 时日志不落盘，等之后的 DataManager.flushLog() 一起落盘
+
     void release();         // 释放 DataItem 缓存
 
     void lock();            // 打开写锁
@@ -54,15 +56,22 @@ public interface DataItem {
     // 从页面的offset处解析处DataItem
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
+        // 偏移量和大小都按无符号数解析，大页面中可能超过 32K
+        int start = offset & 0xFFFF;
         // 读取dataitem的大小
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
+        int size = Parser.parseShort(Arrays.copyOfRange(raw, start + DataItemImpl.OF_SIZE, start + DataItemImpl.OF_DATA)) & 0xFFFF;
+        int length = size + DataItemImpl.OF_DATA;
         // uid = 页号 + 偏移量
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, start, start + length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte) 1;
     }
+
+    // 同上，raw 是 getRaw() 返回的整个 DataItem
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte) 1;
+    }
 }
@@ -100,6 +100,12 @@ public class DataItemImpl implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void after(long xid, boolean force) {
+        dm.logDataItem(xid, this, force);
+        wLock.unlock();
+    }
+
     /**
      * 释放这个DataItem的缓存
      */
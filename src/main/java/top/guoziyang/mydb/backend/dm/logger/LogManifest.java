@@ -0,0 +1,81 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 日志清单，保存在 .log 文件中，记录当前有效的日志段范围：
+ * [Magic] [FirstSeq] [LastSeq]
+ * Magic 4字节，用于和旧版本的单文件日志区分
+ * FirstSeq 8字节，最近一个检查点开始的日志段，之前的日志段都可以丢弃
+ * LastSeq 8字节，正在写入的日志段
+ * 清单每次都是先写临时文件再替换（和 Booter 一样），所以崩溃时要么是旧清单，要么是新清单。
+ */
+class LogManifest {
+    static final String MANIFEST_TMP_SUFFIX = ".log_tmp";
+
+    private static final int MAGIC = 0x4D57414C;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_FIRST = OF_MAGIC + 4;
+    private static final int OF_LAST = OF_FIRST + 8;
+    private static final int MANIFEST_SIZE = OF_LAST + 8;
+
+    long firstSeq;
+    long lastSeq;
+
+    LogManifest(long firstSeq, long lastSeq) {
+        this.firstSeq = firstSeq;
+        this.lastSeq = lastSeq;
+    }
+
+    /**
+     * 读取清单
+     *
+     * @return .log 不是清单格式（旧版本的单文件日志）时返回 null
+     */
+    static LogManifest load(String path) {
+        new File(path + MANIFEST_TMP_SUFFIX).delete();
+        File f = new File(path + LoggerImpl.LOG_SUFFIX);
+        if(f.length() != MANIFEST_SIZE) {
+            return null;
+        }
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        if(buf.getInt(OF_MAGIC) != MAGIC) {
+            return null;
+        }
+        return new LogManifest(buf.getLong(OF_FIRST), buf.getLong(OF_LAST));
+    }
+
+    void save(String path) {
+        ByteBuffer buf = ByteBuffer.allocate(MANIFEST_SIZE);
+        buf.putInt(OF_MAGIC, MAGIC);
+        buf.putLong(OF_FIRST, firstSeq);
+        buf.putLong(OF_LAST, lastSeq);
+
+        File tmp = new File(path + MANIFEST_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf.array());
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + LoggerImpl.LOG_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
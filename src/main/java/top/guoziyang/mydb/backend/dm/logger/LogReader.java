@@ -0,0 +1,119 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 日志的顺序读取器
+ * 每次从文件中预读一大块数据（READ_AHEAD）到缓冲区，日志记录直接在缓冲区上解析和计算校验和，
+ * 返回的是缓冲区上的视图而不是拷贝，这样顺序扫描整个日志文件时，系统调用次数只和文件大小有关，和日志条数无关。
+ * 返回的视图只在下一次调用 next() 之前有效。
+ */
+class LogReader {
+    // 预读缓冲区的大小，单条日志超过这个大小时，缓冲区会临时扩大
+    private static final int READ_AHEAD = 1 << 20;
+
+    private FileChannel fc;
+    private long fileSize;          // 只读取文件这个位置之前的内容
+    private byte version;           // 日志格式版本，决定校验和算法
+
+    private byte[] buf;
+    private ByteBuffer view;        // 包装 buf，用于直接在缓冲区上解析整数
+    private long bufPos;            // buf[0] 对应的文件位置
+    private int bufLen;             // buf 中有效数据的长度
+
+    private long position;          // 下一条日志的文件位置
+
+    LogReader() {
+        this.buf = new byte[READ_AHEAD];
+        this.view = ByteBuffer.wrap(buf);
+    }
+
+    /**
+     * 切换到另一个文件（日志段），缓冲区可以复用
+     *
+     * @param fileSize 只读取文件这个位置之前的内容
+     * @param version  日志格式版本
+     */
+    void reset(FileChannel fc, long fileSize, byte version) {
+        this.fc = fc;
+        this.version = version;
+        this.fileSize = fileSize;
+        // 切换过文件，丢掉可能已经过期的缓冲
+        bufPos = 0;
+        bufLen = 0;
+    }
+
+    void seek(long position) {
+        this.position = position;
+    }
+
+    long position() {
+        return position;
+    }
+
+    /**
+     * 读取下一条完整的日志记录
+     *
+     * @return 缓冲区上 [Size] [Checksum] [Data] 的视图，没有下一条或者遇到 BadTail 时返回 null
+     */
+    SubArray next() {
+        if (position + LoggerImpl.OF_DATA >= fileSize) {
+            return null;
+        }
+        int off = ensure(position, LoggerImpl.OF_DATA);
+        if (off < 0) {
+            return null;
+        }
+        int size = view.getInt(off + LoggerImpl.OF_SIZE);
+        if (size < 0 || position + LoggerImpl.OF_DATA + size > fileSize) {
+            return null;
+        }
+
+        int length = LoggerImpl.OF_DATA + size;
+        off = ensure(position, length);
+        if (off < 0) {
+            return null;
+        }
+        int checkSum1 = LoggerImpl.recordChecksum(version, buf, off, off + length);
+        int checkSum2 = view.getInt(off + LoggerImpl.OF_CHECKSUM);
+        if (checkSum1 != checkSum2) {
+            return null;
+        }
+        position += length;
+        return new SubArray(buf, off, off + length);
+    }
+
+    /**
+     * 保证文件中 [pos, pos+length) 这一段都在缓冲区中
+     *
+     * @return 这一段在缓冲区中的起始下标，文件实际长度不够时返回 -1
+     */
+    private int ensure(long pos, int length) {
+        if (pos >= bufPos && pos + length <= bufPos + bufLen) {
+            return (int) (pos - bufPos);
+        }
+        if (length > buf.length) {
+            buf = new byte[length];
+            view = ByteBuffer.wrap(buf);
+        }
+        int want = (int) Math.min(buf.length, fileSize - pos);
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, want);
+        try {
+            while (bb.hasRemaining()) {
+                if (fc.read(bb, pos + bb.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        bufPos = pos;
+        bufLen = bb.position();
+        return bufLen < length ? -1 : 0;
+    }
+}
@@ -0,0 +1,250 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 日志段：
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * 当前版本的 Header：
+ * [Magic] [Version] [XChecksum]
+ * 4字节    1字节      4字节
+ * 旧版本（VERSION_SEED）的 Header 只有 4 字节的 XChecksum，没有 Magic，按 Magic 是否匹配来区分；
+ * 旧日志的 XChecksum 恰好等于 Magic 时，按新格式校验会失败，这时再按旧格式校验一次。
+ * 日志段写满 segmentSize 后，LoggerImpl 会切换到下一个日志段。
+ */
+class LogSegment {
+    private static final int MAGIC = 0x4D4C4F47;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_XCHECKSUM = OF_VERSION + 1;
+    private static final int HEADER_SIZE = OF_XCHECKSUM + 4;
+
+    private static final int LEGACY_OF_XCHECKSUM = 0;
+    private static final int LEGACY_HEADER_SIZE = LEGACY_OF_XCHECKSUM + 4;
+
+    private long seq;
+    private File f;
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    private byte version;
+    private int headerSize;
+    private int ofXChecksum;
+
+    private long size;                  // 本段有效日志的末尾
+    private int xChecksum;              // 本段的总校验和
+
+    private LogSegment(long seq, File f) {
+        this.seq = seq;
+        this.f = f;
+        try {
+            file = new RandomAccessFile(f, "rw");
+            fc = file.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void setVersion(byte version) {
+        this.version = version;
+        if(version == LoggerImpl.VERSION_SEED) {
+            headerSize = LEGACY_HEADER_SIZE;
+            ofXChecksum = LEGACY_OF_XCHECKSUM;
+        } else {
+            headerSize = HEADER_SIZE;
+            ofXChecksum = OF_XCHECKSUM;
+        }
+    }
+
+    /**
+     * 新建一个当前版本的空日志段，总校验和初始值为0
+     */
+    static LogSegment create(long seq, File f) {
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        LogSegment seg = new LogSegment(seq, f);
+        seg.setVersion(LoggerImpl.CURRENT_VERSION);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OF_MAGIC, MAGIC);
+        header.put(OF_VERSION, LoggerImpl.CURRENT_VERSION);
+        header.putInt(OF_XCHECKSUM, 0);
+        try {
+            seg.fc.write(header, 0);
+            seg.fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        seg.size = HEADER_SIZE;
+        seg.xChecksum = 0;
+        return seg;
+    }
+
+    /**
+     * 打开一个已有的日志段，识别格式版本，校验总校验和并移除尾部可能存在的 BadTail
+     *
+     * @param reader 用于扫描日志段的读取器，可以在多个日志段之间复用
+     */
+    static LogSegment open(long seq, File f, LogReader reader) {
+        if(!f.exists()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        LogSegment seg = new LogSegment(seq, f);
+        long length = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            length = seg.file.length();
+            if(length < LEGACY_HEADER_SIZE) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            seg.fc.read(header, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        if(length >= HEADER_SIZE && header.getInt(OF_MAGIC) == MAGIC) {
+            seg.setVersion(header.get(OF_VERSION));
+            if(seg.version != LoggerImpl.VERSION_SEED && seg.checkAndRemoveTail(reader, length)) {
+                return seg;
+            }
+        }
+        seg.setVersion(LoggerImpl.VERSION_SEED);
+        if(!seg.checkAndRemoveTail(reader, length)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return seg;
+    }
+
+    /**
+     * 校验本段的 XChecksum，并移除文件尾部可能存在的 BadTail
+     * 由于 BadTail 该条日志尚未写入完成，文件的校验和也就不会包含该日志的校验和，去掉 BadTail 即可保证日志文件的一致性。
+     *
+     * @return 按当前版本校验不通过时返回 false，此时不会截断文件
+     */
+    private boolean checkAndRemoveTail(LogReader reader, long length) {
+        ByteBuffer raw = ByteBuffer.allocate(4);
+        try {
+            fc.read(raw, ofXChecksum);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        xChecksum = raw.getInt(0);
+
+        reader.reset(fc, length, version);
+        reader.seek(headerSize);
+        int xCheck = 0;
+        while(true) {
+            // 读取器的位置会随之后移，循环结束后指向最后一个正常[Log]的末尾
+            SubArray log = reader.next();
+            if(log == null) break;
+            // 直接在读缓冲上计算校验和，不拷贝
+            xCheck = LoggerImpl.foldChecksum(version, xCheck, log.raw, log.start, log.end);
+        }
+        if(xCheck != xChecksum) {
+            return false;
+        }
+        try {
+            truncate(reader.position());
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return true;
+    }
+
+    long append(byte[] data) {
+        return append(data, true);
+    }
+
+    /**
+     * 按本段的格式版本打包一条日志并追加到段尾，再更新本段的总校验和，
+     * force 为 true 时刷新缓冲区，保证内容写入磁盘，否则等之后的 force() 一起落盘
+     *
+     * @return 这条日志在本段中的结束位置
+     */
+    long append(byte[] data, boolean force) {
+        byte[] log = new byte[LoggerImpl.OF_DATA + data.length];
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, LoggerImpl.OF_SIZE, 4);
+        System.arraycopy(data, 0, log, LoggerImpl.OF_DATA, data.length);
+        int checksum = LoggerImpl.recordChecksum(version, log, 0, log.length);
+        System.arraycopy(Parser.int2Byte(checksum), 0, log, LoggerImpl.OF_CHECKSUM, 4);
+        try {
+            fc.write(ByteBuffer.wrap(log), size);
+            xChecksum = LoggerImpl.foldChecksum(version, xChecksum, log, 0, log.length);
+            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)), ofXChecksum);
+            if(force) {
+                fc.force(false);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        size += log.length;
+        return size;
+    }
+
+    // 将之前写入的日志刷入磁盘
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 截断日志段，删除 x 偏移量后面的数据
+    void truncate(long x) throws IOException {
+        fc.truncate(x);
+        size = x;
+    }
+
+    // 让读取器从本段第一条日志开始读
+    void rewind(LogReader reader) {
+        reader.reset(fc, size, version);
+        reader.seek(headerSize);
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    byte version() {
+        return version;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == headerSize;
+    }
+
+    void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 关闭并删除日志段文件，用于丢弃检查点之前的日志段
+    void delete() {
+        close();
+        f.delete();
+    }
+}
@@ -1,14 +1,9 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 // MYDB提供数据库崩溃后的恢复功能，DM 模块在每次对底层数据操作时，都会记录一条日志到磁盘上。
@@ -18,15 +13,28 @@ import top.guoziyang.mydb.common.Error;
  * 默认提供两个静态函数：
  *      create(String path)：创建日志文件和打开日志功能
  *      open(String path)：打开日志文件和打开日志功能
+ * 日志按段存放，检查点之前的日志段会被丢弃，见 LoggerImpl
  */
 public interface Logger {
-    void log(byte[] data);                  // 写入一条日志记录
-    void truncate(long x) throws Exception; // 删除日志文件中x指针后面的文件数据
+    long log(byte[] data);                  // 写入一条日志记录并落盘，返回它的 LSN
+    long log(byte[] data, boolean force);   // 同上，force 为 false 时不落盘，等之后的 flush() 一起落盘
+    void flush(long lsn);                   // 保证 LSN 不大于 lsn 的日志都已经落盘
+    void truncate(long x) throws Exception; // 删除正在写入的日志段中x指针后面的文件数据
     byte[] next();                          // logger设计为一个迭代器，next()获取下一条日志，返回的是日志中的DATA数据
+    SubArray nextView();                    // 同 next()，但返回读缓冲上 DATA 的视图，只在下一次读取前有效
+    long lsn();                             // 上一次 next() / nextView() 读出的日志的 LSN
     void rewind();                          // 将文件指针指向第一条日志
     void close();                           // 关闭日志
 
+    long beginCheckpoint(byte[] data);      // 开始检查点：切换到新的日志段并写入 data 作为第一条日志，返回新段序号
+    void endCheckpoint(long seq);           // 结束检查点：丢弃序号 seq 之前的日志段，调用前之前日志对应的页面必须都已落盘
+    boolean needCheckpoint();               // 自上次检查点以来累积的日志段是否已经足够多
+
     public static Logger create(String path) {
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static Logger create(String path, long segmentSize) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -38,29 +46,15 @@ public interface Logger {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        // 打开日志功能，总校验和初始值为0
-        return new LoggerImpl(raf, fc, 0);
+        // 新建清单和第一个日志段
+        return LoggerImpl.create(path, segmentSize);
     }
 
     public static Logger open(String path) {
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static Logger open(String path, long segmentSize) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -68,21 +62,7 @@ public interface Logger {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        // 打开日志功能，不需要设定总校验和的初始值
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        // 日志初始化
-        lg.init();
-
-        return lg;
+        // 读取清单，校验检查点之后的日志段
+        return LoggerImpl.open(path, segmentSize);
     }
 }
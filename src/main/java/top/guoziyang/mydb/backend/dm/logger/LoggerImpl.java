@@ -1,129 +1,175 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+import java.util.zip.CRC32C;
 
-import com.google.common.primitives.Bytes;
-
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
-import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志文件读写
  * <p>
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 4字节 int，为后续所有日志计算的 Checksum(校验和（注意不包括BadTail）)
+ * 日志被切分成多个日志段文件 path.log.0000000000、path.log.0000000001 ...，
+ * path.log 本身是日志清单（见 LogManifest），记录最近一个检查点开始的日志段和正在写入的日志段。
+ * 每个日志段的格式为：
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * Header 中记录了本段的格式版本和 XChecksum，见 LogSegment
+ * XChecksum 4字节 int，为本段所有日志计算的 Checksum(校验和（注意不包括BadTail）)
  * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在。
  * <p>
  * 每条正确日志[log]的格式为：
  * [Size] [Checksum] [Data]
  * Size: 4字节int 标识 Data 长度
  * Checksum: 4字节 int，单条记录的校验和
+ * <p>
+ * 校验和有两个版本：
+ * VERSION_SEED：旧格式，单条日志的校验和是对 Data 逐字节乘 SEED 累加，XChecksum 是对整条日志逐字节累加；
+ * VERSION_CRC32C：单条日志的校验和是 [Size][Data] 的 CRC32C（JIT 会编译成硬件指令），
+ * XChecksum 只需要把每条日志的校验和乘 SEED 累加，不必再把日志内容逐字节算一遍。
+ * 新建的日志段总是使用 CURRENT_VERSION，旧版本的日志段仍然可以读取。
+ * <p>
+ * 正在写入的日志段超过 segmentSize 后切换到新的日志段。上层在保证检查点之前的日志对应的页面都已经落盘后，
+ * 通过 beginCheckpoint() / endCheckpoint() 丢弃之前的日志段，启动时只需要校验检查点之后的日志段。
+ * 旧版本的单文件日志在第一次打开时会被转换成第 0 个日志段。
+ * <p>
+ * 每条日志的 LSN 是 [段序号][日志在段中的结束位置]，高 24 位是段序号，低 40 位是结束位置，
+ * 段序号只增不减，所以 LSN 按日志的写入顺序递增。
+ * <p>
+ * 日志可以写入后不立即落盘（异步提交的事务），之后由 flush() 一次刷盘，切换日志段时旧段总是先落盘。
+ * 页面写回前由页面缓存调用 flush()，保证页面中的修改对应的日志先落盘（WAL）。
  */
 public class LoggerImpl implements Logger {
 
     private static final int SEED = 13331;              // 计算校验和的种子
 
-    private static final int OF_SIZE = 0;               // 每条记录size的起始偏移量
-    private static final int OF_CHECKSUM = OF_SIZE + 4; // 每条记录CheckSum的偏移量（Size占用4字节，所以偏移量+4）
-    private static final int OF_DATA = OF_CHECKSUM + 4; // 每条记录Data的偏移量（CheckSum占用4字节，所以偏移量+4）
+    static final int OF_SIZE = 0;                       // 每条记录size的起始偏移量
+    static final int OF_CHECKSUM = OF_SIZE + 4;         // 每条记录CheckSum的偏移量（Size占用4字节，所以偏移量+4）
+    static final int OF_DATA = OF_CHECKSUM + 4;         // 每条记录Data的偏移量（CheckSum占用4字节，所以偏移量+4）
+
+    static final byte VERSION_SEED = 0;                 // 旧格式，逐字节 SEED 校验和
+    static final byte VERSION_CRC32C = 1;               // CRC32C 校验和
+    static final byte CURRENT_VERSION = VERSION_CRC32C;
 
     public static final String LOG_SUFFIX = ".log";     // 日志文件的后缀
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;  // 默认日志段大小 64M
+
+    private static final int LSN_OFFSET_BITS = 40;     // LSN 中段内位置占的位数，日志段不能超过 1T
+
+    // 自上次检查点以来累积的日志段超过这个数目时，建议上层做一次检查点
+    private static final int CHECKPOINT_SEGMENTS = 4;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private long segmentSize;
     private Lock lock;
 
-    private long position;                              // 当前日志指针的位置
-    private long fileSize;                              // 日志文件的大小，初始化时记录，log操作不更新
-    private int xChecksum;                              // 日志文件的总 校验和
+    private LogManifest manifest;
+    private List<LogSegment> segments;                  // FirstSeq 到 LastSeq 的所有日志段，最后一个是正在写入的段
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
+    private LogReader reader;                           // 顺序读取日志，在日志段之间复用
+    private int readIdx;                                // 当前读到第几个日志段
+
+    private long lastLsn;                               // 最后写入的日志的 LSN
+    private volatile long durableLsn;                   // 已经落盘的日志的 LSN，都在 lock 内更新
+
+    private LoggerImpl(String path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.lock = new ReentrantLock();
+        this.segments = new ArrayList<>();
+        this.reader = new LogReader();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;                     // 多了一个总校验和
-        lock = new ReentrantLock();
+    static LoggerImpl create(String path, long segmentSize) {
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        // 同路径下可能残留着旧数据库的日志段
+        lg.removeSegments(seq -> true);
+        lg.segments.add(LogSegment.create(0, segmentFile(path, 0)));
+        lg.manifest = new LogManifest(0, 0);
+        lg.manifest.save(path);
+        lg.rewind();
+        return lg;
     }
 
     /**
-     * 日志初始化操作，完成日志文件长度的读取、总校验和的读取 和 BadTail的移除
+     * 打开日志，只校验检查点之后的日志段，并移除尾部可能存在的 BadTail
      */
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+    static LoggerImpl open(String path, long segmentSize) {
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        LogManifest m = LogManifest.load(path);
+        if (m == null) {
+            m = migrate(path);
+        }
+        lg.manifest = m;
+        // 崩溃时可能遗留两种日志段：检查点之前还没来得及删除的，切换时已经创建但还没记入清单的
+        final long first = m.firstSeq, last = m.lastSeq;
+        lg.removeSegments(seq -> seq < first || seq > last);
+        for (long seq = first; seq <= last; seq++) {
+            lg.segments.add(LogSegment.open(seq, segmentFile(path, seq), lg.reader));
         }
-        if (size < 4) {
-            Panic.panic(Error.BadLogFileException);
+        // 正在写入的是旧版本的日志段时切换一次，之后的日志都用当前版本写入
+        if (lg.activeSegment().version() != CURRENT_VERSION) {
+            lg.rotate();
         }
+        lg.rewind();
+        return lg;
+    }
 
-        // 读取日志文件的总校验和 xChecksum
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    // 旧版本的单文件日志和日志段格式相同，直接作为第 0 个日志段，再用清单替换掉 .log
+    private static LogManifest migrate(String path) {
+        File legacy = new File(path + LOG_SUFFIX);
+        File seg = segmentFile(path, 0);
         try {
-            fc.position(0);
-            fc.read(raw);
+            Files.deleteIfExists(seg.toPath());
+            try {
+                Files.createLink(seg.toPath(), legacy.toPath());
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(legacy.toPath(), seg.toPath());
+            }
+            try (FileChannel fc = FileChannel.open(seg.toPath(), StandardOpenOption.WRITE)) {
+                fc.force(true);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;                           // 文件长度
-        this.xChecksum = xChecksum;
-
-        // 检查并移除 badTail
-        checkAndRemoveTail();
+        LogManifest m = new LogManifest(0, 0);
+        m.save(path);
+        return m;
     }
 
-    /**
-     * 在打开一个日志文件时，需要首先校验日志文件的 XChecksum，并移除文件尾部可能存在的 BadTail
-     * 由于 BadTail 该条日志尚未写入完成，文件的校验和也就不会包含该日志的校验和，去掉 BadTail 即可保证日志文件的一致性。
-     * 检查并移除 badTail
-     */
-    private void checkAndRemoveTail() {
-        // 将指针指向第一条日志记录
-        // 将position置为4
-        rewind();
-
-        int xCheck = 0;
-        while (true) {
-            /// internNext会改变position的值，循环结束后position指向最后一个正常[Log]的末尾
-            byte[] log = internNext();
-            if (log == null) break;
-            // 对每条记录都进行计算校验和累加值，就是xChecksum
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
+    static File segmentFile(String path, long seq) {
+        return new File(path + LOG_SUFFIX + "." + String.format("%010d", seq));
+    }
 
-        try {
-            /// 将文件截断至position位置，即只保留position前的部分
-            truncate(position); // 截断文件到正常日志的末尾，因为前面计算校验和移动了指针，此时的position指向的就是badTail的起始位置
-        } catch (Exception e) {
-            Panic.panic(e);
+    // 删除序号满足条件的日志段文件
+    private void removeSegments(LongPredicate cond) {
+        File base = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return;
         }
-        try {
-            // 将文件指针设置至position
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+        for (File f : files) {
+            long seq;
+            try {
+                seq = Long.parseLong(f.getName().substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (cond.test(seq)) {
+                f.delete();
+            }
         }
-        // 将position指针指向第一条日志记录，还原指针操作
-        rewind();
     }
 
     /**
@@ -134,61 +180,134 @@ public class LoggerImpl implements Logger {
      * @param log    需要计算校验和的单条日志文件
      * @return 单条日志的校验和
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    static int calChecksum(int xCheck, byte[] log) {
+        return calChecksum(xCheck, log, 0, log.length);
+    }
+
+    // 计算 log[start, end) 这一段的校验和
+    static int calChecksum(int xCheck, byte[] log, int start, int end) {
+        for (int i = start; i < end; i++) {
+            xCheck = xCheck * SEED + log[i];
         }
         return xCheck;
     }
 
     /**
-     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，
-     * 写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
-     * 写入一条日志记录
+     * 计算单条日志的校验和
+     *
+     * @param version 日志格式版本
+     * @param log     [Size] [Checksum] [Data] 所在的数组，Checksum 字段本身不参与计算
+     * @param start   日志的起始下标
+     * @param end     日志的结束下标
+     */
+    static int recordChecksum(byte version, byte[] log, int start, int end) {
+        if (version == VERSION_SEED) {
+            return calChecksum(0, log, start + OF_DATA, end);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(log, start + OF_SIZE, OF_CHECKSUM - OF_SIZE);
+        crc.update(log, start + OF_DATA, end - start - OF_DATA);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 将一条日志累加进日志段的总校验和
+     *
+     * @param version 日志格式版本
+     * @param xCheck  当前的总校验和
+     * @param log     日志所在的数组
+     * @param start   日志的起始下标
+     * @param end     日志的结束下标
+     */
+    static int foldChecksum(byte version, int xCheck, byte[] log, int start, int end) {
+        if (version == VERSION_SEED) {
+            return calChecksum(xCheck, log, start, end);
+        }
+        // 单条日志的校验和已经覆盖了日志内容，这里只累加它
+        int checksum = ((log[start + OF_CHECKSUM] & 0xFF) << 24) | ((log[start + OF_CHECKSUM + 1] & 0xFF) << 16)
+                | ((log[start + OF_CHECKSUM + 2] & 0xFF) << 8) | (log[start + OF_CHECKSUM + 3] & 0xFF);
+        return xCheck * SEED + checksum;
+    }
+
+    /**
+     * 向日志文件写入日志时，由当前日志段按自己的格式版本将数据包裹成日志格式，
+     * 写入后再更新该段的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
+     * 当前日志段写满时先切换到新的日志段。
      *
      * @param data 日志数据
+     * @return 这条日志的 LSN
      */
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data); // 将数据打包成正确的日志格式
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long log(byte[] data) {
+        return log(data, true);
+    }
+
+    @Override
+    public long log(byte[] data, boolean force) {
         lock.lock();
         try {
-            fc.position(fc.size()); // 指针移动到文件末尾
-            fc.write(buf);          // 将记录写入文件
-        } catch (IOException e) {
-            Panic.panic(e);
+            LogSegment active = activeSegment();
+            if (!active.isEmpty() && active.size() + OF_DATA + data.length > segmentSize) {
+                active = rotate();
+            }
+            return append(active, data, force);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);       // 更新总校验和
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
-        try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 追加一条日志并记下它的 LSN，调用时持有 lock
+    private long append(LogSegment seg, byte[] data, boolean force) {
+        lastLsn = lsn(seg.seq(), seg.append(data, force));
+        if (force) {
+            durableLsn = lastLsn;           // 刷盘会把之前没有落盘的日志一起写下去
         }
+        return lastLsn;
     }
 
     /**
-     * 打包日志文件成一个二进制字节数组
-     *
-     * @param data
-     * @return
+     * 保证 LSN 不大于 lsn 的日志都已经落盘，没有未落盘的日志时直接返回
+     * 之前的日志段在切换时已经落盘，只需要刷正在写入的日志段
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));    // 计算单条日志的校验和
-        byte[] size = Parser.int2Byte(data.length);                         // 计算data的大小
-        return Bytes.concat(size, checksum, data);                          // 打包成标准的单条日志格式，并返回
+    @Override
+    public void flush(long lsn) {
+        if (lsn <= durableLsn) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (lastLsn <= durableLsn) {
+                return;
+            }
+            activeSegment().force();
+            durableLsn = lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long lsn(long seq, long end) {
+        return (seq << LSN_OFFSET_BITS) | end;
+    }
+
+    private LogSegment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // 切换到新的日志段，旧段先落盘，新段先建好再记入清单，中途崩溃时多出来的段会在下次打开时删除
+    private LogSegment rotate() {
+        activeSegment().force();
+        durableLsn = lastLsn;
+        long seq = manifest.lastSeq + 1;
+        LogSegment seg = LogSegment.create(seq, segmentFile(path, seq));
+        manifest.lastSeq = seq;
+        manifest.save(path);
+        segments.add(seg);
+        return seg;
     }
 
     /**
-     * 截断日志文件，删除x偏移量后面的文件数据
+     * 截断正在写入的日志段，删除x偏移量后面的文件数据
      *
      * @param x 截断位置
      */
@@ -196,89 +315,132 @@ public class LoggerImpl implements Logger {
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            activeSegment().truncate(x);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
-     * Logger 被实现成迭代器模式，通过 next() 方法，不断地从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
-     * next() 方法的实现主要依靠 internNext() 。
+     * 开始一个检查点：切换到新的日志段，并把 data 作为新段的第一条日志
      *
-     * @return
+     * @return 新日志段的序号，交给 endCheckpoint()
      */
     @Override
-    public byte[] next() {
+    public long beginCheckpoint(byte[] data) {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length); // 解析出日志中的DATA数据并返回
+            LogSegment seg = activeSegment().isEmpty() ? activeSegment() : rotate();
+            append(seg, data, true);
+            return seg.seq();
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 迭代器，获取下一条完整日志记录
-     *
-     * @return 一条格式完整的完整的日志记录 [Size] [Checksum] [Data]
+     * 结束检查点：序号 seq 之前的日志段不再需要，先更新清单再删除文件
      */
-    private byte[] internNext() {
-        /// position是当前日志文件中的指针位置，表示[LogN]的起始，OF_DATA为8，表示一个[LogN]中，[Data]的起始
-        if (position + OF_DATA >= fileSize) {
-            // 文件指针越界，也就是没有下一条日志了
-            return null;
+    @Override
+    public void endCheckpoint(long seq) {
+        lock.lock();
+        try {
+            manifest.firstSeq = seq;
+            manifest.save(path);
+            Iterator<LogSegment> it = segments.iterator();
+            while (it.hasNext()) {
+                LogSegment seg = it.next();
+                if (seg.seq() < seq) {
+                    seg.delete();
+                    it.remove();
+                }
+            }
+            rewindLocked();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 读取单条日志的size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    @Override
+    public boolean needCheckpoint() {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);   // 将[Size]读到tmp中
-        } catch (IOException e) {
-            Panic.panic(e);
+            return segments.size() > CHECKPOINT_SEGMENTS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
+     * Logger 被实现成迭代器模式，通过 next() 方法，不断地从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
+     * 读取和校验都由 LogReader 在预读缓冲上完成，这里只拷贝一次 Data。
+     *
+     * @return
+     */
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try {
+            SubArray log = internNext();
+            if (log == null) return null;
+            return Arrays.copyOfRange(log.raw, log.start + OF_DATA, log.end); // 解析出日志中的DATA数据并返回
+        } finally {
+            lock.unlock();
         }
-        int size = Parser.parseInt(tmp.array());
+    }
 
-        // size + OF_DATA 是当前position所指[Log]的长度
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+    @Override
+    public SubArray nextView() {
+        lock.lock();
+        try {
+            SubArray log = internNext();
+            if (log == null) return null;
+            return new SubArray(log.raw, log.start + OF_DATA, log.end);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 读取 size+checkSum+data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    // 读取器停在上一条日志的末尾
+    @Override
+    public long lsn() {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);   // 将[LogN]读到buf中
-        } catch (IOException e) {
-            Panic.panic(e);
+            return lsn(segments.get(readIdx).seq(), reader.position());
+        } finally {
+            lock.unlock();
         }
-        // 将日志内容打包成二进制数组
-        byte[] log = buf.array();
-
-        // 校验 单条日志的 checksum
-        /// 根据一条日志的[Data]计算出其校验和
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length)); // 使用data计算checksum
-        /// 获取一条日志的[CheckSum]
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));       // 获取日志中记录的checksum
-        /// 此[Log]是BadTail
-        if (checkSum1 != checkSum2) {
-            return null;
+    }
+
+    // 当前日志段读完后，接着读下一个日志段
+    private SubArray internNext() {
+        while (true) {
+            SubArray log = reader.next();
+            if (log != null || readIdx + 1 >= segments.size()) {
+                return log;
+            }
+            readIdx++;
+            segments.get(readIdx).rewind(reader);
         }
-        // 文件指针指向下一条日志记录
-        position += log.length;
-        return log;
     }
 
     /**
-     * 将文件指针指向第一条记录的起始位置
+     * 将文件指针指向第一个日志段的第一条记录
      */
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try {
+            rewindLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rewindLocked() {
+        readIdx = 0;
+        segments.get(0).rewind(reader);
     }
 
     /**
@@ -286,11 +448,14 @@ public class LoggerImpl implements Logger {
      */
     @Override
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+            activeSegment().force();
+            for (LogSegment seg : segments) {
+                seg.close();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
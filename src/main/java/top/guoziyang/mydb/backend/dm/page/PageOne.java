@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.dm.page;
 import java.util.Arrays;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
 
 /**
@@ -13,21 +14,51 @@ import top.guoziyang.mydb.backend.utils.RandomUtil;
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 数据库在每次启动时，就会检查第一页两处的字节是否相同，以此来判断上一次是否正常关闭。
  * 如果是异常关闭，就需要执行数据的恢复流程。
+ * 第一页的 0~3 字节记录建库时选定的页面大小，旧版本的数据库这里是 0，表示默认的 8K。
+ * 4~7 字节是建库时决定的格式标志，旧版本的数据库这里是 0：
+ *      FLAG_CHECKSUM：每一页末尾有页尾（见 PageTrailer），记录页面的 LSN 和校验和
  */
 public class PageOne {
+    private static final int OF_PAGE_SIZE = 0;
+    private static final int OF_FLAGS = OF_PAGE_SIZE + 4;
+    public static final int HEAD_SIZE = OF_FLAGS + 4;       // 打开数据库文件时需要先读出的开头部分
+
+    private static final int FLAG_CHECKSUM = 1;
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
     /**
      * 初始化一个页面
-     * @return 一个设置了100~107字节处随机数的特殊页面1
+     * @param pageSize 页面大小
+     * @param checksum 是否开启页面校验
+     * @return 一个记录了页面大小和格式标志、设置了100~107字节处随机数的特殊页面1
      */
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE]; // 新建一个数据页大小的字节数组
+    public static byte[] InitRaw(int pageSize, boolean checksum) {
+        byte[] raw = new byte[pageSize]; // 新建一个数据页大小的字节数组
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(checksum ? FLAG_CHECKSUM : 0), 0, raw, OF_FLAGS, 4);
         setVcOpen(raw); // 调用setVcOpen(byte[] raw) 在100~107字节处填入一个8位的随机数
         return raw;
     }
 
+    /**
+     * 从第一页的开头读出页面大小，打开数据库文件时还不知道页面大小，只读开头的几个字节
+     * @param raw 第一页开头的数据
+     * @return 页面大小
+     */
+    public static int getPageSize(byte[] raw) {
+        int pageSize = Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+        return pageSize == 0 ? PageCache.PAGE_SIZE : pageSize;
+    }
+
+    /**
+     * 从第一页的开头读出是否开启了页面校验
+     * @param raw 第一页开头的数据
+     */
+    public static boolean hasChecksum(byte[] raw) {
+        return (Parser.parseInt(Arrays.copyOfRange(raw, OF_FLAGS, OF_FLAGS + 4)) & FLAG_CHECKSUM) != 0;
+    }
+
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
         setVcOpen(pg.getData());
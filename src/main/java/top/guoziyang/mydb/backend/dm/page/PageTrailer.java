@@ -0,0 +1,85 @@
+package top.guoziyang.mydb.backend.dm.page;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 页尾
+ * 开启页面校验的数据库（建库时决定，记录在第一页中），每一页的最后 SIZE 字节是页尾，上层不使用：
+ * [PageLSN] [Checksum]
+ * PageLSN: 8字节 最后一次修改这一页的日志的 LSN（见 Logger），LSN 不大于它的日志，修改都已经在页面中了
+ * Checksum: 4字节 页面中除 Checksum 之外所有内容的 CRC32C，页面写回时计算，从磁盘读入时校验，
+ * 对不上说明页面只写了一部分（崩溃时），或者存储出了错。
+ * 从来没写过的页面（比如截断后重新扩展出来的部分）全部为 0，也认为是正确的。
+ */
+public class PageTrailer {
+    public static final int SIZE = 12;
+
+    private static final int OF_LSN = SIZE;                 // 相对页面末尾的偏移
+    private static final int OF_CHECKSUM = 4;
+
+    /**
+     * 读出页面的 LSN
+     * @param raw 页面数据
+     */
+    public static long getLsn(byte[] raw) {
+        return ByteBuffer.wrap(raw).getLong(raw.length - OF_LSN);
+    }
+
+    /**
+     * 修改页面并写入日志之后调用，页面的 LSN 只增不减
+     * 和写回时拷贝页面一样在页面锁内进行，写回的页面不会读到写了一半的 LSN
+     * @param pg 数据页
+     * @param lsn 修改对应日志的 LSN
+     */
+    public static void setLsn(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(getLsn(pg.getData()) < lsn) {
+                putLsn(pg.getData(), lsn);
+            }
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    // 页面校验失败时清掉 LSN，恢复时重做这一页的所有日志
+    public static void clearLsn(byte[] raw) {
+        putLsn(raw, 0);
+    }
+
+    private static void putLsn(byte[] raw, long lsn) {
+        ByteBuffer.wrap(raw).putLong(raw.length - OF_LSN, lsn);
+    }
+
+    /**
+     * 写回前计算并填入校验和
+     * @param raw 页面数据，写回的是页面的拷贝，计算期间不会被修改
+     */
+    public static void stamp(byte[] raw) {
+        ByteBuffer.wrap(raw).putInt(raw.length - OF_CHECKSUM, checksum(raw));
+    }
+
+    /**
+     * 校验从磁盘读入的页面
+     * @param raw 页面数据
+     * @return 校验和正确，或者页面全部为 0 时返回 true
+     */
+    public static boolean verify(byte[] raw) {
+        if(ByteBuffer.wrap(raw).getInt(raw.length - OF_CHECKSUM) == checksum(raw)) {
+            return true;
+        }
+        for (byte b : raw) {
+            if(b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(byte[] raw) {
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, raw.length - OF_CHECKSUM);
+        return (int) crc.getValue();
+    }
+}
@@ -2,7 +2,6 @@ package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
@@ -13,21 +12,35 @@ import top.guoziyang.mydb.backend.utils.Parser;
  *
  * 普通页结构
  * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * FreeSpaceOffset: 2字节 空闲位置开始偏移，按无符号数解析
  * Data: 由于都是使用DataItem进行数据操作，所以Data的格式就是DataItem的格式：[ValidFlag] [DataSize] [Data]
  */
 public class PageX {
 
     private static final short OF_FREE = 0;                                 // 数据页的起始位置
     private static final short OF_DATA = 2;                                 // 2字节
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA; // 一页的最大剩余空间
+    private static final int MAX_FSO = 0xFFFF;                              // FSO 能表示的最大偏移
 
     /**
-     * 初始化一个空的 8k 页面，设置FSO为2字节
+     * 一页的最大剩余空间
+     * 页面大小为 64K 时 FSO 最大只能表示到 65535，页面的最后一个字节不使用
+     * @param usableSize 页面中供上层使用的大小，开启页面校验时不含页尾
+     */
+    public static int maxFreeSpace(int usableSize) {
+        return limit(usableSize) - OF_DATA;
+    }
+
+    private static int limit(int usableSize) {
+        return Math.min(usableSize, MAX_FSO);
+    }
+
+    /**
+     * 初始化一个空页面，设置FSO为2字节
+     * @param pageSize 页面大小
      * @return 空的数据页
      */
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setFSO(raw, OF_DATA); // 初始化的第一个FSO就2字节
         return raw;
     }
@@ -50,8 +63,10 @@ public class PageX {
     public static short getFSO(Page pg) {
         return getFSO(pg.getData());
     }
+    // 新建之后还没落盘就崩溃的页面读出来全部为 0，FSO 为 0 时按空页面处理
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        short fso = Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return fso == 0 ? OF_DATA : fso;
     }
 
     /**
@@ -66,15 +81,15 @@ public class PageX {
         // 获取该数据页的空闲位置偏移量（FSO）
         short offset = getFSO(pg.getData());
         // 将raw的内容插入pg数据页的指定位置
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw, 0, pg.getData(), offset & 0xFFFF, raw.length);
         // 更新数据页前2个字节的FSO值
-        setFSO(pg.getData(), (short)(offset + raw.length));
+        setFSO(pg.getData(), (short)((offset & 0xFFFF) + raw.length));
         return offset;
     }
 
-    // 获取页面的空闲空间大小
-    public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+    // 获取页面的空闲空间大小，usableSize 同 maxFreeSpace
+    public static int getFreeSpace(Page pg, int usableSize) {
+        return limit(usableSize) - (getFSO(pg.getData()) & 0xFFFF);
     }
 
 
@@ -87,11 +102,12 @@ public class PageX {
      */
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        int start = offset & 0xFFFF;
+        System.arraycopy(raw, 0, pg.getData(), start, raw.length);
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        int rawFSO = getFSO(pg.getData()) & 0xFFFF;
+        if(rawFSO < start + raw.length) {
+            setFSO(pg.getData(), (short)(start+raw.length));
         }
     }
 
@@ -104,6 +120,6 @@ public class PageX {
      */
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw, 0, pg.getData(), offset & 0xFFFF, raw.length);
     }
 }
@@ -0,0 +1,163 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 堆外缓冲池
+ * PageCacheImpl 只缓存正在被引用的页面，引用计数归零后页面就被驱逐，下次访问又要读磁盘、再分配一块新的页面内存。
+ * 开启缓冲池后：
+ *      1. 驱逐的页面拷贝进一块堆外内存（arena），按页面大小切成一个个帧，再次访问时从帧里拷回，不用读磁盘；
+ *         arena 按 1G 一段懒分配，帧用完时按顺时针依次淘汰，页号到帧的映射只用 int 数组，不产生堆上的小对象；
+ *      2. 被引用页面使用的堆内存在驱逐后回收复用，堆上只有数量有限的长寿命页面数组，GC 不需要反复追踪和晋升。
+ * 页面数据仍然是 byte[]，因为 DataItem 通过 SubArray 直接把页面数组共享给上层模块。
+ */
+class BufferPool {
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerChunk;
+    private final int frameCount;
+    private final ByteBuffer[] chunks;
+    private final Lock lock;
+
+    private int[] frameOf;                  // 下标为页号，值为帧号 + 1，0 表示不在 arena 中
+    private final int[] pageOf;             // 下标为帧号，值为页号，0 表示空闲
+    private final int[] freeSlots;          // 空闲帧的栈
+    private int freeTop;
+    private int hand;                       // 没有空闲帧时从这里开始淘汰
+
+    private final Deque<byte[]> freeFrames;     // 可以复用的页面数组
+
+    BufferPool(long capacity, int pageSize) {
+        long frames = capacity / pageSize;
+        if(frames <= 0 || frames > Integer.MAX_VALUE) {
+            Panic.panic(Error.InvalidMemException);
+        }
+        this.pageSize = pageSize;
+        this.framesPerChunk = CHUNK_SIZE / pageSize;
+        this.frameCount = (int) frames;
+        this.chunks = new ByteBuffer[(frameCount + framesPerChunk - 1) / framesPerChunk];
+        this.lock = new ReentrantLock();
+        this.frameOf = new int[1024];
+        this.pageOf = new int[frameCount];
+        this.freeSlots = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            freeSlots[i] = frameCount - 1 - i;
+        }
+        this.freeTop = frameCount;
+        this.freeFrames = new ArrayDeque<>();
+    }
+
+    /**
+     * 取一块页面数组，优先复用回收的数组
+     */
+    byte[] frame() {
+        lock.lock();
+        try {
+            byte[] frame = freeFrames.poll();
+            return frame != null ? frame : new byte[pageSize];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 回收被驱逐页面的数组，只有引用计数归零的页面才会被驱逐，没有别的线程还在使用这个数组
+     */
+    void recycle(byte[] frame) {
+        lock.lock();
+        try {
+            freeFrames.push(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从 arena 中取出页面拷贝到 dst，页面被取出后就不在 arena 中了，驱逐时会重新放回
+     *
+     * @return 页面不在 arena 中时返回 false
+     */
+    boolean load(int pgno, byte[] dst) {
+        lock.lock();
+        try {
+            if(pgno >= frameOf.length || frameOf[pgno] == 0) {
+                return false;
+            }
+            int slot = frameOf[pgno] - 1;
+            chunk(slot).get(offset(slot), dst, 0, pageSize);
+            freeSlot(pgno, slot);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把页面拷贝进 arena，放在空闲帧中，没有空闲帧时淘汰一个
+     */
+    void store(int pgno, byte[] src) {
+        lock.lock();
+        try {
+            if(pgno >= frameOf.length) {
+                frameOf = Arrays.copyOf(frameOf, Math.max(frameOf.length * 2, pgno + 1));
+            }
+            int slot;
+            if(frameOf[pgno] != 0) {
+                slot = frameOf[pgno] - 1;
+            } else if(freeTop > 0) {
+                slot = freeSlots[--freeTop];
+            } else {
+                slot = hand;
+                hand = (hand + 1) % frameCount;
+                frameOf[pageOf[slot]] = 0;
+            }
+            chunk(slot).put(offset(slot), src, 0, pageSize);
+            frameOf[pgno] = slot + 1;
+            pageOf[slot] = pgno;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 丢弃 maxPgno 之后的页面
+    void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            for (int pgno = maxPgno + 1; pgno < frameOf.length; pgno++) {
+                if(frameOf[pgno] != 0) {
+                    freeSlot(pgno, frameOf[pgno] - 1);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void freeSlot(int pgno, int slot) {
+        frameOf[pgno] = 0;
+        pageOf[slot] = 0;
+        freeSlots[freeTop++] = slot;
+    }
+
+    private ByteBuffer chunk(int slot) {
+        int i = slot / framesPerChunk;
+        if(chunks[i] == null) {
+            int frames = Math.min(framesPerChunk, frameCount - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        return chunks[i];
+    }
+
+    private int offset(int slot) {
+        return (slot % framesPerChunk) * pageSize;
+    }
+}
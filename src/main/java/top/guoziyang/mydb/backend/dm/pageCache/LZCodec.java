@@ -0,0 +1,162 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 页面压缩用的 LZ 编码，格式与 LZ4 的块格式相同：
+ * [Token] [LiteralLength...] [Literals] [Offset] [MatchLength...]
+ * Token 1字节，高 4 位是字面量长度，低 4 位是匹配长度减 4，等于 15 时后面跟若干字节继续累加（255 表示还没完）
+ * Offset 2字节小端，匹配串相对当前位置往前的距离
+ * 最后一个序列只有字面量，没有 Offset 和 MatchLength。
+ * 只用一张 4 字节前缀的哈希表找匹配，不追求压缩率，数据页中大量的空白区和重复的记录头就足够压得很小了。
+ */
+final class LZCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int LAST_LITERALS = 5;         // 末尾至少保留的字面量字节数
+    private static final int MF_LIMIT = 12;             // 距末尾不足这么多字节时不再找匹配
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;          // 连续找不到匹配时逐渐加大步长，快速跳过不可压缩的数据
+
+    private LZCodec() {}
+
+    /**
+     * 压缩 src 的前 srcLen 字节到 dst 中
+     *
+     * @return 压缩后的长度，dst 放不下时返回 -1
+     */
+    static int compress(byte[] src, int srcLen, byte[] dst) {
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+
+        int anchor = 0, ip = 0, op = 0;
+        int matchLimit = srcLen - LAST_LITERALS;
+        int ipLimit = srcLen - MF_LIMIT;
+        while(ip < ipLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if(ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            // 向前扩展匹配
+            while(ip > anchor && ref > 0 && src[ip-1] == src[ref-1]) {
+                ip --; ref --;
+            }
+            // 向后扩展匹配
+            int matchLen = MIN_MATCH;
+            while(ip + matchLen < matchLimit && src[ip+matchLen] == src[ref+matchLen]) {
+                matchLen ++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+            if(op < 0) {
+                return -1;
+            }
+            ip += matchLen;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, srcLen - anchor, 0, 0, dst, op);
+    }
+
+    /**
+     * 解压 src[srcOff, srcOff+srcLen) 到 dst 中，数据损坏时 panic
+     *
+     * @return 解压后的长度
+     */
+    static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst) {
+        int ip = srcOff, end = srcOff + srcLen, op = 0;
+        try {
+            while(ip < end) {
+                int token = src[ip++] & 0xFF;
+                int litLen = token >>> 4;
+                if(litLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        litLen += b;
+                    } while(b == 255);
+                }
+                if(ip + litLen > end || op + litLen > dst.length) {
+                    Panic.panic(Error.BadPageFileException);
+                }
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if(ip == end) {
+                    break;                                  // 最后一个序列只有字面量
+                }
+
+                int offset = (src[ip] & 0xFF) | ((src[ip+1] & 0xFF) << 8);
+                ip += 2;
+                int matchLen = token & 0x0F;
+                if(matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while(b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if(offset == 0 || ref < 0 || op + matchLen > dst.length) {
+                    Panic.panic(Error.BadPageFileException);
+                }
+                // 匹配串可能和输出重叠，逐字节复制
+                for(int i = 0; i < matchLen; i ++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Panic.panic(Error.BadPageFileException);
+        }
+        return op;
+    }
+
+    // 写入一个序列，matchLen 为 0 时是最后一个只有字面量的序列
+    private static int writeSequence(byte[] src, int litOff, int litLen, int offset, int matchLen, byte[] dst, int op) {
+        int need = 1 + litLen / 255 + 1 + litLen + (matchLen == 0 ? 0 : 2 + (matchLen - MIN_MATCH) / 255 + 1);
+        if(op + need > dst.length) {
+            return -1;
+        }
+        int tokenPos = op++;
+        int token = (Math.min(litLen, 15) << 4);
+        op = writeLength(litLen, dst, op);
+        System.arraycopy(src, litOff, dst, op, litLen);
+        op += litLen;
+        if(matchLen != 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLen - MIN_MATCH, 15);
+            op = writeLength(matchLen - MIN_MATCH, dst, op);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    // 长度不小于 15 时，Token 之外的部分按 255 一段写出
+    private static int writeLength(int len, byte[] dst, int op) {
+        if(len < 15) {
+            return op;
+        }
+        len -= 15;
+        while(len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | ((buf[pos+1] & 0xFF) << 8) | ((buf[pos+2] & 0xFF) << 16) | ((buf[pos+3] & 0xFF) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
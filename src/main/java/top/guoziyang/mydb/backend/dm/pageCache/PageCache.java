@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
@@ -13,11 +15,19 @@ import top.guoziyang.mydb.common.Error;
  * 页面缓存
  * 默认提供两个静态方法：
  *      create(String path, long memory)：新建一个数据库文件和数据页面缓存器
+ *      create(String path, long memory, boolean compress)：同上，compress 为 true 时页面压缩存放，之后打开时沿用
+ *      create(String path, long memory, int pageSize, boolean compress)：同上，并指定页面大小（4K~64K 之间的 2 的幂），
+ *          页面大小记录在第一页中，之后打开时沿用
+ *      create(String path, long memory, int pageSize, boolean compress, boolean checksum)：同上，checksum 为 true 时
+ *          每页带页尾（见 PageTrailer），写回时计算校验和、读入时校验，由上层在第一页中记录，之后打开时沿用
  *      open(String path, long memory)：打开一个数据库文件和数据页面缓存器
+ *      open(String path, long memory, long poolMemory)：同上，poolMemory 大于 0 时开启这么大的堆外缓冲池
  */
 public interface PageCache {
 
-    public static final int PAGE_SIZE = 1 << 13; // 页面大小 8K
+    public static final int PAGE_SIZE = 1 << 13;        // 默认页面大小 8K
+    public static final int MIN_PAGE_SIZE = 1 << 12;    // 最小页面大小 4K
+    public static final int MAX_PAGE_SIZE = 1 << 16;    // 最大页面大小 64K
 
     int newPage(byte[] initData);               // 将数据打包成一个数据页
     Page getPage(int pgno) throws Exception;    // 获取一个数据页
@@ -26,9 +36,32 @@ public interface PageCache {
 
     void truncateByBgno(int maxPgno);           // 删除 maxPgno 后面的数据页
     int getPageNumber();                        // 获取当前数据库文件的页面总数
+    int getPageSize();                          // 获取当前数据库文件的页面大小
+    int getUsableSize();                        // 获取页面中供上层使用的大小，开启页面校验时不含页尾
+    boolean hasChecksum();                      // 是否开启了页面校验
     void flushPage(Page pg);                    // 将数据页写入数据源中
+    void flushAll();                            // 将缓存中所有脏页写入数据源，用于检查点
+    void setLogFlusher(LongConsumer flusher);   // 页面写回前以页面的 LSN（没有页尾时为 Long.MAX_VALUE）调用，先让日志落盘
+
+    void beginRecovery();                       // 开始崩溃恢复，校验失败的页面照常读入，并清掉页面的 LSN
+    int endRecovery();                          // 结束崩溃恢复，返回恢复期间校验失败的页面数
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, false);
+    }
+
+    public static PageCacheImpl create(String path, long memory, boolean compress) {
+        return create(path, memory, PAGE_SIZE, compress);
+    }
+
+    public static PageCacheImpl create(String path, long memory, int pageSize, boolean compress) {
+        return create(path, memory, pageSize, compress, false);
+    }
+
+    public static PageCacheImpl create(String path, long memory, int pageSize, boolean compress, boolean checksum) {
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -49,10 +82,17 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        // 清理同路径下可能残留的旧映射表，有没有映射表决定了打开时是否按压缩模式读取
+        new File(path+PageMap.MAP_SUFFIX).delete();
+        PageMap pageMap = compress ? PageMap.create(path, fc) : null;
+        return new PageCacheImpl(raf, fc, (int)(memory/pageSize), pageSize, checksum, pageMap, null);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, 0);
+    }
+
+    public static PageCacheImpl open(String path, long memory, long poolMemory) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -69,6 +109,10 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        PageMap pageMap = PageMap.exists(path) ? PageMap.open(path, fc) : null;
+        byte[] head = PageCacheImpl.loadPageOneHead(fc, pageMap);
+        int pageSize = PageCacheImpl.loadPageSize(head);
+        BufferPool bufferPool = poolMemory > 0 ? new BufferPool(poolMemory, pageSize) : null;
+        return new PageCacheImpl(raf, fc, (int)(memory/pageSize), pageSize, PageOne.hasChecksum(head), pageMap, bufferPool);
     }
 }
\ No newline at end of file
@@ -4,13 +4,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageImpl;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
+import top.guoziyang.mydb.backend.dm.page.PageTrailer;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
@@ -18,19 +23,48 @@ import top.guoziyang.mydb.common.Error;
  * 页面缓存实现类
  * 继承抽象缓存框架 AbstractCache，主要重写 getForCache 和 releaseForCache方法
  * 实现 PageCache 接口指定的方法
+ * 压缩模式（建库时决定）下，页面写回时用 LZCodec 压缩，读入时解压，压缩后的页面大小不一，
+ * 通过 PageMap 记录每页在文件中的位置；不压缩时页面按页号顺序定长存放。
+ * 开启堆外缓冲池（BufferPool）时，被驱逐的页面留在堆外内存中，页面使用的堆内存回收复用。
+ * 不压缩时，顺序扫描会触发预读（ReadAhead），一次读入连续的多个页面。
+ * 读写都使用带位置参数的 FileChannel.read/write，不移动文件指针，不同页面的读写互不阻塞；
+ * 同一页面的写回（驱逐和检查点可能同时写）用按页号分片的锁串行，取内容和写盘都在锁内，保证后写的一定是更新的内容；
+ * 检查点扫描期间持有每个页面的引用，页面不会中途被驱逐，不会把已经离开缓存的旧页面写到新内容上面。
+ * 开启页面校验（建库时决定）时，写回的是在页面锁内拷贝出来的页面，在拷贝上计算校验和，
+ * 从磁盘（包括预读窗口）读入时校验，堆外缓冲池中的页面没有经过磁盘，不校验。
+ * 不压缩时文件按 EXTENT_PAGES 页一段预先扩展，新建页面只在已经分配好的空间里写入，不刷盘，
+ * 正常关闭时截掉末尾没用上的部分；崩溃后多出来的部分由恢复流程按日志截断。
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10;      // 最小缓存数
+    private static final int WRITE_LOCKS = 64;      // 写回锁的分片数
+    private static final int EXTENT_PAGES = 256;    // 文件一次扩展的页数
     public static final String DB_SUFFIX = ".db";   // 文件尾缀
 
     private RandomAccessFile file;                  // 支持“随机访问”的方式，程序快可以直接跳转到文件的任意地方来读写数据。
     private FileChannel fc;                         // 直接连接输入输出流的文件通道，将数据直接写入到目标文件中去。
-    private Lock fileLock;
+    private Lock[] writeLocks;                      // 按页号分片的写回锁
+    private PageMap pageMap;                        // 压缩模式下的页面映射表，不压缩时为 null
+    private final int pageSize;                     // 页面大小，建库时决定，记录在第一页中
+    private BufferPool bufferPool;                  // 堆外缓冲池，未开启时为 null
+    private ReadAhead readAhead;                    // 顺序预读，压缩模式下为 null
+    private final boolean checksum;                 // 是否开启页面校验，建库时决定，记录在第一页中
+    private ThreadLocal<byte[]> writeBuffer;        // 开启页面校验时，写回前拷贝页面用的缓冲
+    private volatile boolean recovering;            // 崩溃恢复期间校验失败的页面照常读入
+    private AtomicInteger tornPages;                // 恢复期间校验失败的页面数
 
     private AtomicInteger pageNumbers;              // 记录当前打开的数据库文件有多少页面
+    private volatile int allocatedPages;            // 文件已经扩展到的页数，不小于 pageNumbers
+    private Lock extentLock;                        // 扩展和截断文件
+    private volatile LongConsumer logFlusher;       // 页面写回前让日志先落盘，见 setLogFlusher()
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        this(file, fileChannel, maxResource, PAGE_SIZE, false, null, null);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, int pageSize, boolean checksum,
+                  PageMap pageMap, BufferPool bufferPool) {
         super(maxResource);                         // 调用父类的构造函数
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
@@ -45,28 +79,74 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        // 使用JUC下的原子包Int，使用文件长度计算 页面总数
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.writeLocks = new Lock[WRITE_LOCKS];
+        for (int i = 0; i < WRITE_LOCKS; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+        this.pageMap = pageMap;
+        this.pageSize = pageSize;
+        this.bufferPool = bufferPool;
+        this.checksum = checksum;
+        this.writeBuffer = ThreadLocal.withInitial(() -> new byte[pageSize]);
+        this.tornPages = new AtomicInteger();
+        // 使用JUC下的原子包Int，使用文件长度计算 页面总数，压缩模式下页面总数记在映射表里
+        this.pageNumbers = new AtomicInteger(pageMap != null ? pageMap.pageNumber() : (int) (length / pageSize));
+        this.allocatedPages = pageNumbers.get();
+        this.extentLock = new ReentrantLock();
+        if (pageMap == null) {
+            this.readAhead = new ReadAhead(fileChannel, pageSize, pageNumbers::get);
+        }
     }
 
     /**
      * 将数据打包成一个数据页
-     * 调用flush()方法将数据页的内容写入数据源中
+     * 调用write()方法将数据页的内容写入数据源中
      * pageNumbers 在新建页面时自增。
      * 其中返回 page 对象时，缓存引用为 null。
-     * flush() 在新建页面时立刻写回磁盘。
+     * 新建页面时不刷盘，等下一次检查点或者页面被驱逐时一起落盘；
+     * 崩溃时没有落盘的新页面读出来全部为 0，按空页面处理，其中插入的数据由恢复流程重做。
      *
      * @param initData 页面数据
      * @return 页号
      */
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();           // 使用原子包将页号 +1
+        if (pageMap == null) {
+            ensureAllocated(pgno);
+        }
         Page pg = new PageImpl(pgno, initData, null);   // 将initData数据包裹成数据页
-        flush(pg);                                          // 调用flush方法, 将数据页中的数据写入数据源
+        write(pg);                                          // 调用write方法, 将数据页中的数据写入数据源
+        if (bufferPool != null) {
+            bufferPool.store(pgno, initData);               // 新页面很可能马上被访问
+        }
         return pgno;
     }
 
+    /**
+     * 文件还没扩展到 pgno 页时，一次扩展 EXTENT_PAGES 页
+     * 只改变文件长度，不写入数据也不刷盘，崩溃后文件可能没有这么长，读不到的部分按 0 处理
+     *
+     * @param pgno 页号
+     */
+    private void ensureAllocated(int pgno) {
+        if (pgno <= allocatedPages) {
+            return;
+        }
+        extentLock.lock();
+        try {
+            if (pgno <= allocatedPages) {
+                return;
+            }
+            int pages = (pgno + EXTENT_PAGES - 1) / EXTENT_PAGES * EXTENT_PAGES;
+            file.setLength(pageOffset(pages + 1));
+            allocatedPages = pages;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
     /**
      * 获取指定数据页，调用 get() 方法, 从缓存中获取 page 对象
      *
@@ -81,6 +161,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     /**
      * 当资源不在缓存时的获取行为
      * 根据 pageNumber 从数据库文件中读取页数据，并包裹成Page
+     * 开启缓冲池时，页面内存从缓冲池中取，页面在堆外内存中时直接拷贝，不读磁盘
+     * 开启页面校验时，校验失败抛出 BadPageChecksumException，崩溃恢复期间除外
      *
      * @param key 页号
      * @return 数据页
@@ -89,18 +171,60 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long offset = PageCacheImpl.pageOffset(pgno);       // 计算目标数据页在文件中的偏移量
+        byte[] data;
+        if (bufferPool != null) {
+            data = bufferPool.frame();
+            if (bufferPool.load(pgno, data)) {
+                return new PageImpl(pgno, data, this);
+            }
+        } else {
+            data = new byte[pageSize];                      // 申请一个页面大小的空间
+        }
+        if (pageMap != null) {
+            readCompressed(pgno, data);
+        } else if (!readAhead.take(pgno, data)) {           // 没有预读进来，读磁盘
+            readPlain(pgno, data);
+        }
+        boolean torn = isTorn(pgno, data);
+        if (torn && !recovering) {
+            if (bufferPool != null) {
+                bufferPool.recycle(data);
+            }
+            throw Error.BadPageChecksumException;
+        }
+        Page pg = new PageImpl(pgno, data, this);           // 打包成一个数据页
+        if (torn) {
+            // 恢复期间清掉 LSN，重做这一页的所有日志，即使没有日志要重做，也要重新写一次校验和
+            tornPages.incrementAndGet();
+            PageTrailer.clearLsn(data);
+            pg.setDirty(true);
+        }
+        return pg;
+    }
+
+    // 从页面的固定位置读出页面
+    private void readPlain(int pgno, byte[] data) {
+        long offset = pageOffset(pgno);                     // 计算目标数据页在文件中的偏移量
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);    // 申请一个页面大小的 buffer 空间
-        fileLock.lock();
+        ByteBuffer buf = ByteBuffer.wrap(data);
         try {
-            fc.position(offset);                            // 文件指针移动到数据页的偏移位置
-            fc.read(buf);                                   // 读取一个页面的数据
+            // 从数据页的偏移位置读取一个页面的数据，不同线程的读盘可以同时进行
+            while (buf.hasRemaining() && fc.read(buf, offset + buf.position()) > 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);   // 打包成一个数据页
+        // 文件末尾不足一页的部分补 0，复用的页面内存里可能还有别的页面的数据
+        Arrays.fill(data, buf.position(), data.length, (byte) 0);
+    }
+
+    /**
+     * 校验从磁盘读入的页面
+     * 第一页只记录元数据，每次打开和关闭都整页重写，写坏时校验字节也对不上，会走恢复流程，不校验
+     *
+     * @return 校验失败时返回 true
+     */
+    private boolean isTorn(int pgno, byte[] data) {
+        return checksum && pgno != 1 && !PageTrailer.verify(data);
     }
 
     /**
@@ -116,6 +240,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
             flush(pg);
             pg.setDirty(false);
         }
+        if (bufferPool != null) {
+            bufferPool.store(pg.getPageNumber(), pg.getData());
+            bufferPool.recycle(pg.getData());
+        }
     }
 
     /**
@@ -133,26 +261,135 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         flush(pg);
     }
 
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {
+        this.logFlusher = flusher;
+    }
+
+    /**
+     * 将缓存中所有脏页写回数据源，最后统一刷盘一次
+     * 页面可能正在被其他线程修改，这里不清除脏标记，页面被驱逐时还会再写一次；
+     * 写下去的内容即使不完整，对应的修改日志也一定在检查点之后，恢复时会重做。
+     * 扫描期间持有所有页面的引用，写完一页释放一页，释放时引用归零的页面照常驱逐。
+     */
+    @Override
+    public void flushAll() {
+        List<Page> pages = pinCachedResources();
+        for (int i = 0; i < pages.size(); i++) {
+            Page pg = pages.get(i);
+            try {
+                if (pg.isDirty()) {
+                    write(pg);
+                }
+            } finally {
+                release(pg);
+            }
+        }
+        force();
+    }
+
     /**
      * 将数据页中的数据写回到数据源文件的规定位置中
      *
      * @param pg 数据页
      */
     private void flush(Page pg) {
+        write(pg);
+        force();
+    }
+
+    // 将数据页写入文件，不刷盘，先拿到分片锁再取页面内容，后拿到锁的一定写下更新的内容
+    private void write(Page pg) {
         int pgno = pg.getPageNumber();                      // 获取页号
-        long offset = pageOffset(pgno);                     // 获取该页面在文件中的偏移量
+        Lock lock = writeLocks[pgno & (WRITE_LOCKS - 1)];
+        lock.lock();
+        try {
+            byte[] data = checksum ? stampedCopy(pg) : pg.getData();
+            LongConsumer flusher = logFlusher;
+            if (flusher != null) {
+                // 页面中的修改对应的日志必须先落盘，没有页尾时不知道页面的 LSN，让所有日志落盘
+                flusher.accept(checksum ? PageTrailer.getLsn(data) : Long.MAX_VALUE);
+            }
+            if (pageMap != null) {
+                writeCompressed(pgno, data);
+                return;
+            }
+            long offset = pageOffset(pgno);                 // 获取该页面在文件中的偏移量
+            // 将数据页中的数据写回数据源文件的指定位置
+            ByteBuffer buf = ByteBuffer.wrap(data);         // 从数据页中获取数据内容生成一个buffer
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());     // 写回数据源
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+        if (readAhead != null) {
+            readAhead.invalidate(pgno);                     // 预读窗口中的这一页已经过时
+        }
+    }
 
-        // 将数据页中的数据写回数据源文件的指定位置
-        fileLock.lock();
+    /**
+     * 在页面锁内拷贝页面，再在拷贝上计算校验和
+     * 页面可能正在被修改，直接在页面上计算，写下去的内容可能和校验和对不上
+     */
+    private byte[] stampedCopy(Page pg) {
+        byte[] copy = writeBuffer.get();
+        pg.lock();
+        try {
+            System.arraycopy(pg.getData(), 0, copy, 0, pageSize);
+        } finally {
+            pg.unlock();
+        }
+        PageTrailer.stamp(copy);
+        return copy;
+    }
+
+    // 刷盘，压缩模式下还要写入变化的页面映射
+    private void force() {
+        if (pageMap != null) {
+            pageMap.force();
+            return;
+        }
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData()); // 从数据页中获取数据内容生成一个buffer
-            fc.position(offset);                            // 指针移动到文件的指定位置
-            fc.write(buf);                                  // 写回数据源
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+        }
+    }
+
+    /**
+     * 压缩数据页并写到映射表分配的位置，压不下来的页面按原样存放
+     * 第一页总是原样存放，这样打开时不用先知道页面大小就能从中读出页面大小
+     *
+     * @param pgno 页号
+     * @param data 页面数据
+     */
+    private void writeCompressed(int pgno, byte[] data) {
+        byte[] compressed = new byte[pageSize - 1];
+        int len = pgno == 1 ? -1 : LZCodec.compress(data, pageSize, compressed);
+        if (len < 0) {
+            pageMap.write(pgno, data, pageSize);
+        } else {
+            pageMap.write(pgno, compressed, len);
+        }
+    }
+
+    /**
+     * 从映射表指向的位置读出页面并解压
+     *
+     * @param pgno 页号
+     * @param data 读出的页面数据
+     */
+    private void readCompressed(int pgno, byte[] data) {
+        byte[] stored = pageMap.read(pgno);
+        if (stored == null) {
+            Arrays.fill(data, (byte) 0);                    // 还没写过的页面，全部为 0
+        } else if (stored.length == pageSize) {
+            System.arraycopy(stored, 0, data, 0, pageSize);
+        } else if (LZCodec.decompress(stored, 0, stored.length, data) != pageSize) {
+            Panic.panic(Error.BadPageFileException);
         }
     }
 
@@ -163,19 +400,44 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      * @param maxPgno
      */
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        if (bufferPool != null) {
+            bufferPool.truncate(maxPgno);
+        }
+        if (pageMap != null) {
+            pageMap.truncate(maxPgno);
+            pageNumbers.set(maxPgno);
+            return;
+        }
+        readAhead.clear();
+        extentLock.lock();
         try {
-            file.setLength(size);
+            file.setLength(pageOffset(maxPgno + 1));
+            allocatedPages = maxPgno;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            extentLock.unlock();
         }
         pageNumbers.set(maxPgno);
     }
 
-    // 调用上一章中的 close() 方法关闭缓存
+    // 调用上一章中的 close() 方法关闭缓存，关闭前截掉预先扩展但没有用上的部分
     @Override
     public void close() {
+        if (pageMap == null) {
+            try {
+                file.setLength(pageOffset(pageNumbers.get() + 1));
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
+        if (pageMap != null) {
+            pageMap.close();
+        }
+        if (readAhead != null) {
+            readAhead.close();
+        }
         try {
             fc.close();
             file.close();
@@ -193,14 +455,88 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getUsableSize() {
+        return checksum ? pageSize - PageTrailer.SIZE : pageSize;
+    }
+
+    public boolean hasChecksum() {
+        return checksum;
+    }
+
+    public void beginRecovery() {
+        tornPages.set(0);
+        recovering = true;
+    }
+
+    public int endRecovery() {
+        recovering = false;
+        return tornPages.get();
+    }
+
+    // 预读进来的页数
+    public long readAheadPages() {
+        return readAhead == null ? 0 : readAhead.prefetchedPages();
+    }
+
+    // 预读进来之后确实被访问到的页数
+    public long readAheadHits() {
+        return readAhead == null ? 0 : readAhead.hitPages();
+    }
+
+    // 预读命中率，没有预读过时为 0
+    public double readAheadHitRate() {
+        long pages = readAheadPages();
+        return pages == 0 ? 0 : (double) readAheadHits() / pages;
+    }
+
     /**
      * 计算指定页面的偏移量
      *
      * @param pgno 页面编号
      * @return 页面的偏移量
      */
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE; //  页号从1开始
+    private long pageOffset(int pgno) {
+        return (long) (pgno - 1) * pageSize; //  页号从1开始
+    }
+
+    /**
+     * 打开数据库文件时，读出第一页的开头，里面记录了页面大小和格式标志
+     * 压缩模式下第一页是原样存放的，同样可以直接读开头
+     *
+     * @return 第一页开头的数据，空文件全部为 0
+     */
+    static byte[] loadPageOneHead(FileChannel fc, PageMap pageMap) {
+        byte[] head = new byte[PageOne.HEAD_SIZE];
+        if (pageMap != null) {
+            byte[] stored = pageMap.read(1);
+            if (stored != null) {
+                System.arraycopy(stored, 0, head, 0, head.length);
+            }
+        } else {
+            try {
+                fc.read(ByteBuffer.wrap(head), 0);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        return head;
+    }
+
+    /**
+     * 从第一页的开头读出页面大小
+     *
+     * @return 页面大小，空文件返回默认页面大小
+     */
+    static int loadPageSize(byte[] head) {
+        int pageSize = PageOne.getPageSize(head);
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return pageSize;
     }
 
 }
\ No newline at end of file
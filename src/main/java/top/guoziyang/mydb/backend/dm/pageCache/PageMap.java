@@ -0,0 +1,347 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 压缩模式下的页面映射表，保存在 .pmap 文件中，记录每个页面压缩后存放在 .db 文件中的位置：
+ * [Magic] [PageNumber] [Entry1] [Entry2] ... [EntryN]
+ * Magic 4字节，PageNumber 4字节，数据库文件的页面总数
+ * EntryI 12字节，第 I 页的 [Offset 8字节] [Length 4字节]，Length 为 0 表示该页还没写过，
+ * 等于页面大小表示压不下来、按原样存放。
+ *
+ * .db 文件按 ALLOC_UNIT 为单位分配空间。页面写回时总是写到一块新的空间（写时复制），
+ * 映射表在 force() 时先刷数据、再写映射、再刷映射，旧的空间要等新映射落盘之后才回收，
+ * 所以崩溃时磁盘上的映射要么指向旧页面，要么指向新页面，都是完整的，之后的修改由日志重做。
+ * 空闲空间只在内存中维护，打开时根据映射表重新计算。
+ * 锁只保护映射和空闲空间，读写 .db 文件都在锁外进行：读的页面不在缓存中，不会同时被写；
+ * 同一页面的写回由 PageCacheImpl 串行，新空间在映射更新之前不会被别人看到。
+ */
+class PageMap {
+    static final String MAP_SUFFIX = ".pmap";
+
+    private static final int MAGIC = 0x504D4150;
+    private static final int ALLOC_UNIT = 512;
+    private static final int MAX_UNITS = PageCache.MAX_PAGE_SIZE / ALLOC_UNIT;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_PAGE_NUMBER = OF_MAGIC + 4;
+    private static final int HEADER_SIZE = OF_PAGE_NUMBER + 4;
+    private static final int OF_ENTRY_OFFSET = 0;
+    private static final int OF_ENTRY_LENGTH = OF_ENTRY_OFFSET + 8;
+    private static final int ENTRY_SIZE = OF_ENTRY_LENGTH + 4;
+
+    private RandomAccessFile file;
+    private FileChannel mapFc;                      // .pmap
+    private FileChannel dataFc;                     // .db
+    private Lock lock;
+
+    private int pageNumber;
+    private long[] offsets;                         // 下标为页号
+    private int[] lengths;
+    private long dataEnd;                           // .db 文件已分配空间的末尾
+
+    private Deque<Long>[] freeLists;                // 下标为空闲块的单元数
+    private List<long[]> pendingFree;               // 等映射落盘后才能回收的空间 [offset, units]
+    private TreeSet<Integer> dirtyEntries;
+    private boolean headerDirty;
+
+    static boolean exists(String path) {
+        return new File(path + MAP_SUFFIX).exists();
+    }
+
+    static PageMap create(String path, FileChannel dataFc) {
+        File f = new File(path + MAP_SUFFIX);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        PageMap map = new PageMap(f, dataFc);
+        map.headerDirty = true;
+        map.force();
+        return map;
+    }
+
+    static PageMap open(String path, FileChannel dataFc) {
+        File f = new File(path + MAP_SUFFIX);
+        if(!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        PageMap map = new PageMap(f, dataFc);
+        map.load();
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PageMap(File f, FileChannel dataFc) {
+        try {
+            file = new RandomAccessFile(f, "rw");
+            mapFc = file.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        this.dataFc = dataFc;
+        this.lock = new ReentrantLock();
+        this.offsets = new long[16];
+        this.lengths = new int[16];
+        this.freeLists = new Deque[MAX_UNITS + 1];
+        for (int i = 1; i <= MAX_UNITS; i++) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+        this.pendingFree = new ArrayList<>();
+        this.dirtyEntries = new TreeSet<>();
+    }
+
+    // 读入映射表，并把已分配空间之间的空隙放进空闲链表
+    private void load() {
+        try {
+            long length = mapFc.size();
+            if(length < HEADER_SIZE) {
+                Panic.panic(Error.BadPageFileException);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            mapFc.read(header, 0);
+            if(header.getInt(OF_MAGIC) != MAGIC) {
+                Panic.panic(Error.BadPageFileException);
+            }
+            pageNumber = header.getInt(OF_PAGE_NUMBER);
+            if(length < HEADER_SIZE + (long) pageNumber * ENTRY_SIZE) {
+                Panic.panic(Error.BadPageFileException);
+            }
+            ByteBuffer entries = ByteBuffer.allocate(pageNumber * ENTRY_SIZE);
+            while(entries.hasRemaining()) {
+                if(mapFc.read(entries, HEADER_SIZE + entries.position()) < 0) break;
+            }
+            ensureCapacity(pageNumber);
+            for (int pgno = 1; pgno <= pageNumber; pgno++) {
+                int pos = (pgno - 1) * ENTRY_SIZE;
+                offsets[pgno] = entries.getLong(pos + OF_ENTRY_OFFSET);
+                lengths[pgno] = entries.getInt(pos + OF_ENTRY_LENGTH);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        long[][] used = new long[pageNumber][];
+        int n = 0;
+        for (int pgno = 1; pgno <= pageNumber; pgno++) {
+            if(lengths[pgno] != 0) {
+                used[n++] = new long[] {offsets[pgno], units(lengths[pgno])};
+            }
+        }
+        Arrays.sort(used, 0, n, (a, b) -> Long.compare(a[0], b[0]));
+        long pos = 0;
+        for (int i = 0; i < n; i++) {
+            addFree(pos, (used[i][0] - pos) / ALLOC_UNIT);
+            pos = Math.max(pos, used[i][0] + used[i][1] * ALLOC_UNIT);
+        }
+        dataEnd = pos;
+    }
+
+    int pageNumber() {
+        lock.lock();
+        try {
+            return pageNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读出某页存放在 .db 文件中的内容
+     *
+     * @return 该页还没写过时返回 null
+     */
+    byte[] read(int pgno) {
+        long offset;
+        int length;
+        lock.lock();
+        try {
+            if(pgno > pageNumber || lengths[pgno] == 0) {
+                return null;
+            }
+            offset = offsets[pgno];
+            length = lengths[pgno];
+        } finally {
+            lock.unlock();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try {
+            while(buf.hasRemaining()) {
+                if(dataFc.read(buf, offset + buf.position()) < 0) {
+                    Panic.panic(Error.BadPageFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
+    }
+
+    /**
+     * 把某页的内容写到一块新分配的空间中，不刷盘，映射在 force() 时才写入磁盘
+     */
+    void write(int pgno, byte[] data, int len) {
+        long offset;
+        lock.lock();
+        try {
+            offset = allocate(units(len));
+        } finally {
+            lock.unlock();
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+            while(buf.hasRemaining()) {
+                dataFc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        lock.lock();
+        try {
+            ensureCapacity(pgno);
+            if(pgno <= pageNumber && lengths[pgno] != 0) {
+                pendingFree.add(new long[] {offsets[pgno], units(lengths[pgno])});
+            }
+            offsets[pgno] = offset;
+            lengths[pgno] = len;
+            dirtyEntries.add(pgno);
+            if(pgno > pageNumber) {
+                // 中间还没写过的页面也要写一次空映射，覆盖掉截断之前残留的旧映射
+                for (int i = pageNumber + 1; i < pgno; i++) {
+                    dirtyEntries.add(i);
+                }
+                pageNumber = pgno;
+                headerDirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 删除 maxPgno 后面的页面，并立即落盘
+    void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            // 新页面的映射还没落盘就崩溃时，日志里的页号可能超过映射表记录的页数
+            ensureCapacity(maxPgno);
+            for (int pgno = maxPgno + 1; pgno <= pageNumber; pgno++) {
+                if(lengths[pgno] != 0) {
+                    pendingFree.add(new long[] {offsets[pgno], units(lengths[pgno])});
+                }
+                lengths[pgno] = 0;
+                dirtyEntries.remove(pgno);
+            }
+            for (int pgno = pageNumber + 1; pgno <= maxPgno; pgno++) {
+                dirtyEntries.add(pgno);                 // 同 write()，覆盖掉残留的旧映射
+            }
+            pageNumber = maxPgno;
+            headerDirty = true;
+        } finally {
+            lock.unlock();
+        }
+        force();
+    }
+
+    /**
+     * 先刷数据文件，再写入变化的映射并刷盘，最后回收被替换下来的旧空间
+     */
+    void force() {
+        lock.lock();
+        try {
+            dataFc.force(false);
+            for (int pgno : dirtyEntries) {
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+                entry.putLong(OF_ENTRY_OFFSET, offsets[pgno]);
+                entry.putInt(OF_ENTRY_LENGTH, lengths[pgno]);
+                mapFc.write(entry, HEADER_SIZE + (long) (pgno - 1) * ENTRY_SIZE);
+            }
+            if(headerDirty) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(OF_MAGIC, MAGIC);
+                header.putInt(OF_PAGE_NUMBER, pageNumber);
+                mapFc.write(header, 0);
+            }
+            if(!dirtyEntries.isEmpty() || headerDirty) {
+                mapFc.force(false);
+            }
+            dirtyEntries.clear();
+            headerDirty = false;
+            for (long[] free : pendingFree) {
+                addFree(free[0], free[1]);
+            }
+            pendingFree.clear();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        force();
+        try {
+            mapFc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 优先使用大小正好的空闲块，其次拆分更大的空闲块，都没有时从文件末尾分配
+    private long allocate(int units) {
+        for (int i = units; i <= MAX_UNITS; i++) {
+            Long offset = freeLists[i].poll();
+            if(offset != null) {
+                if(i > units) {
+                    freeLists[i - units].push(offset + (long) units * ALLOC_UNIT);
+                }
+                return offset;
+            }
+        }
+        long offset = dataEnd;
+        dataEnd += (long) units * ALLOC_UNIT;
+        return offset;
+    }
+
+    private void addFree(long offset, long units) {
+        while(units > 0) {
+            int n = (int) Math.min(units, MAX_UNITS);
+            freeLists[n].push(offset);
+            offset += (long) n * ALLOC_UNIT;
+            units -= n;
+        }
+    }
+
+    private void ensureCapacity(int pgno) {
+        if(pgno < offsets.length) {
+            return;
+        }
+        int cap = Math.max(offsets.length * 2, pgno + 1);
+        offsets = Arrays.copyOf(offsets, cap);
+        lengths = Arrays.copyOf(lengths, cap);
+    }
+
+    private static int units(int len) {
+        return (len + ALLOC_UNIT - 1) / ALLOC_UNIT;
+    }
+}
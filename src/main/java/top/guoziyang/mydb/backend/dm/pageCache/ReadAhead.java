@@ -0,0 +1,230 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 顺序预读
+ * 连续 TRIGGER 次未命中的页号依次递增时，认为在顺序扫描，后台线程一次读入后面 WINDOW_PAGES 页放进预读窗口，
+ * 之后的未命中先在窗口中找，找到就直接拷贝，不再读磁盘；扫描继续向前推进时，提前半个窗口发起下一次预读。
+ * 窗口里的页面被取走一次之后就失效，之后以缓存中的页面为准；页面写回磁盘时，窗口中对应的页面也会失效，
+ * 窗口在读盘之前就已经登记，所以读盘期间发生的写回同样会让它失效，不会取到旧数据。
+ * 只用于不压缩的数据库，压缩后页面在文件中不连续。
+ */
+class ReadAhead {
+    private static final int TRIGGER = 3;               // 连续几次顺序未命中后开始预读
+    private static final int WINDOW_PAGES = 32;         // 一次预读的页数
+    private static final int MAX_WINDOWS = 4;           // 最多保留的窗口数，超过时丢弃最早的窗口
+
+    private static class Window {
+        final int start;
+        final int count;
+        final byte[] data;
+        final boolean[] valid;          // 读盘完成、还没被取走也没过时的页面
+        final boolean[] stale;          // 登记之后被写回过的页面
+        final CountDownLatch loaded = new CountDownLatch(1);
+
+        Window(int start, int count, int pageSize) {
+            this.start = start;
+            this.count = count;
+            this.data = new byte[count * pageSize];
+            this.valid = new boolean[count];
+            this.stale = new boolean[count];
+        }
+
+        boolean covers(int pgno) {
+            return pgno >= start && pgno < start + count;
+        }
+    }
+
+    private final FileChannel fc;
+    private final int pageSize;
+    private final IntSupplier pageNumber;
+    private final ExecutorService loader;
+    private final Lock lock;
+    private final Deque<Window> windows;
+
+    private int lastMiss;                   // 上一次未命中的页号
+    private int run;                        // 连续顺序未命中的次数
+    private int nextAhead;                  // 当前顺序扫描中下一个还没有预读的页号
+
+    private final AtomicLong prefetched;    // 预读进窗口的页数
+    private final AtomicLong hits;          // 从窗口中取走的页数
+
+    ReadAhead(FileChannel fc, int pageSize, IntSupplier pageNumber) {
+        this.fc = fc;
+        this.pageSize = pageSize;
+        this.pageNumber = pageNumber;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "page-read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+        this.lock = new ReentrantLock();
+        this.windows = new ArrayDeque<>();
+        this.prefetched = new AtomicLong();
+        this.hits = new AtomicLong();
+    }
+
+    /**
+     * 页面未命中缓存时调用，记录访问顺序，必要时发起预读，并尝试从窗口中取出页面
+     *
+     * @return 页面在窗口中时拷贝到 dst 并返回 true
+     */
+    boolean take(int pgno, byte[] dst) {
+        Window w;
+        lock.lock();
+        try {
+            track(pgno);
+            w = find(pgno);
+        } finally {
+            lock.unlock();
+        }
+        if(w == null) {
+            return false;
+        }
+        try {
+            w.loaded.await();                // 正在读盘的窗口，等它读完，不再重复读
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        lock.lock();
+        try {
+            int i = pgno - w.start;
+            if(!windows.contains(w) || !w.valid[i]) {
+                return false;
+            }
+            w.valid[i] = false;
+            System.arraycopy(w.data, i * pageSize, dst, 0, pageSize);
+        } finally {
+            lock.unlock();
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // 页面写回磁盘后调用，窗口中该页的内容已经过时
+    void invalidate(int pgno) {
+        lock.lock();
+        try {
+            for (Window w : windows) {
+                if(w.covers(pgno)) {
+                    w.valid[pgno - w.start] = false;
+                    w.stale[pgno - w.start] = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 删除页面后调用，丢弃所有窗口
+    void clear() {
+        lock.lock();
+        try {
+            windows.clear();
+            run = 0;
+            nextAhead = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 不中断后台线程，中断会让正在读盘的文件通道被关闭
+    void close() {
+        loader.shutdown();
+        clear();
+    }
+
+    long prefetchedPages() {
+        return prefetched.get();
+    }
+
+    long hitPages() {
+        return hits.get();
+    }
+
+    // 更新顺序访问的统计，顺序扫描的前方不足半个窗口还没预读时，发起下一次预读
+    private void track(int pgno) {
+        if(pgno == lastMiss + 1) {
+            run ++;
+        } else {
+            run = 1;
+            nextAhead = 0;
+        }
+        lastMiss = pgno;
+        if(run < TRIGGER) {
+            return;
+        }
+        if(nextAhead <= pgno) {
+            nextAhead = pgno + 1;
+        }
+        if(nextAhead - pgno > WINDOW_PAGES / 2) {
+            return;
+        }
+        int count = Math.min(WINDOW_PAGES, pageNumber.getAsInt() - nextAhead + 1);
+        if(count <= 0) {
+            return;
+        }
+        Window w = new Window(nextAhead, count, pageSize);
+        nextAhead += count;
+        if(windows.size() == MAX_WINDOWS) {
+            windows.pollFirst();
+        }
+        windows.addLast(w);
+        loader.execute(() -> load(w));
+    }
+
+    private Window find(int pgno) {
+        for (Window w : windows) {
+            if(w.covers(pgno)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    // 一次读入整个窗口，写回期间被标记失效的页面保持失效
+    private void load(Window w) {
+        ByteBuffer buf = ByteBuffer.wrap(w.data);
+        long offset = (long) (w.start - 1) * pageSize;
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) <= 0) break;
+            }
+        } catch (IOException e) {
+            // 通道被关闭时放弃预读，其他错误和普通读盘一样处理
+            if(fc.isOpen()) {
+                Panic.panic(e);
+            }
+        }
+        int full = buf.position() / pageSize;
+        lock.lock();
+        try {
+            int n = 0;
+            for (int i = 0; i < full; i++) {
+                if(!w.stale[i]) {
+                    w.valid[i] = true;
+                    n ++;
+                }
+            }
+            prefetched.addAndGet(n);
+        } finally {
+            lock.unlock();
+            w.loaded.countDown();
+        }
+    }
+}
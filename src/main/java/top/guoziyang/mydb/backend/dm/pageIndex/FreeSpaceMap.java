@@ -0,0 +1,105 @@
+package top.guoziyang.mydb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 持久化的空闲空间表，保存在 .fsm 文件中，避免每次启动都把所有数据页读一遍来重建页面索引。
+ * 文件格式：
+ * [PageNumber] [FreeSpace2] [FreeSpace3] ... [FreeSpaceN]
+ * PageNumber 4字节，保存时数据库文件的页面总数
+ * FreeSpaceI 2字节无符号数，第 I 页的空闲空间（第一页是校验页，不记录）
+ * 运行期间空闲空间只在内存中的 PageIndex 里增量维护，正常关闭时整体写回（先写临时文件再替换，和 Booter 一样）；
+ * 只有上次正常关闭（第一页校验通过）并且页面总数对得上时才使用，否则按原来的方式扫描所有页面重建。
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+
+    private static final int OF_PAGE_NUMBER = 0;
+    private static final int OF_DATA = OF_PAGE_NUMBER + 4;
+
+    private String path;
+
+    // 新建数据库时，清理掉同路径下可能残留的旧空闲空间表
+    public static FreeSpaceMap create(String path) {
+        new File(path + FSM_SUFFIX).delete();
+        return open(path);
+    }
+
+    public static FreeSpaceMap open(String path) {
+        new File(path + FSM_TMP_SUFFIX).delete();
+        return new FreeSpaceMap(path);
+    }
+
+    private FreeSpaceMap(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 从 .fsm 文件读入所有页面的空闲空间并填入页面索引
+     *
+     * @param pIndex     页面索引
+     * @param pageNumber 当前数据库文件的页面总数
+     * @return 文件不存在或者与数据库文件不匹配时返回 false，此时需要重新扫描页面
+     */
+    public boolean load(PageIndex pIndex, int pageNumber) {
+        File f = new File(path + FSM_SUFFIX);
+        if(!f.exists()) {
+            return false;
+        }
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(raw.length < OF_DATA) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        int savedNumber = buf.getInt(OF_PAGE_NUMBER);
+        if(savedNumber != pageNumber || raw.length != OF_DATA + 2 * Math.max(pageNumber - 1, 0)) {
+            return false;
+        }
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            int freeSpace = buf.getShort(OF_DATA + 2 * (pgno - 2)) & 0xFFFF;
+            pIndex.add(pgno, freeSpace);
+        }
+        return true;
+    }
+
+    /**
+     * 将页面索引中所有页面的空闲空间写回 .fsm 文件，在正常关闭时调用，此时不应该有页面被选走
+     */
+    public void save(PageIndex pIndex, int pageNumber) {
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + 2 * Math.max(pageNumber - 1, 0));
+        buf.putInt(OF_PAGE_NUMBER, pageNumber);
+        List<PageInfo> infos = pIndex.snapshot();
+        for (PageInfo pi : infos) {
+            if(pi.pgno >= 2 && pi.pgno <= pageNumber) {
+                buf.putShort(OF_DATA + 2 * (pi.pgno - 2), (short) pi.freeSpace);
+            }
+        }
+
+        File tmp = new File(path + FSM_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf.array());
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
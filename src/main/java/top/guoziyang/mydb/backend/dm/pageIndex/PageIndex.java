@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -10,76 +12,140 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 /**
  * 页面索引，缓存了每一页的空闲空间信息。
  * 实现原理：
- *      维护一个41大小的List代表不同空闲大小所在的区间，每个List[i] 拉出一条List存在这个区间上有空闲空间的所有页面信息；
+ *      维护一个41大小的队列数组代表不同空闲大小所在的区间，每个队列存放在这个区间上有空闲空间的所有页面信息；
  *      数据库启动的时候，先遍历所有页面信息，获取每个数据页空闲空间的大小并记录在页面索引中。
+ * 并发：
+ *      页面索引被拆成多个分片（stripe），每个分片有自己的锁和一组区间队列。
+ *      线程优先从自己的分片取页面，用完后也放回自己的分片，这样并发插入的线程各自写自己的一批页面，不会争抢同一把锁和同一个页面；
+ *      自己的分片没有合适的页面时，再依次到其他分片去找。
  * 目的：
  *      用于在上层模块进行插入操作时，能够快速找到一个合适空间的页面，而无需从磁盘或者缓存中检查每一个页面的信息。
  */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    // 每个区间的内存大小
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    // 分片个数，取不小于 CPU 核数的 2 的幂，最多 64 个
+    private static final int STRIPES_NO = stripesNo();
 
-    private Lock lock;
-    // 维护一个页面信息的 List数组，实现页面索引
-    // lists 是一个数组，数组中的每一个元素是一个 ArrayList 列表， 每个列表中保存了多个 PageInfo
-    // lists 中第 i 个元素表示的是空余容量还剩 i 个区间的页面的集合
-    private List<PageInfo>[] lists;
+    private Stripe[] stripes;
+    // 每个区间的内存大小，由页面大小决定
+    private int threshold;
+
+    // 一个分片：一把锁和一组区间队列，lists 中第 i 个队列表示的是空余容量还剩 i 个区间的页面的集合
+    private static class Stripe {
+        final Lock lock = new ReentrantLock();
+        final Deque<PageInfo>[] lists;
+
+        @SuppressWarnings("unchecked")
+        Stripe() {
+            lists = new Deque[INTERVALS_NO+1];
+            for (int i = 0; i < INTERVALS_NO+1; i++) {
+                lists[i] = new ArrayDeque<>();
+            }
+        }
+    }
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
-        for (int i = 0; i < INTERVALS_NO+1; i++) {
-            lists[i] = new ArrayList<>();
+        this(PageCache.PAGE_SIZE);
+    }
+
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        stripes = new Stripe[STRIPES_NO];
+        for (int i = 0; i < STRIPES_NO; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int stripesNo() {
+        int n = 1;
+        while(n < Runtime.getRuntime().availableProcessors() && n < 64) {
+            n <<= 1;
         }
+        return n;
+    }
+
+    // 当前线程对应的分片
+    private static int homeStripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES_NO - 1));
     }
 
     /**
      * 从 PageIndex 中获取页面也很简单，算出区间号，直接取即可
+     * 先在当前线程的分片中找，找不到再到其他分片中找
      * @param spaceSize 需要的空闲空间大小
      * @return 第一个满足的页面信息
      */
     public PageInfo select(int spaceSize) {
-        lock.lock();
+        // 计算出满足请求空间的区间号
+        int number = spaceSize / threshold;
+        // 因为区间从1开始，所以要加1操作
+        if(number < INTERVALS_NO) number++;
+
+        int home = homeStripe();
+        for (int i = 0; i < STRIPES_NO; i++) {
+            PageInfo pi = select(stripes[(home + i) & (STRIPES_NO - 1)], number);
+            if(pi != null) {
+                return pi;
+            }
+        }
+        return null;
+    }
+
+    private PageInfo select(Stripe stripe, int number) {
+        stripe.lock.lock();
         try {
-            // 计算出满足请求空间的区间号
-            int number = spaceSize / THRESHOLD;
-            // 因为区间从1开始，所以要加1操作
-            if(number < INTERVALS_NO) number++;
             // 循环查找大于等于请求空间的页面
             while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    // 当前区间没有空余页面，后移一个区间
-                    number++;
-                    continue;
+                // 从队头取出第一个满足的页面信息PageInfo
+                PageInfo pi = stripe.lists[number].pollFirst();
+                if(pi != null) {
+                    return pi;
                 }
-                // 从页面索引List中移除第一个满足的页面信息PageInfo
-                return lists[number].remove(0);
+                // 当前区间没有空余页面，后移一个区间
+                number++;
             }
             return null;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
     /**
      * 插入页面操作
      * 前面被选择的页，会直接从 PageIndex 中移除，这意味着，同一个页面是不允许并发写的。
-     * 在上层模块使用完这个页面后，需要将其重新插入 PageIndex
+     * 在上层模块使用完这个页面后，需要将其重新插入 PageIndex，页面会放回当前线程的分片，下次插入时优先被这个线程选中
      * @param pgno 页号
      * @param freeSpace 空闲空间大小
      */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
+        // 计算空闲空间的区间号
+        int number = freeSpace / threshold;
+        Stripe stripe = stripes[homeStripe()];
+        stripe.lock.lock();
         try {
-            // 计算空闲空间的区间号
-            int number = freeSpace / THRESHOLD;
-            // 插入页面索引列表
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            // 插入页面索引队列
+            stripe.lists[number].addLast(new PageInfo(pgno, freeSpace));
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * 获取当前索引中所有页面信息的拷贝，用于持久化空闲空间表
+     */
+    public List<PageInfo> snapshot() {
+        List<PageInfo> infos = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Deque<PageInfo> list : stripe.lists) {
+                    infos.addAll(list);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
         }
+        return infos;
     }
 }
@@ -21,7 +21,7 @@ import javax.swing.undo.UndoableEdit;
  * B+ 树索引
  * IM 对上层模块主要提供两种能力：插入索引 和 搜索节点。
  */
-public class BPlusTree {
+public class BPlusTree implements Index {
     DataManager dm;
     long bootUid;
     Lock bootLock;
@@ -101,10 +101,12 @@ public class BPlusTree {
         }
     }
 
+    @Override
     public List<Long> search(long key) throws Exception {
         return searchRange(key, key);
     }
 
+    @Override
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
@@ -123,6 +125,25 @@ public class BPlusTree {
         return uids;
     }
 
+    /**
+     * 从最左边的叶子开始沿兄弟指针逐个叶子遍历，不会把整棵树的 UID 都放进内存。
+     * 叶子分裂只会把索引项搬到右边新建的兄弟中，沿兄弟指针仍然能遍历到
+     */
+    @Override
+    public void scan(UidVisitor visitor) throws Exception {
+        long leafUid = searchLeaf(rootUid(), Long.MIN_VALUE);
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafSearchRangeRes res = leaf.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+            leaf.release();
+            for (long uid : res.uids) {
+                visitor.visit(uid);
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    @Override
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
         InsertRes res = insert(rootUid, uid, key);
@@ -177,6 +198,7 @@ public class BPlusTree {
         }
     }
 
+    @Override
     public void close() {
         bootDataItem.release();
     }
@@ -0,0 +1,242 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 哈希索引的桶结构如下：
+ * 头部信息：
+ * [LocalDepth][KeyNumber][OverflowUid]
+ * 1byte       2byte      8byte
+ * 槽位信息：
+ * [Key0][Uid0][Key1][Uid1]...[KeyN][UidN]
+ * 8byte 8byte
+ * LocalDepth 为桶的局部深度，桶内所有 key 的哈希值低 LocalDepth 位都相同；
+ * OverflowUid 是溢出桶的 UID，当桶无法再分裂（目录达到最大深度或大量重复 key）时，新的索引项会写入溢出桶链。
+ * 槽位没有顺序，插入时直接追加在末尾。
+ */
+public class Bucket {
+    static final int LOCAL_DEPTH_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = LOCAL_DEPTH_OFFSET + 1;
+    static final int OVERFLOW_OFFSET = NO_KEYS_OFFSET + 2;
+
+    static final int BUCKET_HEADER_SIZE = OVERFLOW_OFFSET + 8;
+    static final int BUCKET_CAPACITY = 64;
+    static final int BUCKET_SIZE = BUCKET_HEADER_SIZE + (2 * 8) * BUCKET_CAPACITY;
+
+    HashIndex index;
+    DataItem dataItem;
+    SubArray raw;
+    long uid;
+
+    static void setRawLocalDepth(SubArray raw, int depth) {
+        raw.raw[raw.start + LOCAL_DEPTH_OFFSET] = (byte) depth;
+    }
+
+    static int getRawLocalDepth(SubArray raw) {
+        return raw.raw[raw.start + LOCAL_DEPTH_OFFSET];
+    }
+
+    static void setRawNoKeys(SubArray raw, int noKeys) {
+        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+    }
+
+    static int getRawNoKeys(SubArray raw) {
+        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+    }
+
+    static void setRawOverflow(SubArray raw, long overflow) {
+        System.arraycopy(Parser.long2Byte(overflow), 0, raw.raw, raw.start + OVERFLOW_OFFSET, 8);
+    }
+
+    static long getRawOverflow(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + OVERFLOW_OFFSET, raw.start + OVERFLOW_OFFSET + 8));
+    }
+
+    static void setRawKthKey(SubArray raw, long key, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2);
+        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    }
+
+    static long getRawKthKey(SubArray raw, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2);
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    static void setRawKthUid(SubArray raw, long uid, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2) + 8;
+        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    }
+
+    static long getRawKthUid(SubArray raw, int kth) {
+        int offset = raw.start + BUCKET_HEADER_SIZE + kth * (8 * 2) + 8;
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    /**
+     * 生成一个空桶的数据
+     *
+     * @param localDepth 局部深度
+     * @return
+     */
+    static byte[] newBucketRaw(int localDepth) {
+        SubArray raw = new SubArray(new byte[BUCKET_SIZE], 0, BUCKET_SIZE);
+        setRawLocalDepth(raw, localDepth);
+        setRawNoKeys(raw, 0);
+        setRawOverflow(raw, 0);
+        return raw.raw;
+    }
+
+    static Bucket loadBucket(HashIndex index, long uid) throws Exception {
+        DataItem di = index.dm.read(uid);
+        assert di != null;
+        Bucket b = new Bucket();
+        b.index = index;
+        b.dataItem = di;
+        b.raw = di.data();
+        b.uid = uid;
+        return b;
+    }
+
+    public void release() {
+        dataItem.release();
+    }
+
+    public int getLocalDepth() {
+        dataItem.rLock();
+        try {
+            return getRawLocalDepth(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getOverflow() {
+        dataItem.rLock();
+        try {
+            return getRawOverflow(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class BucketSearchRes {
+        List<Long> uids;
+        long overflowUid;
+    }
+
+    /**
+     * 在当前桶中查找 key 落在 [leftKey, rightKey] 中的所有索引项，并返回溢出桶的 UID 方便继续查找
+     */
+    public BucketSearchRes searchRange(long leftKey, long rightKey) {
+        dataItem.rLock();
+        try {
+            BucketSearchRes res = new BucketSearchRes();
+            res.uids = new ArrayList<>();
+            int noKeys = getRawNoKeys(raw);
+            for (int i = 0; i < noKeys; i++) {
+                long ik = getRawKthKey(raw, i);
+                if (ik >= leftKey && ik <= rightKey) {
+                    res.uids.add(getRawKthUid(raw, i));
+                }
+            }
+            res.overflowUid = getRawOverflow(raw);
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 向桶中追加一个索引项
+     *
+     * @return 桶已满则返回 false
+     */
+    public boolean insert(long key, long uid) {
+        dataItem.before();
+        boolean success = false;
+        try {
+            int noKeys = getRawNoKeys(raw);
+            if (noKeys == BUCKET_CAPACITY) {
+                return false;
+            }
+            setRawKthKey(raw, key, noKeys);
+            setRawKthUid(raw, uid, noKeys);
+            setRawNoKeys(raw, noKeys + 1);
+            success = true;
+            return true;
+        } finally {
+            if (success) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 挂上一个新的溢出桶，新桶插入在当前桶和原溢出链之间
+     */
+    public void linkOverflow(long overflowUid) {
+        dataItem.before();
+        setRawOverflow(raw, overflowUid);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    /**
+     * 分裂当前桶：哈希值第 LocalDepth 位为 1 的索引项搬到新桶，两个桶的局部深度都加一。
+     * 如果所有索引项都落在同一侧（例如全是重复 key），分裂不会腾出空间，此时不修改当前桶
+     *
+     * @return 新桶的 UID，不分裂时返回 0
+     */
+    public long split() throws Exception {
+        dataItem.before();
+        boolean success = false;
+        try {
+            int depth = getRawLocalDepth(raw);
+            int noKeys = getRawNoKeys(raw);
+            int toMove = 0;
+            for (int i = 0; i < noKeys; i++) {
+                if (((HashIndex.hash(getRawKthKey(raw, i)) >>> depth) & 1) == 1) {
+                    toMove++;
+                }
+            }
+            if (toMove == 0 || toMove == noKeys) {
+                return 0;
+            }
+            SubArray newRaw = new SubArray(newBucketRaw(depth + 1), 0, BUCKET_SIZE);
+            int kept = 0, moved = 0;
+            for (int i = 0; i < noKeys; i++) {
+                long ik = getRawKthKey(raw, i);
+                long iu = getRawKthUid(raw, i);
+                if (((HashIndex.hash(ik) >>> depth) & 1) == 1) {
+                    setRawKthKey(newRaw, ik, moved);
+                    setRawKthUid(newRaw, iu, moved);
+                    moved++;
+                } else {
+                    setRawKthKey(raw, ik, kept);
+                    setRawKthUid(raw, iu, kept);
+                    kept++;
+                }
+            }
+            setRawNoKeys(newRaw, moved);
+            long newUid = index.dm.insert(TransactionManagerImpl.SUPER_XID, newRaw.raw);
+            setRawNoKeys(raw, kept);
+            setRawLocalDepth(raw, depth + 1);
+            success = true;
+            return newUid;
+        } finally {
+            if (success) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.im.Bucket.BucketSearchRes;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 可扩展哈希索引，适用于等值查询
+ * 目录分成两层，根目录存放在一个 DataItem 中，结构如下：
+ * [GlobalDepth][Segment0Uid][Segment1Uid]...[Segment(MAX_SEGMENTS-1)Uid]
+ * 1byte        8byte
+ * 每个目录段也是一个 DataItem，存放 SEGMENT_SLOTS 个桶的 UID：
+ * [Bucket0Uid][Bucket1Uid]...[Bucket(SEGMENT_SLOTS-1)Uid]
+ * 目录共 2^GlobalDepth 项，key 的哈希值低 GlobalDepth 位就是目录下标，第 i 项在第 i / SEGMENT_SLOTS 个目录段中。
+ * 一次等值查找只需要读根目录（常驻缓存）、一个目录段和目标桶（及其溢出链），不需要像 B+ 树一样逐层下降。
+ * 目录不超过一个段时在第 0 段内扩容；超过之后扩容一倍就是复制出同样多的新段，根目录的 UID 不会改变。
+ * 每个 DataItem 都不超过 2K，最小的页面也放得下。
+ * 溢出链不会再分裂：桶的局部深度达到 MAX_GLOBAL_DEPTH，或者桶内索引项无法分开（重复 key）之后，
+ * 新的索引项都挂在溢出链上，这条链上的等值查找退化为线性扫描，链长约为 重复数 / BUCKET_CAPACITY。
+ */
+public class HashIndex implements Index {
+    static final int SEGMENT_BITS = 8;
+    static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    static final int SEGMENT_SIZE = 8 * SEGMENT_SLOTS;
+    static final int MAX_SEGMENTS = 256;
+    static final int MAX_GLOBAL_DEPTH = SEGMENT_BITS + Integer.numberOfTrailingZeros(MAX_SEGMENTS);
+    static final int GLOBAL_DEPTH_OFFSET = 0;
+    static final int DIR_HEADER_SIZE = GLOBAL_DEPTH_OFFSET + 1;
+    static final int DIR_SIZE = DIR_HEADER_SIZE + 8 * MAX_SEGMENTS;
+
+    DataManager dm;
+    long dirUid;
+    DataItem dirDataItem;
+    // 插入可能会分裂桶和扩容目录，查询和插入之间用读写锁隔开
+    Lock rLock;
+    Lock wLock;
+
+    public static long create(DataManager dm) throws Exception {
+        long bucketUid = dm.insert(TransactionManagerImpl.SUPER_XID, Bucket.newBucketRaw(0));
+        SubArray seg = new SubArray(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE);
+        setRawSlot(seg, bucketUid, 0);
+        long segUid = dm.insert(TransactionManagerImpl.SUPER_XID, seg.raw);
+        SubArray dir = new SubArray(new byte[DIR_SIZE], 0, DIR_SIZE);
+        setRawGlobalDepth(dir, 0);
+        setRawKthSegment(dir, segUid, 0);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, dir.raw);
+    }
+
+    public static HashIndex load(long dirUid, DataManager dm) throws Exception {
+        DataItem dirDataItem = dm.read(dirUid);
+        assert dirDataItem != null;
+        HashIndex h = new HashIndex();
+        h.dirUid = dirUid;
+        h.dm = dm;
+        h.dirDataItem = dirDataItem;
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        h.rLock = lock.readLock();
+        h.wLock = lock.writeLock();
+        return h;
+    }
+
+    static void setRawGlobalDepth(SubArray raw, int depth) {
+        raw.raw[raw.start + GLOBAL_DEPTH_OFFSET] = (byte) depth;
+    }
+
+    static int getRawGlobalDepth(SubArray raw) {
+        return raw.raw[raw.start + GLOBAL_DEPTH_OFFSET];
+    }
+
+    static void setRawKthSegment(SubArray raw, long uid, int kth) {
+        int offset = raw.start + DIR_HEADER_SIZE + kth * 8;
+        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    }
+
+    static long getRawKthSegment(SubArray raw, int kth) {
+        int offset = raw.start + DIR_HEADER_SIZE + kth * 8;
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    static void setRawSlot(SubArray seg, long uid, int slot) {
+        int offset = seg.start + slot * 8;
+        System.arraycopy(Parser.long2Byte(uid), 0, seg.raw, offset, 8);
+    }
+
+    static long getRawSlot(SubArray seg, int slot) {
+        int offset = seg.start + slot * 8;
+        return Parser.parseLong(Arrays.copyOfRange(seg.raw, offset, offset + 8));
+    }
+
+    // 目录有 2^depth 项时用到的目录段数
+    private static int noSegments(int depth) {
+        return depth <= SEGMENT_BITS ? 1 : 1 << (depth - SEGMENT_BITS);
+    }
+
+    // 对 key 再做一次混淆，避免自增主键只落在低位
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int dirIndex(long key, int globalDepth) {
+        return (int) (hash(key) & ((1L << globalDepth) - 1));
+    }
+
+    private long bucketOf(long key) throws Exception {
+        int depth = globalDepth();
+        return getSlot(dirIndex(key, depth));
+    }
+
+    private long segmentUid(int kth) {
+        dirDataItem.rLock();
+        try {
+            return getRawKthSegment(dirDataItem.data(), kth);
+        } finally {
+            dirDataItem.rUnLock();
+        }
+    }
+
+    private long getSlot(int i) throws Exception {
+        DataItem seg = dm.read(segmentUid(i >>> SEGMENT_BITS));
+        seg.rLock();
+        try {
+            return getRawSlot(seg.data(), i & (SEGMENT_SLOTS - 1));
+        } finally {
+            seg.rUnLock();
+            seg.release();
+        }
+    }
+
+    @Override
+    public List<Long> search(long key) throws Exception {
+        rLock.lock();
+        try {
+            return searchChain(bucketOf(key), key, key);
+        } finally {
+            rLock.unlock();
+        }
+    }
+
+    /**
+     * 哈希索引不保存 key 的顺序，等值条件走哈希定位，范围条件只能遍历所有桶再过滤
+     */
+    @Override
+    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        if(leftKey == rightKey) {
+            return search(leftKey);
+        }
+        rLock.lock();
+        try {
+            List<Long> uids = new ArrayList<>();
+            for(long bucketUid : allBuckets()) {
+                uids.addAll(searchChain(bucketUid, leftKey, rightKey));
+            }
+            return uids;
+        } finally {
+            rLock.unlock();
+        }
+    }
+
+    /**
+     * 逐条桶链遍历，只在读锁内取出一条桶链中的 UID，交给 visitor 时不持有锁，插入可以穿插进行。
+     * 桶分裂只会把索引项搬到新建的桶中，所以一轮结束后重新读目录，直到没有新出现的桶为止，遍历开始前已有的索引项都不会漏掉
+     */
+    @Override
+    public void scan(UidVisitor visitor) throws Exception {
+        Set<Long> visited = new HashSet<>();
+        while(true) {
+            List<Long> pending = new ArrayList<>();
+            for (long bucketUid : allBuckets()) {
+                if(!visited.contains(bucketUid)) {
+                    pending.add(bucketUid);
+                }
+            }
+            if(pending.isEmpty()) {
+                return;
+            }
+            for (long bucketUid : pending) {
+                List<Long> uids;
+                rLock.lock();
+                try {
+                    uids = searchChain(bucketUid, Long.MIN_VALUE, Long.MAX_VALUE);
+                } finally {
+                    rLock.unlock();
+                }
+                for (long uid : uids) {
+                    visitor.visit(uid);
+                }
+                visited.add(bucketUid);
+            }
+        }
+    }
+
+    private Set<Long> allBuckets() throws Exception {
+        int depth = globalDepth();
+        int slots = Math.min(1 << depth, SEGMENT_SLOTS);
+        Set<Long> buckets = new HashSet<>();
+        for (int k = 0; k < noSegments(depth); k++) {
+            DataItem seg = dm.read(segmentUid(k));
+            seg.rLock();
+            try {
+                SubArray raw = seg.data();
+                for (int i = 0; i < slots; i++) {
+                    buckets.add(getRawSlot(raw, i));
+                }
+            } finally {
+                seg.rUnLock();
+                seg.release();
+            }
+        }
+        return buckets;
+    }
+
+    // 从 key 所在的桶开始的桶链长度，溢出链越长等值查找越慢
+    int chainLength(long key) throws Exception {
+        rLock.lock();
+        try {
+            int length = 0;
+            long bucketUid = bucketOf(key);
+            while(bucketUid != 0) {
+                Bucket b = Bucket.loadBucket(this, bucketUid);
+                bucketUid = b.getOverflow();
+                b.release();
+                length++;
+            }
+            return length;
+        } finally {
+            rLock.unlock();
+        }
+    }
+
+    private List<Long> searchChain(long bucketUid, long leftKey, long rightKey) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        while(bucketUid != 0) {
+            Bucket b = Bucket.loadBucket(this, bucketUid);
+            BucketSearchRes res = b.searchRange(leftKey, rightKey);
+            b.release();
+            uids.addAll(res.uids);
+            bucketUid = res.overflowUid;
+        }
+        return uids;
+    }
+
+    /*
+     * 插入索引项：
+     * 目标桶未满直接追加；桶满且没有溢出链时分裂桶（必要时再把目录扩容一倍）后重试；
+     * 目录已经达到最大深度、桶已经有溢出链，或者分裂时所有索引项都落在同一侧（大量重复 key），就写入溢出链，目录不扩容。
+     */
+    @Override
+    public void insert(long key, long uid) throws Exception {
+        wLock.lock();
+        try {
+            while(true) {
+                long bucketUid = bucketOf(key);
+                Bucket b = Bucket.loadBucket(this, bucketUid);
+                try {
+                    if(b.insert(key, uid)) {
+                        return;
+                    }
+                    int localDepth = b.getLocalDepth();
+                    if(b.getOverflow() != 0 || localDepth == MAX_GLOBAL_DEPTH) {
+                        insertOverflow(b, key, uid);
+                        return;
+                    }
+                    long newUid = b.split();
+                    if(newUid == 0) {
+                        insertOverflow(b, key, uid);
+                        return;
+                    }
+                    if(localDepth == globalDepth()) {
+                        doubleDirectory();
+                    }
+                    redirect(key, newUid, localDepth);
+                } finally {
+                    b.release();
+                }
+            }
+        } finally {
+            wLock.unlock();
+        }
+    }
+
+    // 新的溢出桶总是挂在链头之后，所以只有第一个溢出桶可能还有空位
+    private void insertOverflow(Bucket head, long key, long uid) throws Exception {
+        long first = head.getOverflow();
+        if(first != 0) {
+            Bucket b = Bucket.loadBucket(this, first);
+            try {
+                if(b.insert(key, uid)) {
+                    return;
+                }
+            } finally {
+                b.release();
+            }
+        }
+        SubArray raw = new SubArray(Bucket.newBucketRaw(head.getLocalDepth()), 0, Bucket.BUCKET_SIZE);
+        Bucket.setRawOverflow(raw, head.getOverflow());
+        Bucket.setRawKthKey(raw, key, 0);
+        Bucket.setRawKthUid(raw, uid, 0);
+        Bucket.setRawNoKeys(raw, 1);
+        long newUid = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+        head.linkOverflow(newUid);
+    }
+
+    int globalDepth() {
+        dirDataItem.rLock();
+        try {
+            return getRawGlobalDepth(dirDataItem.data());
+        } finally {
+            dirDataItem.rUnLock();
+        }
+    }
+
+    /*
+     * 目录扩容一倍，新的一半指向与旧的一半相同的桶：
+     * 不超过一个段时在第 0 段内复制前半部分；否则把每个旧段复制成一个新段，再在根目录中挂上新段并修改深度
+     */
+    private void doubleDirectory() throws Exception {
+        int depth = globalDepth();
+        if(depth < SEGMENT_BITS) {
+            DataItem seg = dm.read(segmentUid(0));
+            try {
+                seg.before();
+                SubArray raw = seg.data();
+                int size = 1 << depth;
+                System.arraycopy(raw.raw, raw.start, raw.raw, raw.start + size * 8, size * 8);
+                seg.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                seg.release();
+            }
+            setGlobalDepth(depth + 1, 0, null);
+            return;
+        }
+        int noSegments = noSegments(depth);
+        long[] newSegments = new long[noSegments];
+        for (int k = 0; k < noSegments; k++) {
+            DataItem seg = dm.read(segmentUid(k));
+            byte[] copy;
+            seg.rLock();
+            try {
+                SubArray raw = seg.data();
+                copy = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+            } finally {
+                seg.rUnLock();
+                seg.release();
+            }
+            newSegments[k] = dm.insert(TransactionManagerImpl.SUPER_XID, copy);
+        }
+        setGlobalDepth(depth + 1, noSegments, newSegments);
+    }
+
+    // 在根目录中从第 from 个段开始挂上新段，并修改全局深度，一次写日志
+    private void setGlobalDepth(int depth, int from, long[] newSegments) {
+        dirDataItem.before();
+        SubArray dir = dirDataItem.data();
+        if(newSegments != null) {
+            for (int k = 0; k < newSegments.length; k++) {
+                setRawKthSegment(dir, newSegments[k], from + k);
+            }
+        }
+        setRawGlobalDepth(dir, depth);
+        dirDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    /*
+     * 分裂后，原本指向旧桶、且第 localDepth 位为 1 的目录项改为指向新桶。
+     * 指向旧桶的目录项低 localDepth 位都和 key 的哈希值相同，只需要改其中第 localDepth 位为 1 的那些，不用扫描整个目录
+     */
+    private void redirect(long key, long newUid, int localDepth) throws Exception {
+        int size = 1 << globalDepth();
+        int step = 1 << (localDepth + 1);
+        int i = dirIndex(key, localDepth) | (1 << localDepth);
+        while(i < size) {
+            int segNo = i >>> SEGMENT_BITS;
+            DataItem seg = dm.read(segmentUid(segNo));
+            try {
+                seg.before();
+                SubArray raw = seg.data();
+                for (; i < size && (i >>> SEGMENT_BITS) == segNo; i += step) {
+                    setRawSlot(raw, newUid, i & (SEGMENT_SLOTS - 1));
+                }
+                seg.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                seg.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        dirDataItem.release();
+    }
+}
@@ -0,0 +1,19 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.List;
+
+/**
+ * 索引接口，字段通过它访问具体的索引结构（B+ 树或者哈希索引）
+ * key 是字段值经过 Field.value2Uid() 转换后的 long 值，uid 是对应记录在 VM 中的 UID
+ */
+public interface Index {
+    void insert(long key, long uid) throws Exception;                       // 插入一条索引
+    List<Long> search(long key) throws Exception;                           // 等值查找
+    List<Long> searchRange(long leftKey, long rightKey) throws Exception;   // 范围查找 [leftKey, rightKey]
+    void scan(UidVisitor visitor) throws Exception;                         // 遍历所有索引项，每次只取出一个结点（桶）中的 UID
+    void close();                                                           // 释放索引持有的缓存
+
+    interface UidVisitor {
+        void visit(long uid) throws Exception;
+    }
+}
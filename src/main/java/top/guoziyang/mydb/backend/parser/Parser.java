@@ -11,6 +11,7 @@ import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Drop;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.Set;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.parser.statement.Update;
@@ -62,6 +63,9 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "set":
+                    stat = parseSet(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -86,6 +90,31 @@ public class Parser {
         return stat;
     }
 
+    // set <name> = <value>
+    private static Set parseSet(Tokenizer tokenizer) throws Exception {
+        Set set = new Set();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        set.name = name;
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String value = tokenizer.peek();
+        if("".equals(value) || value.length() == 1 && Tokenizer.isSymbol(value.getBytes()[0])) {
+            throw Error.InvalidCommandException;
+        }
+        set.value = value;
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return set;
+    }
+
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -116,12 +145,12 @@ public class Parser {
         tokenizer.pop();
 
         String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            update.where = null;
-            return update;
+        if("where".equals(tmp)) {
+            update.where = parseWhere(tokenizer);
         }
-
-        update.where = parseWhere(tokenizer);
+        String option = parseLockOption(tokenizer);
+        update.noWait = "nowait".equals(option);
+        update.skipLocked = "skip locked".equals(option);
         return update;
     }
 
@@ -141,9 +170,33 @@ public class Parser {
         tokenizer.pop();
 
         delete.where = parseWhere(tokenizer);
+        String option = parseLockOption(tokenizer);
+        delete.noWait = "nowait".equals(option);
+        delete.skipLocked = "skip locked".equals(option);
         return delete;
     }
 
+    // delete 和 update 末尾可选的 nowait 或者 skip locked，没有时返回 null
+    private static String parseLockOption(Tokenizer tokenizer) throws Exception {
+        String tmp = tokenizer.peek();
+        if("nowait".equals(tmp)) {
+            tokenizer.pop();
+            return "nowait";
+        }
+        if("skip".equals(tmp)) {
+            tokenizer.pop();
+            if(!"locked".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            return "skip locked";
+        }
+        if(!"".equals(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        return null;
+    }
+
     private static Insert parseInsert(Tokenizer tokenizer) throws Exception {
         Insert insert = new Insert();
 
@@ -236,23 +289,17 @@ public class Parser {
         SingleExpression exp1 = parseSingleExp(tokenizer);
         where.singleExp1 = exp1;
 
+        // 条件之后可能还有 nowait 等内容，由调用者检查
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
-            return where;
-        }
         if(!isLogicOp(logicOp)) {
-            throw Error.InvalidCommandException;
+            where.logicOp = "";
+            return where;
         }
         where.logicOp = logicOp;
         tokenizer.pop();
 
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
-
-        if(!"".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
         return where;
     }
 
@@ -377,6 +424,29 @@ public class Parser {
         create.index = indexes.toArray(new String[indexes.size()]);
         tokenizer.pop();
 
+        // 可选的 (hash field1 field2 ...) 子句，其中的字段使用哈希索引
+        List<String> hashIndexes = new ArrayList<>();
+        if("(".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"hash".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            while(true) {
+                tokenizer.pop();
+                String field = tokenizer.peek();
+                if(")".equals(field)) {
+                    break;
+                }
+                if(!isName(field)) {
+                    throw Error.InvalidCommandException;
+                } else {
+                    hashIndexes.add(field);
+                }
+            }
+            tokenizer.pop();
+        }
+        create.hashIndex = hashIndexes.toArray(new String[hashIndexes.size()]);
+
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -405,11 +475,8 @@ public class Parser {
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
         String isolation = tokenizer.peek();
         Begin begin = new Begin();
-        if("".equals(isolation)) {
-            return begin;
-        }
         if(!"isolation".equals(isolation)) {
-            throw Error.InvalidCommandException;
+            return parseReadOnly(tokenizer, begin);
         }
 
         tokenizer.pop();
@@ -425,10 +492,7 @@ public class Parser {
             String tmp2 = tokenizer.peek();
             if("committed".equals(tmp2)) {
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseReadOnly(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -438,10 +502,7 @@ public class Parser {
             if("read".equals(tmp2)) {
                 begin.isRepeatableRead = true;
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseReadOnly(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -450,6 +511,27 @@ public class Parser {
         }
     }
 
+    // begin 语句末尾可选的 read only
+    private static Begin parseReadOnly(Tokenizer tokenizer, Begin begin) throws Exception {
+        String tmp = tokenizer.peek();
+        if("".equals(tmp)) {
+            return begin;
+        }
+        if(!"read".equals(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"only".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        begin.isReadOnly = true;
+        return begin;
+    }
+
     private static boolean isName(String name) {
         return !(name.length() == 1 && !Tokenizer.isAlphaBeta(name.getBytes()[0]));
     }
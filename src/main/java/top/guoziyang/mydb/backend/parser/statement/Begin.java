@@ -2,4 +2,6 @@ package top.guoziyang.mydb.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isReadOnly;
+    public boolean isAsyncCommit;       // 不由语句指定，取会话的 synchronous_commit 设置
 }
@@ -3,4 +3,7 @@ package top.guoziyang.mydb.backend.parser.statement;
 public class Delete {
     public String tableName;
     public Where where;
+    public boolean noWait;              // nowait：行被锁住时立即报错
+    public boolean skipLocked;          // skip locked：跳过被锁住的行
+    public long lockTimeout;            // 等行锁的毫秒数，0 表示一直等待，不由语句指定，取会话的 lock_timeout 设置
 }
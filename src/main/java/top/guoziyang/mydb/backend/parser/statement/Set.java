@@ -0,0 +1,6 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Set {
+    public String name;
+    public String value;
+}
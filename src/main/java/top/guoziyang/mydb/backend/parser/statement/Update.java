@@ -5,4 +5,7 @@ public class Update {
     public String fieldName;
     public String value;
     public Where where;
+    public boolean noWait;              // 同 Delete
+    public boolean skipLocked;
+    public long lockTimeout;
 }
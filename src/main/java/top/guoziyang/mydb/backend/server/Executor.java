@@ -8,6 +8,7 @@ import top.guoziyang.mydb.backend.parser.statement.Create;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.Set;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.tbm.BeginRes;
@@ -16,6 +17,8 @@ import top.guoziyang.mydb.common.Error;
 
 public class Executor {
     private long xid;
+    private boolean asyncCommit;        // set synchronous_commit = off 之后开启的事务异步提交
+    private long lockTimeout;           // set lock_timeout = <毫秒>，delete 和 update 等行锁的时间，0 表示一直等待
     TableManager tbm;
 
     public Executor(TableManager tbm) {
@@ -33,11 +36,15 @@ public class Executor {
     public byte[] execute(byte[] sql) throws Exception {
         System.out.println("Execute: " + new String(sql));
         Object stat = Parser.Parse(sql);
-        if(Begin.class.isInstance(stat)) {
+        if(Set.class.isInstance(stat)) {
+            return set((Set)stat, sql);
+        } else if(Begin.class.isInstance(stat)) {
             if(xid != 0) {
                 throw Error.NestedTransactionException;
             }
-            BeginRes r = tbm.begin((Begin)stat);
+            Begin begin = (Begin)stat;
+            begin.isAsyncCommit = asyncCommit;
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
             return r.result;
         } else if(Commit.class.isInstance(stat)) {
@@ -59,12 +66,43 @@ public class Executor {
         }
     }
 
+    // 会话设置：synchronous_commit 对之后开启的事务生效，lock_timeout 对之后的语句生效
+    private byte[] set(Set set, byte[] sql) throws Exception {
+        if("synchronous_commit".equals(set.name)) {
+            if("on".equals(set.value)) {
+                asyncCommit = false;
+            } else if("off".equals(set.value)) {
+                asyncCommit = true;
+            } else {
+                throw Error.InvalidCommandException;
+            }
+        } else if("lock_timeout".equals(set.name)) {
+            long timeout;
+            try {
+                timeout = Long.parseLong(set.value);
+            } catch (NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(timeout < 0) {
+                throw Error.InvalidCommandException;
+            }
+            lockTimeout = timeout;
+        } else {
+            throw Error.InvalidCommandException;
+        }
+        return sql;
+    }
+
     private byte[] execute2(Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            Begin begin = new Begin();
+            // 单独执行的查询不修改数据，用只读事务，不分配XID
+            begin.isReadOnly = Select.class.isInstance(stat) || Show.class.isInstance(stat);
+            begin.isAsyncCommit = asyncCommit;
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
@@ -78,9 +116,13 @@ public class Executor {
             } else if(Insert.class.isInstance(stat)) {
                 res = tbm.insert(xid, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
+                Delete delete = (Delete)stat;
+                delete.lockTimeout = lockTimeout;
+                res = tbm.delete(xid, delete);
             } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
+                Update update = (Update)stat;
+                update.lockTimeout = lockTimeout;
+                res = tbm.update(xid, update);
             }
             return res;
         } catch(Exception e1) {
@@ -5,7 +5,10 @@ import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.HashIndex;
+import top.guoziyang.mydb.backend.im.Index;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -16,10 +19,15 @@ import top.guoziyang.mydb.common.Error;
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][IndexType]
  * 如果field无索引，IndexUid为0
+ * IndexType 1字节，标识索引的访问方式：0 为 B+ 树，1 为哈希索引；旧格式没有这一字节，按 B+ 树处理
  */
 public class Field {
+    // 索引的访问方式
+    public static final byte INDEX_BTREE = 0;
+    public static final byte INDEX_HASH = 1;
+
     // 唯一标识符，用于标识每个Field对象
     long uid;
     // Field对象所属的表
@@ -30,8 +38,10 @@ public class Field {
     String fieldType;
     // 索引，用于标识字段是否有索引，如果索引为0，表示没有索引
     private long index;
-    // B+树，用于存储索引，如果字段有索引，这个B+树会被加载
-    private BPlusTree bt;
+    // 索引类型，INDEX_BTREE 或者 INDEX_HASH
+    private byte indexType;
+    // 索引结构，如果字段有索引，会按照 indexType 加载 B+ 树或者哈希索引
+    private Index idx;
 
 
 
@@ -40,11 +50,12 @@ public class Field {
         this.tb = tb;
     }
 
-    public Field(Table tb, String fieldName, String fieldType, long index) {
+    public Field(Table tb, String fieldName, String fieldType, long index, byte indexType) {
         this.tb = tb;
         this.fieldName = fieldName;
         this.fieldType = fieldType;
         this.index = index;
+        this.indexType = indexType;
     }
 
     /**
@@ -81,10 +92,14 @@ public class Field {
         position += res.next;  // 更新位置
 
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));  // 从新的位置开始解析原始字节数组，获取索引
+        position += 8;
+
+        // 旧格式没有索引类型字节，默认是B+树
+        this.indexType = position < raw.length ? raw[position] : INDEX_BTREE;
 
-        if (index != 0) {  // 如果索引不为0，说明存在B+树索引
+        if (index != 0) {  // 如果索引不为0，说明存在索引
             try {
-                bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);  // 加载B+树索引
+                idx = loadIndex(indexType, index, ((TableManagerImpl) tb.tbm).dm);  // 按索引类型加载索引
             } catch (Exception e) {
                 Panic.panic(e);  // 如果加载失败，抛出异常
             }
@@ -92,14 +107,21 @@ public class Field {
         return this;  // 返回当前Field对象
     }
 
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    private static Index loadIndex(byte indexType, long index, DataManager dm) throws Exception {
+        if(indexType == INDEX_HASH) {
+            return HashIndex.load(index, dm);
+        }
+        return BPlusTree.load(index, dm);
+    }
+
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, byte indexType) throws Exception {
         typeCheck(fieldType);
-        Field f = new Field(tb, fieldName, fieldType, 0);
+        Field f = new Field(tb, fieldName, fieldType, 0, indexType);
         if(indexed) {
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+            DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+            long index = indexType == INDEX_HASH ? HashIndex.create(dm) : BPlusTree.create(dm);
             f.index = index;
-            f.bt = bt;
+            f.idx = loadIndex(indexType, index, dm);
         }
         f.persistSelf(xid);
         return f;
@@ -110,7 +132,8 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] indexTypeRaw = new byte[]{indexType};
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, indexTypeRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -123,14 +146,26 @@ public class Field {
         return index != 0;
     }
 
+    public boolean isHashIndexed() {
+        return index != 0 && indexType == INDEX_HASH;
+    }
+
     public void insert(Object key, long uid) throws Exception {
         long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        idx.insert(uKey, uid);
     }
 
-    // 通过B+树索引进行搜索字段
+    // 通过索引进行搜索字段，等值条件走 search()，哈希索引由此只需要一次桶定位
     public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+        if(left == right) {
+            return idx.search(left);
+        }
+        return idx.searchRange(left, right);
+    }
+
+    // 遍历索引中的所有 UID，不需要一次性取出
+    public void scan(Index.UidVisitor visitor) throws Exception {
+        idx.scan(visitor);
     }
 
     public Object string2Value(String str) {
@@ -224,7 +259,7 @@ public class Field {
                 .append(fieldName)
                 .append(", ")
                 .append(fieldType)
-                .append(index!=0?", Index":", NoIndex")
+                .append(index==0?", NoIndex":(indexType==INDEX_HASH?", HashIndex":", Index"))
                 .append(")")
                 .toString();
     }
@@ -19,6 +19,7 @@ import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 
@@ -32,6 +33,11 @@ import top.guoziyang.mydb.common.Error;
  * 一个数据库中存在多张表，TBM 使用链表的形式将其组织起来，每一张表都保存一个指向下一张表的 UID。
  */
 public class Table {
+    // 一条删除或更新语句涉及的行数不少于这个数时尝试锁升级，拿到表锁后不再逐行加锁
+    private static final int ESCALATE_ROWS = 1024;
+    // 批量更新时每次读出、删除的行数，旧版本要在删除之前读出来
+    private static final int UPDATE_BATCH = 1024;
+
     TableManager tbm; // 表管理器，用于管理数据库表
     long uid; // 表的唯一标识符
     String name; // 表的名称
@@ -59,13 +65,22 @@ public class Table {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
             boolean indexed = false;
+            byte indexType = Field.INDEX_BTREE;
             for(int j = 0; j < create.index.length; j ++) {
                 if(fieldName.equals(create.index[j])) {
                     indexed = true;
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            // 出现在 (hash ...) 子句中的字段使用哈希索引
+            for(int j = 0; j < create.hashIndex.length; j ++) {
+                if(fieldName.equals(create.hashIndex[j])) {
+                    indexed = true;
+                    indexType = Field.INDEX_HASH;
+                    break;
+                }
+            }
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, indexType));
         }
 
         return tb.persistSelf(xid);
@@ -112,9 +127,14 @@ public class Table {
 
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        if(escalate(xid, uids)) {
+            return vm.deleteAll(xid, uid, uids).size();
+        }
+        long lockTimeout = lockTimeout(delete.noWait || delete.skipLocked, delete.lockTimeout);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+        for (Long rowUid : uids) {
+            if(vm.delete(xid, uid, rowUid, lockTimeout, delete.skipLocked)) {
                 count ++;
             }
         }
@@ -134,29 +154,71 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        if(escalate(xid, uids)) {
+            return updateAll(xid, uids, fd, value);
+        }
+        long lockTimeout = lockTimeout(update.noWait || update.skipLocked, update.lockTimeout);
         int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+        for (Long rowUid : uids) {
+            byte[] raw = vm.read(xid, rowUid);
             if(raw == null) continue;
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            // 没有删掉旧版本（跳过了被锁住的行，或者已经被删除）时不插入新版本
+            if(!vm.delete(xid, uid, rowUid, lockTimeout, update.skipLocked)) continue;
 
+            insertNewVersion(xid, raw, fd, value);
             count ++;
+        }
+        return count;
+    }
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+    // 持有表锁时分批更新：先读出一批旧版本，再批量删除，最后为删除成功的行插入新版本
+    private int updateAll(long xid, List<Long> uids, Field fd, Object value) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int count = 0;
+        for (int from = 0; from < uids.size(); from += UPDATE_BATCH) {
+            List<Long> batch = uids.subList(from, Math.min(from + UPDATE_BATCH, uids.size()));
+            Map<Long, byte[]> raws = new HashMap<>();
+            for (Long rowUid : batch) {
+                byte[] raw = vm.read(xid, rowUid);
+                if(raw != null) {
+                    raws.put(rowUid, raw);
                 }
             }
+            for (Long rowUid : vm.deleteAll(xid, uid, new ArrayList<>(raws.keySet()))) {
+                insertNewVersion(xid, raws.get(rowUid), fd, value);
+                count ++;
+            }
         }
         return count;
     }
 
+    // 插入更新后的新版本，并加入所有索引
+    private void insertNewVersion(long xid, byte[] raw, Field fd, Object value) throws Exception {
+        Map<String, Object> entry = parseEntry(raw);
+        entry.put(fd.fieldName, value);
+        long uuid = ((TableManagerImpl)tbm).vm.insert(xid, entry2Raw(entry));
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.insert(entry.get(field.fieldName), uuid);
+            }
+        }
+    }
+
+    // 涉及的行足够多时把行锁升级为表锁，已经有别的事务在表中加了行锁时升级失败，照常逐行加锁
+    private boolean escalate(long xid, List<Long> uids) throws Exception {
+        return uids.size() >= ESCALATE_ROWS && ((TableManagerImpl)tbm).vm.lockTable(xid, uid);
+    }
+
+    // 语句中的等锁方式换算成 VM 的等待毫秒数：nowait 和 skip locked 不等待，会话的 lock_timeout 为 0 时一直等待
+    private static long lockTimeout(boolean noWait, long sessionTimeout) {
+        if(noWait) {
+            return 0;
+        }
+        return sessionTimeout > 0 ? sessionTimeout : -1;
+    }
+
     public String read(long xid, Select read) throws Exception {
         List<Long> uids = parseWhere(read.where);                   // IM查找索引解析Where语句,会返回地址（uid）集合，所有符合where查询条件的
         StringBuilder sb = new StringBuilder();
@@ -198,10 +260,10 @@ public class Table {
         boolean single = false;
         Field fd = null;
         if(where == null) {
+            // 全表扫描优先走 B+ 树，哈希索引只能遍历所有桶
             for (Field field : fields) {
-                if(field.isIndexed()) {
+                if(field.isIndexed() && (fd == null || fd.isHashIndexed())) {
                     fd = field;
-                    break;
                 }
             }
             l0 = 0;
@@ -23,6 +23,9 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    boolean freeze() throws Exception;      // 冻结所有数据版本并丢弃之前的事务状态，返回是否丢弃了事务状态
+    void close();                           // 停止后台冻结并关闭 VM，在关闭 DM 和 TM 之前调用
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -4,6 +4,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,17 +18,26 @@ import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Update;
+import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 public class TableManagerImpl implements TableManager {
+    // 上次冻结之后又开启了这么多事务，就在后台冻结一次
+    static final long FREEZE_INTERVAL = 1 << 20;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
-    private Map<String, Table> tableCache;          // 表的缓存，key：表名；value：表
+    Map<String, Table> tableCache;                  // 表的缓存，key：表名；value：表
     private Map<Long, List<Table>> xidTableCache;   // 记录每个事务正在操作的表
     private Lock lock;
+    private Lock freezeLock;                        // 同时只做一次冻结
+    private AtomicBoolean freezing;                 // 后台冻结正在进行
+    private volatile long nextFreeze;               // 提交的事务ID到达它时触发后台冻结
+    private ExecutorService freezer;                // 执行后台冻结的线程，第一次提交冻结任务时才创建线程
+    private volatile boolean closed;
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -33,6 +46,14 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        freezeLock = new ReentrantLock();
+        freezing = new AtomicBoolean();
+        nextFreeze = vm.frozenXid() + FREEZE_INTERVAL;
+        freezer = Executors.newSingleThreadExecutor(r -> {
+            Thread th = new Thread(r, "xid-freezer");
+            th.setDaemon(true);
+            return th;
+        });
         loadTables();
     }
 
@@ -59,15 +80,94 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0; // 隔离等级
-        res.xid = vm.begin(level);              // 通过VM开始一个新事务，返回事务ID
+        // 通过VM开始一个新事务，返回事务ID，只读事务不分配XID，返回一个负数句柄
+        res.xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level, begin.isAsyncCommit);
         res.result = "begin".getBytes();        // 记录执行语句
         return res;
     }
     @Override
     public byte[] commit(long xid) throws Exception {
         vm.commit(xid);
+        if(xid >= nextFreeze) {
+            startFreeze(xid);
+        }
         return "commit".getBytes();
     }
+
+    // 启动一次后台冻结，长事务让水位线停滞时，下一次也要再过 FREEZE_INTERVAL 个事务才重试
+    private void startFreeze(long xid) {
+        if(closed || !freezing.compareAndSet(false, true)) {
+            return;
+        }
+        nextFreeze = xid + FREEZE_INTERVAL;
+        freezer.execute(() -> {
+            try {
+                freeze();
+            } catch (Exception e) {
+                Panic.panic(e);
+            } finally {
+                freezing.set(false);
+            }
+        });
+    }
+
+    /**
+     * 冻结：取得冻结水位线，冻结所有表的元数据，再通过每张表的每一个索引遍历所有数据版本（包括已经删除和回滚的版本）逐个冻结，
+     * 最后丢弃水位线之前的事务状态。和普通事务并发进行，开始得比水位线晚的事务不受影响。
+     * 索引项不随事务回滚，插入中途回滚或崩溃的版本可能只出现在部分索引中，所以要取所有索引的并集，重复遍历到的版本冻结第二次不会修改。
+     * 读取只能经过索引，不在任何索引中的版本读不到，不冻结也不会被当成已提交；没有索引的表的数据版本都属于这种情况，不影响丢弃事务状态。
+     * 关闭时正在进行的冻结在两张表之间停下，不丢弃事务状态。
+     * @return 是否丢弃了水位线之前的事务状态
+     */
+    @Override
+    public boolean freeze() throws Exception {
+        freezeLock.lock();
+        try {
+            long horizon = vm.freezeHorizon();
+            if(horizon - 1 <= vm.frozenXid()) {
+                return false;
+            }
+            List<Table> tables;
+            lock.lock();
+            try {
+                tables = new ArrayList<>(tableCache.values());
+            } finally {
+                lock.unlock();
+            }
+            for (Table tb : tables) {
+                if(closed) {
+                    return false;
+                }
+                vm.freeze(tb.uid, horizon);
+                for (Field fd : tb.fields) {
+                    vm.freeze(fd.uid, horizon);
+                    if(fd.isIndexed()) {
+                        fd.scan(uid -> vm.freeze(uid, horizon));
+                    }
+                }
+            }
+            vm.freezeXids(horizon);
+            return true;
+        } finally {
+            freezeLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭：不再启动后台冻结，并等待正在进行的冻结停下，再关闭 VM，之后才能关闭 DM 和 TM
+     */
+    @Override
+    public void close() {
+        closed = true;
+        freezer.shutdown();
+        try {
+            freezer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        vm.close();
+    }
+
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
@@ -17,11 +17,17 @@ import top.guoziyang.mydb.common.Error;
  */
 public interface TransactionManager {
     long begin();                       // 开启一个新事务，返回事务id
+    long nextXid();                     // 下一个开启的事务将会得到的id，不分配也不写文件
     void commit(long xid);              // 提交一个事务
+    void commitAsync(long xid);         // 异步提交一个事务，只在内存中记为已提交
+    long[] pendingCommits();            // 异步提交、还没有持久化的事务
+    void persistCommits(long[] xids);   // 持久化这些异步提交的事务，调用前它们的日志必须已经落盘
     void abort(long xid);               // 撤销一个事务（回滚）
     boolean isActive(long xid);         // 查询一个事务的状态是否是正在进行的状态
     boolean isCommitted(long xid);      // 查询一个事务的状态是否是已提交
     boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
+    void freeze(long xid);              // 冻结 xid 及之前的事务，不再保存它们的状态，都视为已提交
+    long frozenXid();                   // 已经冻结的最大XID，没有冻结过时为 0
     void close();                       // 关闭 TM
 
     /**
@@ -62,7 +68,7 @@ public interface TransactionManager {
         }
 
         // 开启事务管理模块
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 
     /**
@@ -88,6 +94,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 }
\ No newline at end of file
@@ -1,20 +1,39 @@
 package top.guoziyang.mydb.backend.tm;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
+/**
+ * XID文件有两种格式：
+ * [HighWater] [Status1] ... [StatusN]                                  从未冻结过的文件
+ * [Magic] [FrozenXid] [HighWater] [Status(FrozenXid+1)] ... [StatusN]  冻结之后的文件
+ * HighWater 是已经预分配的最大XID，每个 Status 1字节。
+ * 冻结（见 freeze()）之后，FrozenXid 及之前的事务不再保存状态，都视为已提交，上层保证不再有数据版本引用它们的真实状态；
+ * 冻结时把剩下的状态拷贝到一个新文件，刷盘后原子地替换旧文件，崩溃时旧文件保持完整，残留的临时文件在打开时删除。
+ */
 public class TransactionManagerImpl implements TransactionManager {
 
     // XID文件头长度
     static final int LEN_XID_HEADER_LENGTH = 8;
+    // 冻结之后的XID文件头长度
+    static final int LEN_FROZEN_HEADER_LENGTH = 24;
+    // 冻结之后的文件以它开头，最高位为 1，和旧格式文件头中非负的高水位区分开
+    private static final long FROZEN_MAGIC = 0x8000_0000_5846_5A4EL;
     // 每个事务的占用长度
     private static final int XID_FIELD_SIZE = 1;
 
@@ -27,23 +46,46 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
 
     static final String XID_SUFFIX = ".xid";
-    
+    static final String TMP_SUFFIX = ".tmp";
+
+    // 每次预分配的XID个数，文件也按这个大小增长
+    static final int XID_CHUNK = 4096;
+
+    private static final long[] NO_XIDS = new long[0];
+
+    private File xidFile;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private int headerLength;               // 文件头长度，旧格式为 8，冻结之后为 24
+    private long frozenXid;                 // 已经冻结的最大XID，不大于它的事务没有保存状态
+    private long xidCounter;                // 最后分配出去的XID
+    private long highWater;                 // 已经预分配的最大XID，也就是文件头中记录的值
     private Lock counterLock;
+    private ReadWriteLock fileLock;         // 读写状态时持有读锁，冻结时替换文件持有写锁
+    private Set<Long> pendingCommits;       // 异步提交、状态还没有写入文件的事务
+    private Lock freezeLock;                // 同时只做一次冻结
+    private volatile Set<Long> dirtyXids;   // 冻结拷贝期间写过状态的事务，不在冻结时为 null
 
     // 构造方法 默认（没有修饰符, 隐式 default）：本类 ，本包可以访问。
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    TransactionManagerImpl(File xidFile, RandomAccessFile raf, FileChannel fc) {
+        this.xidFile = xidFile;
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
+        pendingCommits = ConcurrentHashMap.newKeySet();
+        freezeLock = new ReentrantLock();
+        new File(xidFile.getPath() + TMP_SUFFIX).delete();   // 冻结时崩溃残留的临时文件
         checkXIDCounter();  // 检查XID文件是否合法
     }
 
     /**
      * 检查XID文件是否合法
-     * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 读取XID_FILE_HEADER中的高水位，根据它计算文件的理论长度，对比实际长度
+     * 预分配时先扩展文件再写文件头，崩溃在两者之间时文件会比理论长度长，多出来的部分是还没有启用的区间，
+     * 扫描确认全是空状态之后截掉；长度不够或者尾部有写过的状态，说明文件损坏。
+     * 崩溃前区间内分配到了哪个XID无从得知（开启事务不写文件），所以从高水位之后继续分配，
+     * 跳过的XID状态一直是活跃，没有对应的日志，不影响恢复和可见性判断。
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -57,21 +99,63 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(Error.BadXIDFileException);
         }
 
-        // 读取xid文件中事务的个数
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        // 读取文件头，按开头是否为 FROZEN_MAGIC 区分两种格式
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(fileLen, LEN_FROZEN_HEADER_LENGTH));
         try {
-            fc.position(0);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) break;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
+        if(buf.getLong(0) == FROZEN_MAGIC) {
+            if(fileLen < LEN_FROZEN_HEADER_LENGTH) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+            this.headerLength = LEN_FROZEN_HEADER_LENGTH;
+            this.frozenXid = buf.getLong(8);
+            this.highWater = buf.getLong(16);
+            if(frozenXid < 0 || frozenXid > highWater) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+        } else {
+            this.headerLength = LEN_XID_HEADER_LENGTH;
+            this.frozenXid = 0;
+            this.highWater = buf.getLong(0);
+        }
 
         // 取得最后一个事务在文件中的相对位置，也就是反推xid文件的长度, 在进行判断
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        long end = getXidPosition(this.highWater + 1);
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            truncateTail(end, fileLen);
+        }
+        this.xidCounter = this.highWater;
+    }
+
+    // 截掉文件头记录的高水位之后、没有启用的预分配区间
+    private void truncateTail(long end, long fileLen) {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(fileLen - end, XID_CHUNK * XID_FIELD_SIZE));
+        try {
+            for (long pos = end; pos < fileLen; pos += buf.limit()) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), fileLen - pos));
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, pos + buf.position()) < 0) break;
+                }
+                for (int i = 0; i < buf.limit(); i++) {
+                    if(buf.get(i) != FIELD_TRAN_ACTIVE) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+            }
+            fc.truncate(end);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     /**
@@ -80,7 +164,7 @@ public class TransactionManagerImpl implements TransactionManager {
      * @return
      */
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
+        return headerLength + (xid-frozenXid-1)*XID_FIELD_SIZE;
     }
 
     /**
@@ -89,55 +173,88 @@ public class TransactionManagerImpl implements TransactionManager {
      * @param status 事务需要改变为的状态
      */
     private void updateXID(long xid, byte status) {
+        fileLock.readLock().lock();
+        try {
+            writeXID(xid, status);
+            // 所有的文件操作在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // 写入事务的状态，不刷盘；按位置读写，不移动通道的位置，后台线程持久化提交状态时不会和查询互相干扰
+    // 调用时持有 fileLock，已经冻结的事务没有位置可写，直接跳过
+    private void writeXID(long xid, byte status) {
+        if(xid <= frozenXid) {
+            return;
+        }
         long offset = getXidPosition(xid);
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        // 所有的文件操作在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据
-        try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        Set<Long> dirty = dirtyXids;
+        if(dirty != null) {
+            dirty.add(xid);
         }
     }
 
     /**
-     * 将XID加一，并更新XID文件中Header的数据
+     * 预分配下一个XID区间：先把文件扩展 XID_CHUNK 个状态并刷盘，再把新的高水位写入文件头并刷盘，
+     * 文件头记录的高水位之内的状态一定已经在磁盘上，并且都是活跃（0）
      */
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    private void preallocate() {
+        long newHighWater = highWater + XID_CHUNK;
+        ByteBuffer chunk = ByteBuffer.allocate(XID_CHUNK * XID_FIELD_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(Parser.long2Byte(newHighWater));
+        fileLock.readLock().lock();
         try {
+            long pos = getXidPosition(highWater + 1);
+            while(chunk.hasRemaining()) {
+                fc.write(chunk, pos + chunk.position());
+            }
+            fc.force(false);
+            fc.write(header, headerLength - LEN_XID_HEADER_LENGTH);    // 高水位总在文件头的最后 8 字节
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
+        highWater = newHighWater;
     }
 
     /**
      * 开始一个新事务，线程安全
+     * 从预分配的区间中取下一个XID，它的状态在文件中已经是活跃，不需要写文件；
+     * 每 XID_CHUNK 个事务才扩展一次文件、更新一次文件头
      * @return 返回事务ID
      */
     @Override
     public long begin() {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
+            if(xidCounter == highWater) {
+                preallocate();
+            }
+            return ++xidCounter;
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    @Override
+    public long nextXid() {
+        counterLock.lock();
+        try {
+            return xidCounter + 1;
         } finally {
             counterLock.unlock();
         }
@@ -152,6 +269,46 @@ public class TransactionManagerImpl implements TransactionManager {
         updateXID(xid, FIELD_TRAN_COMMITTED);
     }
 
+    /**
+     * 异步提交：只在内存中记为已提交，不写文件，之后由 persistCommits() 一起写入并刷盘
+     * 上层必须先让这些事务的日志落盘，再持久化它们的提交状态，否则崩溃后可能只恢复了事务的一部分修改；
+     * 没有持久化的提交在崩溃后视为活跃事务，恢复时回滚
+     * @param xid
+     */
+    @Override
+    public void commitAsync(long xid) {
+        pendingCommits.add(xid);
+    }
+
+    @Override
+    public long[] pendingCommits() {
+        if(pendingCommits.isEmpty()) {
+            return NO_XIDS;
+        }
+        return pendingCommits.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Override
+    public void persistCommits(long[] xids) {
+        if(xids.length == 0) {
+            return;
+        }
+        fileLock.readLock().lock();
+        try {
+            for (long xid : xids) {
+                writeXID(xid, FIELD_TRAN_COMMITTED);
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        for (long xid : xids) {
+            pendingCommits.remove(xid);
+        }
+    }
+
     /**
      * 回滚事务，更新XID文件中对应事务的状态即可
      * @param xid
@@ -168,13 +325,17 @@ public class TransactionManagerImpl implements TransactionManager {
      * @return
      */
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
         ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            if(xid <= frozenXid) {
+                return status == FIELD_TRAN_COMMITTED;      // 冻结的事务都视为已提交
+            }
+            fc.read(buf, getXidPosition(xid));
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
         return buf.array()[0] == status;
     }
@@ -182,21 +343,131 @@ public class TransactionManagerImpl implements TransactionManager {
     @Override
     public boolean isActive(long xid) {
         if(xid == SUPER_XID) return false;
+        if(isPendingCommit(xid)) return false;
         return checkXID(xid, FIELD_TRAN_ACTIVE);
     }
 
     @Override
     public boolean isCommitted(long xid) {
         if(xid == SUPER_XID) return true;
+        if(isPendingCommit(xid)) return true;
         return checkXID(xid, FIELD_TRAN_COMMITTED);
     }
 
+    // 大多数时候没有异步提交，先判断是否为空，不装箱
+    private boolean isPendingCommit(long xid) {
+        return !pendingCommits.isEmpty() && pendingCommits.contains(xid);
+    }
+
     @Override
     public boolean isAborted(long xid) {
         if(xid == SUPER_XID) return false;
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    /**
+     * 冻结 xid 及之前的事务：丢弃它们的状态，之后都视为已提交，XID文件只保存之后的事务状态
+     * 调用前上层必须保证这些事务都已经结束，并且没有数据版本再引用其中未提交的事务（见 VersionManager.freezeHorizon()）
+     * 剩下的状态分两轮写入临时文件：第一轮不持有锁，拷贝当时的所有状态，期间写入的状态记在 dirtyXids 中；
+     * 第二轮阻塞状态的读写和新事务的开启，只补拷这些状态和新预分配的区间，刷盘后原子地替换旧文件
+     * @param xid 冻结到的事务ID，超过已经分配的最大XID时按最大XID处理
+     */
+    @Override
+    public void freeze(long xid) {
+        freezeLock.lock();
+        try {
+            long copied;        // 第一轮拷贝到的高水位
+            counterLock.lock();
+            fileLock.writeLock().lock();
+            try {
+                xid = Math.min(xid, xidCounter);
+                if(xid <= frozenXid) {
+                    return;
+                }
+                copied = highWater;
+                dirtyXids = ConcurrentHashMap.newKeySet();
+            } finally {
+                fileLock.writeLock().unlock();
+                counterLock.unlock();
+            }
+
+            File tmp = new File(xidFile.getPath() + TMP_SUFFIX);
+            RandomAccessFile raf = null;
+            boolean installed = false;
+            try {
+                raf = new RandomAccessFile(tmp, "rw");
+                FileChannel nfc = raf.getChannel();
+                nfc.truncate(0);
+                copyXIDs(nfc, xid, xid + 1, copied);
+
+                counterLock.lock();
+                fileLock.writeLock().lock();
+                try {
+                    for (long dirty : dirtyXids) {
+                        if(dirty > xid && dirty <= copied) {
+                            copyXIDs(nfc, xid, dirty, dirty);
+                        }
+                    }
+                    copyXIDs(nfc, xid, copied + 1, highWater);
+                    ByteBuffer header = ByteBuffer.allocate(LEN_FROZEN_HEADER_LENGTH);
+                    header.putLong(0, FROZEN_MAGIC);
+                    header.putLong(8, xid);
+                    header.putLong(16, highWater);
+                    while(header.hasRemaining()) {
+                        nfc.write(header, header.position());
+                    }
+                    nfc.force(false);
+                    Files.move(tmp.toPath(), xidFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+                    fc.close();
+                    file.close();
+                    file = raf;
+                    fc = nfc;
+                    headerLength = LEN_FROZEN_HEADER_LENGTH;
+                    frozenXid = xid;
+                    installed = true;
+                } finally {
+                    dirtyXids = null;
+                    fileLock.writeLock().unlock();
+                    counterLock.unlock();
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                if(!installed && raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        Panic.panic(e);
+                    }
+                    tmp.delete();
+                }
+            }
+        } finally {
+            freezeLock.unlock();
+        }
+    }
+
+    // 把 from 到 to 的事务状态从当前文件拷贝到冻结到 xid 的新文件中的对应位置
+    private void copyXIDs(FileChannel nfc, long xid, long from, long to) throws IOException {
+        long pos = getXidPosition(from);
+        long end = getXidPosition(to + 1);
+        nfc.position(LEN_FROZEN_HEADER_LENGTH + (from - xid - 1) * XID_FIELD_SIZE);
+        while(pos < end) {
+            pos += fc.transferTo(pos, end - pos, nfc);
+        }
+    }
+
+    @Override
+    public long frozenXid() {
+        fileLock.readLock().lock();
+        try {
+            return frozenXid;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
     /**
      * 关闭事务管理器
      */
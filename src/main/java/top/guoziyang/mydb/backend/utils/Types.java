@@ -6,7 +6,7 @@ package top.guoziyang.mydb.backend.utils;
 public class Types {
     public static long addressToUid(int pgno, short offset) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)(offset & 0xFFFF);     // 偏移量按无符号数处理
         return u0 << 32 | u1;        //或运算全 0 则 0, 见 1 则 1
     }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * 活跃事务ID表，按ID有序存放在数组中，由 VersionManagerImpl 在锁内维护
+ * 事务ID单调递增，开始的事务总是追加到末尾，不影响前面的元素，所以快照直接共享当前数组和长度，不用拷贝；
+ * 事务结束时从中间删除，如果数组已经被快照共享，先拷贝出一份新的再删除（写时复制）。
+ */
+public class ActiveXids {
+    private long[] xids;
+    private int size;
+    private boolean shared;         // 当前数组是否被快照引用
+    private long lastXid;           // 最后一个加入的事务ID，比它大的事务都还没开始或者正在开始
+
+    /**
+     * @param lastXid 已经分配过的最大的事务ID
+     */
+    ActiveXids(long lastXid) {
+        this.xids = new long[16];
+        this.lastXid = lastXid;
+    }
+
+    // xid 必须大于表中所有的事务ID
+    void add(long xid) {
+        lastXid = xid;
+        if(size == xids.length) {
+            xids = Arrays.copyOf(xids, size << 1);
+            shared = false;
+        }
+        xids[size++] = xid;
+    }
+
+    void remove(long xid) {
+        int i = Arrays.binarySearch(xids, 0, size, xid);
+        if(i < 0) {
+            return;
+        }
+        if(shared) {
+            long[] copy = new long[xids.length];
+            System.arraycopy(xids, 0, copy, 0, i);
+            System.arraycopy(xids, i + 1, copy, i, size - i - 1);
+            xids = copy;
+            shared = false;
+        } else {
+            System.arraycopy(xids, i + 1, xids, i, size - i - 1);
+        }
+        size --;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // 最小的活跃事务ID，没有活跃事务时是下一个开始的事务ID
+    long min() {
+        return size > 0 ? xids[0] : lastXid + 1;
+    }
+
+    /**
+     * 为事务 xid 生成快照，调用时 xid 还没有加入表中
+     */
+    Snapshot snapshot(long xid) {
+        shared = true;
+        return new Snapshot(xid, xids, size);
+    }
+
+    /**
+     * 为不分配事务ID的只读事务生成快照，之后开始的事务都视为活跃
+     */
+    Snapshot snapshot() {
+        return snapshot(lastXid + 1);
+    }
+}
@@ -1,11 +1,15 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
 
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
@@ -35,9 +39,12 @@ public class Entry {
     }
 
     // 静态方法，用来加载一个Entry。它首先从VersionManager中读取数据，然后创建一个新的Entry
-    // 读取一个 DataItem 打包成 entry
+    // 读取一个 DataItem 打包成 entry，DataItem 已经无效时返回 null
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -115,6 +122,70 @@ public class Entry {
         }
     }
 
+    /**
+     * 批量设置同一页面上一组版本的 XMAX，所有修改完成后整页只写一条日志
+     * @param entries 在同一页面上的版本
+     * @param xid
+     */
+    public static void setXmax(List<Entry> entries, long xid) {
+        if(entries.isEmpty()) {
+            return;
+        }
+        List<DataItem> items = new ArrayList<>(entries.size());
+        try {
+            byte[] xmax = Parser.long2Byte(xid);
+            for(Entry entry : entries) {
+                entry.dataItem.before();
+                items.add(entry.dataItem);
+                SubArray sa = entry.dataItem.data();
+                System.arraycopy(xmax, 0, sa.raw, sa.start+OF_XMAX, 8);
+            }
+        } finally {
+            ((VersionManagerImpl)entries.get(0).vm).dm.afterAll(xid, items);
+        }
+    }
+
+    /**
+     * 冻结这个版本，判断和修改都在 DataItem 的写锁内，不会和并发的删除交错：
+     * XMIN 早于 horizon 并且已提交，改为 SUPER_XID；早于 horizon 但没有提交，这个版本对谁都不可见，直接置为无效；
+     * XMAX 早于 horizon 但没有提交，删除没有生效，清零。
+     * 修改以 SUPER_XID 的名义记日志，恢复时总会重做；日志不逐条落盘，丢弃事务状态之前由 freezeXids() 一起落盘。
+     * @param horizon 冻结水位线，比它小的事务对所有事务都已经结束
+     * @param committed 判断事务是否已提交
+     * @return 是否修改了这个版本
+     */
+    public boolean freeze(long horizon, LongPredicate committed) {
+        dataItem.lock();
+        try {
+            SubArray sa = dataItem.data();
+            long xmin = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            long xmax = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            boolean freezeXmin = xmin != TransactionManagerImpl.SUPER_XID && xmin < horizon;
+            boolean clearXmax = xmax != 0 && xmax < horizon && !committed.test(xmax);
+            if(!freezeXmin && !clearXmax) {
+                return false;
+            }
+            dataItem.before();              // 写锁可重入
+            try {
+                if(freezeXmin && !committed.test(xmin)) {
+                    DataItem.setDataItemRawInvalid(dataItem.getRaw());
+                } else {
+                    if(freezeXmin) {
+                        System.arraycopy(Parser.long2Byte(TransactionManagerImpl.SUPER_XID), 0, sa.raw, sa.start+OF_XMIN, 8);
+                    }
+                    if(clearXmax) {
+                        System.arraycopy(Parser.long2Byte(0), 0, sa.raw, sa.start+OF_XMAX, 8);
+                    }
+                }
+            } finally {
+                dataItem.after(TransactionManagerImpl.SUPER_XID, false);
+            }
+            return true;
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
     public long getUid() {
         return uid;
     }
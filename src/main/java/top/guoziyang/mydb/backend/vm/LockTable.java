@@ -1,202 +1,469 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.collection.LongList;
+import top.guoziyang.mydb.backend.common.collection.LongObjectMap;
+import top.guoziyang.mydb.backend.common.collection.LongSet;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 表锁：
- * 维护了一个依赖等待图，以进行死锁检测
+ * 资源（UID）按哈希分到 SHARDS 个分片里，每个分片有自己的锁，每个资源记录持有者和一个按到达顺序排队的等待队列。
+ * 不用等待的加锁和没有人等待的释放只锁一个分片。
+ * 需要等待时才做死锁检测：每个事务同时只会等待一个资源，等待图里每个事务最多一条出边，
+ * 所以只要从新加入的这条边出发，沿 “等待的资源 -> 资源的持有者” 一路走下去，回到自己就是死锁，
+ * 不需要遍历整张图。加边和检测在 graphLock 内串行，两个事务同时互相等待时，后加边的一方一定能发现环；
+ * 锁转交给等待者时，拿到锁的事务不再等待，不会形成新的环，所以不需要 graphLock。
+ * 每个事务的状态（持有的资源、正在进行的等待）放在 Holder 里，资源直接引用持有者的 Holder，
+ * 沿等待链查找和转交锁时都不用再按 XID 查表；所有的表都以 long 为键，加锁和释放不产生装箱对象。
+ * <p>
+ * 锁升级：表（以表的 UID 为资源）也可以加锁。要在表中加行锁的事务先调用 intend() 登记意向，
+ * 表锁被别的事务持有时要等它释放；没有别的事务登记过意向时，escalate() 可以直接拿到整张表，
+ * 之后这个事务删除表中的行不再逐行加锁。表锁不排队也不转交，等待表锁的事务在释放时全部唤醒，
+ * 醒来后重新登记意向，等待边指向表锁的持有者，死锁检测不用区分行锁和表锁。
  */
 public class LockTable {
 
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表,键是事务ID，值是该事物持有的资源ID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有,键是资源ID，值是持有该资源的事务ID。
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;                  // 一个全局锁，用于同步
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
+
+    // 一个事务在锁表中的状态
+    private static class Holder {
+        final long xid;
+        final LongList held = new LongList();   // 已经获得的资源的UID，持有对应资源的分片锁时才修改
+        final LongSet intents = new LongSet();  // 登记过意向的表，只由事务自己的线程修改
+        volatile Waiter waiting;                // 正在进行的等待，也就是等待图中从这个事务出发的边
+
+        Holder(long xid) {
+            this.xid = xid;
+        }
+    }
+
+    // 一个资源上的锁
+    private static class ResourceLock {
+        Holder owner;                                       // 持有者，表锁没有被升级时为 null
+        ArrayDeque<Waiter> waiters = new ArrayDeque<>();    // 等待队列
+        boolean table;                                      // 是否是表锁
+        int intents;                                        // 表锁：登记了意向的事务数
+
+        ResourceLock(Holder owner) {
+            this.owner = owner;
+        }
+    }
+
+    // 一次等待，拿到锁时 granted 归零
+    private static class Waiter {
+        final Holder holder;
+        final long uid;
+        final CountDownLatch granted = new CountDownLatch(1);
+
+        Waiter(Holder holder, long uid) {
+            this.holder = holder;
+            this.uid = uid;
+        }
+    }
+
+    private static class Shard {
+        final Lock lock = new ReentrantLock();
+        final LongObjectMap<ResourceLock> locks = new LongObjectMap<>();    // 键是资源ID
+    }
+
+    private static class TxnShard {
+        final Lock lock = new ReentrantLock();
+        final LongObjectMap<Holder> holders = new LongObjectMap<>();        // 键是XID
+    }
+
+    private final Shard[] shards;
+    private final TxnShard[] txns;
+    private final AtomicInteger waitingCount;   // 正在等待的事务数
+    private final Lock graphLock;               // 加等待边和死锁检测时持有，先于分片锁获取
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        shards = new Shard[SHARDS];
+        txns = new TxnShard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+            txns[i] = new TxnShard();
+        }
+        waitingCount = new AtomicInteger();
+        graphLock = new ReentrantLock();
     }
 
     /**
-     * 向依赖等待图中添加一个等待记录
-     * 事务xid 阻塞等待 数据项uid，如果会造成死锁则抛出异常
+     * 事务 xid 请求数据项 uid 的锁，如果需要等待，先加入等待队列并检测死锁，会造成死锁则抛出异常
      * @param xid 事务id
      * @param uid 数据项key
-     * @return 不需要等待则返回null，否则返回锁对象
+     * @return 不需要等待则返回null，否则返回拿到锁时归零的 CountDownLatch
      * @throws Exception
      */
-    //在每次出现等待的情况时，就尝试向图中增加一条边，并进行死锁检测。如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务。
-    // 不需要等待则返回null，否则返回锁对象或者会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public CountDownLatch add(long xid, long uid) throws Exception {
+        Holder h = holder(xid);
+        Shard s = shard(uid);
+        s.lock.lock();
         try {
-            // dataitem数据已经被事务xid获取到，不需要等待，返回null
-            if(isInList(x2u, xid, uid)) {
+            if(tryAcquire(s, h, uid)) {
                 return null;
             }
+        } finally {
+            s.lock.unlock();
+        }
+
+        graphLock.lock();
+        Waiter w;
+        try {
+            s.lock.lock();
+            try {
+                // 释放了分片锁之后资源可能已经被释放了
+                if(tryAcquire(s, h, uid)) {
+                    return null;
+                }
+                w = new Waiter(h, uid);
+                s.locks.get(uid).waiters.addLast(w);
+                h.waiting = w;
+                waitingCount.incrementAndGet();
+            } finally {
+                s.lock.unlock();
+            }
+            if(!hasDeadLock(h, uid)) {
+                return w.granted;
+            }
+        } finally {
+            graphLock.unlock();
+        }
+        if(!cancel(w)) {
+            return null;                    // 检测期间锁已经转交过来了，实际上不存在死锁
+        }
+        throw Error.DeadlockException;
+    }
 
-            // 检查UID资源是否已经被其他XID事务持有
-            if(!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);                  // 如果没有被持有，将资源分配给当前事务
-                putIntoList(x2u, xid, uid);         // 将资源添加到事务的资源列表中
+    /**
+     * 不等待地请求锁，资源空闲或者已经由 xid 持有时拿到锁，被别的事务持有时直接返回，不进入等待队列
+     * @return 是否拿到锁
+     */
+    public boolean tryAdd(long xid, long uid) {
+        Holder h = holder(xid);
+        Shard s = shard(uid);
+        s.lock.lock();
+        try {
+            return tryAcquire(s, h, uid);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * 事务 xid 在表 table 中加行锁之前登记意向，表锁被别的事务持有时需要等待，会造成死锁则抛出异常
+     * @return 登记成功返回 null，否则返回表锁释放时归零的 CountDownLatch，归零之后需要重新调用
+     */
+    public CountDownLatch intend(long xid, long table) throws Exception {
+        Holder h = holder(xid);
+        if(h.intents.contains(table)) {
+            return null;
+        }
+        Shard s = shard(table);
+        s.lock.lock();
+        try {
+            if(tryIntend(s, h, table)) {
                 return null;
             }
+        } finally {
+            s.lock.unlock();
+        }
 
-            // 如果资源已经被其他事务持有，将当前事务添加到等待列表中
-            waitU.put(xid, uid);
-            putIntoList(wait, xid, uid);
+        graphLock.lock();
+        Waiter w;
+        try {
+            s.lock.lock();
+            try {
+                if(tryIntend(s, h, table)) {
+                    return null;
+                }
+                w = new Waiter(h, table);
+                s.locks.get(table).waiters.addLast(w);
+                h.waiting = w;
+                waitingCount.incrementAndGet();
+            } finally {
+                s.lock.unlock();
+            }
+            if(!hasDeadLock(h, table)) {
+                return w.granted;
+            }
+        } finally {
+            graphLock.unlock();
+        }
+        if(!cancel(w)) {
+            return w.granted;               // 检测期间表锁已经释放了，重新登记即可
+        }
+        throw Error.DeadlockException;
+    }
 
-            // 检查是否存在死锁
-            if(hasDeadLock()) {
-                waitU.remove(xid);                  // 如果存在死锁，从等待列表中移除当前事务
-                removeFromList(wait, uid, xid);
-                throw Error.DeadlockException;      // 抛出死锁异常
+    /**
+     * 锁升级：没有别的事务在表 table 中登记意向时，xid 拿到整张表的锁，不等待
+     * @return 是否拿到表锁，失败时调用者照常逐行加锁
+     */
+    public boolean escalate(long xid, long table) {
+        Holder h = holder(xid);
+        Shard s = shard(table);
+        s.lock.lock();
+        try {
+            ResourceLock rl = s.locks.get(table);
+            if(rl == null) {
+                rl = new ResourceLock(null);
+                rl.table = true;
+                s.locks.put(table, rl);
             }
+            if(rl.owner == h) {
+                return true;
+            }
+            int others = rl.intents - (h.intents.contains(table) ? 1 : 0);
+            if(rl.owner != null || others > 0) {
+                removeIfIdle(s, table, rl);
+                return false;
+            }
+            rl.owner = h;
+            h.held.add(table);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
 
-            // 如果不存在死锁，为当前事务创建一个新的锁，并锁定它
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);                   // 将新的锁添加到等待锁列表中
-            return l;                               // 返回新的锁
+    /**
+     * xid 是否持有表 table 的锁
+     */
+    public boolean holdsTable(long xid, long table) {
+        Shard s = shard(table);
+        s.lock.lock();
+        try {
+            ResourceLock rl = s.locks.get(table);
+            return rl != null && rl.owner != null && rl.owner.xid == xid;
+        } finally {
+            s.lock.unlock();
+        }
+    }
 
+    /**
+     * 放弃 xid 正在进行的等待，用于等锁超时
+     * @return 放弃成功返回 true；锁已经转交过来了（或者没有在等待）返回 false，调用者已经持有锁
+     */
+    public boolean cancelWait(long xid) {
+        TxnShard t = txns[index(xid)];
+        Holder h;
+        t.lock.lock();
+        try {
+            h = t.holders.get(xid);
         } finally {
-            lock.unlock();                          // 解锁全局锁
+            t.lock.unlock();
+        }
+        if(h == null) {
+            return false;
         }
+        Waiter w = h.waiting;
+        return w != null && cancel(w);
     }
 
     /**
-     *当一个事务commit或者abort时，就会释放掉它自己持有的锁，并将自身从等待图中删除
+     * 当一个事务commit或者abort时，就会释放掉它自己持有的锁，并将自身从等待图中删除
+     * 释放的每个资源转交给等待队列中的第一个事务
      * @param xid
      */
     public void remove(long xid) {
-        lock.lock();                                // 获取全局锁
+        TxnShard t = txns[index(xid)];
+        Holder h;
+        t.lock.lock();
         try {
-            List<Long> l = x2u.get(xid);            // 从x2u映射中获取当前事务ID已经获得的资源的UID列表
-            if(l != null) {
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);   // 获取并移除列表中的第一个资源ID
-                    selectNewXID(uid);              // 从等待队列中选择一个新的事务ID来占用这个资源
-                }
-            }
-            waitU.remove(xid);                      // 从waitU映射中移除当前事务ID
-            x2u.remove(xid);                        // 从x2u映射中移除当前事务ID
-            waitLock.remove(xid);                   // 从waitLock映射中移除当前事务ID
-
+            h = t.holders.remove(xid);
         } finally {
-            lock.unlock();                          // 解锁全局锁
+            t.lock.unlock();
         }
+        if(h == null) {
+            return;
+        }
+        Waiter w = h.waiting;
+        if(w != null) {
+            cancel(w);
+        }
+        for (int i = 0; i < h.held.size(); i++) {
+            release(h, h.held.get(i));
+        }
+        h.intents.forEach(this::dropIntent);
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);                            // 从u2x映射中移除当前资源ID
-        List<Long> l = wait.get(uid);               // 从wait映射中获取当前资源ID的等待队列
-        if (l == null) return;                      // 如果等待队列为空，立即返回
-        assert l.size() > 0;                        // 断言等待队列不为空
-
-        // 遍历等待队列
-        while (l.size() > 0) {
-            long xid = l.remove(0);          // 获取并移除队列中的第一个事务ID
-            // 检查事务ID是否在waitLock映射中
-            if (!waitLock.containsKey(xid)) {
-                continue;                          // 如果不在，跳过这个事务ID，继续下一个
-            } else {
-                u2x.put(uid, xid);                  // 将事务ID和资源ID添加到u2x映射中
-                Lock lo = waitLock.remove(xid);     // 从waitLock映射中移除这个事务ID
-                waitU.remove(xid);                  // 从waitU映射中移除这个事务ID
-                lo.unlock();                        // 解锁这个事务ID的锁
-                break;                              // 跳出循环
+    private Holder holder(long xid) {
+        TxnShard t = txns[index(xid)];
+        t.lock.lock();
+        try {
+            Holder h = t.holders.get(xid);
+            if(h == null) {
+                h = new Holder(xid);
+                t.holders.put(xid, h);
             }
+            return h;
+        } finally {
+            t.lock.unlock();
         }
-        // 如果等待队列为空，从wait映射中移除当前资源ID
-        if (l.size() == 0) wait.remove(uid);
     }
 
-    // 死锁检测
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();                  // 创建一个新的xidStamp哈希映射
-        stamp = 1;
-        for(long xid : x2u.keySet()) {               // 遍历所有已经获得资源的事务ID
-            Integer s = xidStamp.get(xid);           // 获取xidStamp中对应事务ID的记录
-            if(s != null && s > 0) {                 // 如果记录存在，并且值大于0
-                continue;                            // 跳过这个事务ID，继续下一个
-            }
-            stamp++;
-            if(dfs(xid)) {                           // 调用dfs方法进行深度优先搜索
-                return true;                         // 如果dfs方法返回true，表示存在死锁，那么hasDeadLock方法也返回true
-            }
+    // 资源空闲或者已经由 h 持有时直接拿到锁，调用时持有分片锁
+    private boolean tryAcquire(Shard s, Holder h, long uid) {
+        ResourceLock rl = s.locks.get(uid);
+        if(rl == null) {
+            s.locks.put(uid, new ResourceLock(h));
+            h.held.add(uid);
+            return true;
         }
-        return false;
+        return rl.owner == h;
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);            // 从xidStamp映射中获取当前事务ID的时间戳
-        if(stp != null && stp == stamp) {           // 如果时间戳存在并且等于全局时间戳
-            return true;                            // 存在死锁，返回true
+    // 表锁没有被别的事务升级时登记意向，调用时持有分片锁
+    private boolean tryIntend(Shard s, Holder h, long table) {
+        ResourceLock rl = s.locks.get(table);
+        if(rl == null) {
+            rl = new ResourceLock(null);
+            rl.table = true;
+            s.locks.put(table, rl);
+        } else if(rl.owner != null && rl.owner != h) {
+            return false;
         }
-        if(stp != null && stp < stamp) {            // 如果时间戳存在并且小于全局时间戳
-            return false;                           // 这个事务ID已经被检查过，并且没有发现死锁，返回false
+        rl.intents++;
+        h.intents.add(table);
+        return true;
+    }
+
+    private void dropIntent(long table) {
+        Shard s = shard(table);
+        s.lock.lock();
+        try {
+            ResourceLock rl = s.locks.get(table);
+            if(rl != null) {
+                rl.intents--;
+                removeIfIdle(s, table, rl);
+            }
+        } finally {
+            s.lock.unlock();
         }
-        xidStamp.put(xid, stamp);                   // 将当前事务ID和全局时间戳添加到xidStamp映射中
+    }
 
-        Long uid = waitU.get(xid);                  // 从waitU映射中获取当前事务ID正在等待的资源ID
-        if (uid == null) return false;              // 如果资源ID不存在，表示当前事务ID不在等待任何资源，返回false
-        Long x = u2x.get(uid);                      // 从u2x映射中获取当前资源ID被哪个事务ID持有
-        assert x != null;                           // 断言这个事务ID存在
-        return dfs(x);                              // 递归调用dfs方法检查这个事务ID
+    // 没有持有者、意向和等待者的表锁不再需要，调用时持有分片锁
+    private void removeIfIdle(Shard s, long table, ResourceLock rl) {
+        if(rl.owner == null && rl.intents == 0 && rl.waiters.isEmpty()) {
+            s.locks.remove(table);
+        }
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
+    // 把 uid 交给等待队列里的下一个事务，没有人等待时删除这个资源的锁
+    // 表锁不转交，唤醒所有等待者重新登记意向
+    private void release(Holder h, long uid) {
+        Shard s = shard(uid);
+        s.lock.lock();
+        try {
+            ResourceLock rl = s.locks.get(uid);
+            if(rl == null || rl.owner != h) {
+                return;
             }
+            if(rl.table) {
+                rl.owner = null;
+                Waiter w;
+                while((w = rl.waiters.pollFirst()) != null) {
+                    clearWaiting(w);
+                    w.granted.countDown();
+                }
+                removeIfIdle(s, uid, rl);
+                return;
+            }
+            Waiter next = rl.waiters.pollFirst();
+            if(next == null) {
+                s.locks.remove(uid);
+                return;
+            }
+            rl.owner = next.holder;
+            next.holder.held.add(uid);
+            clearWaiting(next);
+            next.granted.countDown();
+        } finally {
+            s.lock.unlock();
         }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+    }
+
+    /**
+     * 放弃等待
+     * @return 已经拿到锁时返回 false
+     */
+    private boolean cancel(Waiter w) {
+        Shard s = shard(w.uid);
+        s.lock.lock();
+        try {
+            if(w.granted.getCount() == 0) {
+                return false;
+            }
+            clearWaiting(w);
+            ResourceLock rl = s.locks.get(w.uid);
+            if(rl != null) {
+                rl.waiters.remove(w);
+                if(rl.table) {
+                    removeIfIdle(s, w.uid, rl);
+                }
+            }
+            return true;
+        } finally {
+            s.lock.unlock();
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    // 删除等待边，调用时持有 w.uid 的分片锁
+    private void clearWaiting(Waiter w) {
+        if(w.holder.waiting == w) {
+            w.holder.waiting = null;
+            waitingCount.decrementAndGet();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
+    /**
+     * 死锁检测，调用时持有 graphLock
+     * 从 h 等待的资源出发，沿着 持有者 -> 持有者等待的资源 走下去，回到 h 就是死锁
+     * 每走一步都要经过一个不同的等待中的事务，步数不会超过等待中的事务数
+     */
+    private boolean hasDeadLock(Holder h, long uid) {
+        int limit = waitingCount.get();
+        for (int i = 0; i <= limit; i++) {
+            Holder owner = ownerOf(uid);
+            if(owner == h) {
                 return true;
             }
+            if(owner == null) {
+                return false;                   // 资源已经被释放了
+            }
+            Waiter w = owner.waiting;
+            if(w == null) {
+                return false;                   // 持有者没有在等待
+            }
+            uid = w.uid;
         }
         return false;
     }
 
+    private Holder ownerOf(long uid) {
+        Shard s = shard(uid);
+        s.lock.lock();
+        try {
+            ResourceLock rl = s.locks.get(uid);
+            return rl == null ? null : rl.owner;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private Shard shard(long uid) {
+        return shards[index(uid)];
+    }
+
+    // UID 的低位是页内偏移，高位是页号，打散之后再取高位
+    private static int index(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - SHARD_BITS));
+    }
 }
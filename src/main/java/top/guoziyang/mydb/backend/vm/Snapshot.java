@@ -0,0 +1,37 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务的快照，只记录：
+ * xmin: 开始时最小的活跃事务ID，比它小的事务在快照时都已经结束了
+ * xmax: 事务自己的ID，比它大（包括它自己）的事务都在快照之后才开始，视为活跃
+ * xip: [xmin, xmax) 之间开始时还活跃的事务，有序，判断时二分查找
+ * xip 数组可能和活跃事务表以及其他快照共享，只读取前 count 个元素，见 ActiveXids
+ */
+public class Snapshot {
+    final long xmin;
+    final long xmax;
+    private final long[] xip;
+    private final int count;
+
+    Snapshot(long xmax, long[] xip, int count) {
+        this.xmin = count > 0 ? xip[0] : xmax;
+        this.xmax = xmax;
+        this.xip = xip;
+        this.count = count;
+    }
+
+    /**
+     * 事务 xid 在快照中是否还是活跃的
+     */
+    public boolean isActive(long xid) {
+        if(xid < xmin) {
+            return false;
+        }
+        if(xid >= xmax) {
+            return true;
+        }
+        return Arrays.binarySearch(xip, 0, count, xid) >= 0;
+    }
+}
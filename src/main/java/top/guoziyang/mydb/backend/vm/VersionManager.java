@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.List;
+
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
@@ -8,13 +10,32 @@ public interface VersionManager {
     // 数据版本链管理
     byte[] read(long xid, long uid) throws Exception;       // 保证可见性的条件下，读取数据DataItem
     long insert(long xid, byte[] data) throws Exception;    // 通过事务xid插入数据
-    boolean delete(long xid, long uid) throws Exception;    // 通过事务xid删除数据
+    boolean delete(long xid, long uid) throws Exception;    // 通过事务xid删除数据，行锁被占用时一直等待
+    // 同上，删除表 table 中的一行，先在表上登记意向，已经持有表锁时不加行锁；
+    // lockTimeout 是等锁的毫秒数，小于 0 一直等待，0 不等待；
+    // 超时拿不到锁时 skipLocked 为 true 则跳过这一行返回 false，否则回滚事务并抛出 LockNotAvailableException
+    boolean delete(long xid, long table, long uid, long lockTimeout, boolean skipLocked) throws Exception;
+
+    // 锁升级
+    boolean lockTable(long xid, long table) throws Exception;   // 没有别的事务在表中加行锁时拿到表锁，不等待
+    // 批量删除表 table 中的版本，持有表锁时不加行锁，同一页面上的 XMAX 合并写一条日志，返回删除成功的 UID
+    List<Long> deleteAll(long xid, long table, List<Long> uids) throws Exception;
 
     // 事务管理
     long begin(int level);                                  // 事务开启隔离级别
+    long begin(int level, boolean asyncCommit);             // 同上，asyncCommit 为 true 时提交不等待落盘
+    long beginReadOnly(int level);                          // 开启只读事务，不分配XID，返回的句柄为负数
     void commit(long xid) throws Exception;                 // 提交事务
     void abort(long xid);                                   // 撤销事务
 
+    // 冻结，先对所有数据版本调用 freeze(uid, horizon)，再调用 freezeXids(horizon) 丢弃之前的事务状态
+    long freezeHorizon();                                   // 比它小的事务已经结束，对所有事务的可见性都一样
+    boolean freeze(long uid, long horizon) throws Exception; // 冻结一个数据版本，返回是否修改
+    void freezeXids(long horizon);                          // 冻结的日志落盘后，丢弃 horizon 之前的事务状态
+    long frozenXid();                                       // 已经冻结的最大XID
+
+    void close();                                           // 停止后台落盘并把异步提交落盘，在关闭 DM 和 TM 之前调用
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
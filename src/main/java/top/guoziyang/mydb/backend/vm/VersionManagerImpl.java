@@ -1,7 +1,15 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,20 +22,37 @@ import top.guoziyang.mydb.common.Error;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    // 异步提交的事务最多过这么久就会落盘，崩溃时最多丢失这段时间内提交的事务
+    static final long FLUSH_DELAY_MS = 10;
+
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    Map<Long, Transaction> activeTransaction;   // 活跃事务表，读写数据时不加锁查找
+    ActiveXids activeXids;                      // 活跃事务ID，用于生成快照，在 lock 内维护
     Lock lock;
+    Lock beginLock;                             // 串行开启事务，见 begin()
+    AtomicLong readOnlyHandles;                 // 只读事务的句柄，从 -1 开始递减，不和XID冲突
     LockTable lt;
+    Lock flushLock;                             // 串行持久化异步提交，见 flushCommits()
+    volatile ScheduledExecutorService flusher;  // 第一次异步提交时才启动
+    boolean closed;                             // 关闭之后不再启动 flusher，在 this 上同步
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.activeXids = new ActiveXids(tm.nextXid() - 1);
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
+        this.beginLock = new ReentrantLock();
+        this.readOnlyHandles = new AtomicLong();
         this.lt = new LockTable();
+        this.flushLock = new ReentrantLock();
+        dm.setAsyncCommit(xid -> {
+            Transaction t = activeTransaction.get(xid);
+            return t != null && t.asyncCommit;
+        });
     }
 
     /**
@@ -39,9 +64,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -80,13 +103,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         // 包裹成entry交给dm处理
         byte[] raw = Entry.wrapEntryRaw(xid, data);
@@ -103,13 +127,19 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
+        return delete(xid, 0, uid, -1, false);
+    }
+
+    @Override
+    public boolean delete(long xid, long table, long uid, long lockTimeout, boolean skipLocked) throws Exception {
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -124,18 +154,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if(!Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l = null;
-            try {
-                l = lt.add(xid, uid);                       // 添加到死锁检测
-            } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);         // 自动回滚
-                t.autoAborted = true;
-                throw t.err;
-            }
-            if(l != null) {
-                l.lock();
-                l.unlock();
+            if(!lockRow(t, table, uid, lockTimeout)) {
+                if(skipLocked) {
+                    return false;               // 行被别的事务锁住，跳过
+                }
+                throw autoAbort(t, Error.LockNotAvailableException);
             }
 
             if(entry.getXmax() == xid) {
@@ -143,10 +166,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
 
             if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+                throw autoAbort(t, Error.ConcurrentUpdateException);
             }
 
             entry.setXmax(xid);
@@ -157,55 +177,366 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 为 t 加 uid 的行锁：table 不为 0 时先在表上登记意向，已经持有表锁时不再加行锁。
+     * 登记意向和等行锁共用 lockTimeout，等待会造成死锁时回滚事务并抛出异常
+     * @return 超时（lockTimeout 为 0 时锁被占用）返回 false
+     */
+    private boolean lockRow(Transaction t, long table, long uid, long lockTimeout) throws Exception {
+        long xid = t.xid;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(lockTimeout, 0));
+        if(table != 0) {
+            if(lt.holdsTable(xid, table)) {
+                return true;
+            }
+            while(true) {
+                CountDownLatch l;
+                try {
+                    l = lt.intend(xid, table);
+                } catch(Exception e) {
+                    throw autoAbort(t, Error.ConcurrentUpdateException);
+                }
+                if(l == null) {
+                    break;
+                }
+                // 表锁释放后重新登记，超时之后放弃等待，放弃前表锁刚好释放就重试
+                if(!await(l, lockTimeout, deadline) && lt.cancelWait(xid)) {
+                    return false;
+                }
+            }
+        }
+        if(lockTimeout == 0) {
+            return lt.tryAdd(xid, uid);
+        }
+        CountDownLatch l;
+        try {
+            l = lt.add(xid, uid);                       // 添加到死锁检测
+        } catch(Exception e) {
+            throw autoAbort(t, Error.ConcurrentUpdateException);
+        }
+        // 等待持有者提交或回滚后把锁转交过来，超时之后放弃等待，放弃前锁刚好转交过来就继续
+        return l == null || await(l, lockTimeout, deadline) || !lt.cancelWait(xid);
+    }
+
+    // lockTimeout 小于 0 时一直等待，否则最多等到 deadline
+    private static boolean await(CountDownLatch l, long lockTimeout, long deadline) throws InterruptedException {
+        if(lockTimeout < 0) {
+            l.await();
+            return true;
+        }
+        return l.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean lockTable(long xid, long table) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        return lt.escalate(xid, table);
+    }
+
+    /**
+     * 批量删除：持有表锁时别的事务不能在表中加行锁，可见性和版本跳跃检查之后不必再加行锁，
+     * 把 UID 按页号排序，同一页面上的版本一起设置 XMAX，整页只写一条日志；
+     * 没有持有表锁时逐行加锁删除，行锁被占用时一直等待
+     */
+    @Override
+    public List<Long> deleteAll(long xid, long table, List<Long> uids) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        List<Long> deleted = new ArrayList<>();
+        if(!lt.holdsTable(xid, table)) {
+            for (long uid : uids) {
+                if(delete(xid, table, uid, -1, false)) {
+                    deleted.add(uid);
+                }
+            }
+            return deleted;
+        }
+
+        long[] sorted = new long[uids.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = uids.get(i);
+        }
+        Arrays.sort(sorted);
+        int from = 0;
+        while(from < sorted.length) {
+            int to = from + 1;
+            while(to < sorted.length && (sorted[to] >>> 32) == (sorted[from] >>> 32)) {
+                to++;
+            }
+            deletePage(t, sorted, from, to, deleted);
+            from = to;
+        }
+        return deleted;
+    }
+
+    // 删除同一页面上的一组版本，uids[from, to) 已经排好序
+    private void deletePage(Transaction t, long[] uids, int from, int to, List<Long> deleted) throws Exception {
+        List<Entry> entries = new ArrayList<>(to - from);
+        try {
+            List<Entry> targets = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                if(i > from && uids[i] == uids[i - 1]) {
+                    continue;
+                }
+                Entry entry;
+                try {
+                    entry = super.get(uids[i]);
+                } catch(Exception e) {
+                    if(e == Error.NullEntryException) {
+                        continue;
+                    }
+                    throw e;
+                }
+                entries.add(entry);
+                if(!Visibility.isVisible(tm, t, entry) || entry.getXmax() == t.xid) {
+                    continue;
+                }
+                if(Visibility.isVersionSkip(tm, t, entry)) {
+                    throw autoAbort(t, Error.ConcurrentUpdateException);
+                }
+                targets.add(entry);
+            }
+            Entry.setXmax(targets, t.xid);
+            for (Entry entry : targets) {
+                deleted.add(entry.getUid());
+            }
+        } finally {
+            for (Entry entry : entries) {
+                entry.release();
+            }
+        }
+    }
+
     /**
      * 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用：
+     * 快照必须包含所有比自己小的活跃事务，所以从分配XID到加入 activeXids 在 beginLock 内串行，
+     * TM 分配XID本身就是串行的，这里不增加额外的等待；tm.begin() 要刷盘，期间不持有 lock，
+     * 提交和回滚不会被开启事务阻塞。
      * @param level 隔离等级
      * @return
      */
     @Override
     public long begin(int level) {
-        lock.lock();                     // 获取锁，防止并发问题
+        return begin(level, false);
+    }
+
+    @Override
+    public long begin(int level, boolean asyncCommit) {
+        beginLock.lock();
         try {
             long xid = tm.begin();       // 开启一个新事务,获取id
-            // 初始化事务的结构,创建一个新的事务对象
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
-            // 将其存放在 activeTransaction 中，用于检查和快照使用
-            activeTransaction.put(xid, t);
+            lock.lock();                 // 获取锁，防止并发问题
+            try {
+                // 初始化事务的结构,创建一个新的事务对象
+                Transaction t = Transaction.newTransaction(xid, level, activeXids);
+                t.asyncCommit = asyncCommit;
+                activeXids.add(xid);
+                // 将其存放在 activeTransaction 中，用于检查和快照使用，在锁内放入，freezeHorizon() 不会漏掉它的快照
+                activeTransaction.put(xid, t);
+            } finally {
+                lock.unlock();
+            }
             return xid;
+        } finally {
+            beginLock.unlock();
+        }
+    }
+
+    /**
+     * 开启一个只读事务，不调用 tm.begin()，不写 XID 文件也不刷盘
+     * 只读事务不修改数据，别的事务不需要知道它是否活跃，所以只登记在 activeTransaction 中，
+     * 可重复读的快照截止到最后一个加入 activeXids 的事务，之后开始的事务都视为活跃。
+     * @param level 隔离等级
+     * @return 负数句柄，代替XID在之后的读取和提交中使用
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        long handle = readOnlyHandles.decrementAndGet();
+        lock.lock();
+        try {
+            activeTransaction.put(handle, Transaction.newReadOnlyTransaction(handle, level, activeXids));
         } finally {
             lock.unlock();
         }
+        return handle;
     }
 
     /**
      * 提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，修改 TM 状态
+     * 异步提交的事务只在 TM 内存中记为已提交，由后台线程在 FLUSH_DELAY_MS 内落盘；
+     * 同步提交之前先把已经异步提交的事务落盘，保证崩溃后不会出现后提交的事务还在、先提交的却丢了。
+     * TM 中的状态改为已提交之后才从 activeXids 中移除，不在活跃事务中的事务一定已经结束
      * @param xid
      * @throws Exception
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock(); // 获取锁，防止并发问题
         Transaction t = activeTransaction.get(xid); // 从活动事务中获取事务对象
-        lock.unlock(); // 释放锁
 
         try {
             if (t.err != null) { // 如果事务已经出错，那么抛出错误
                 throw t.err;
             }
-        } catch (NullPointerException n) { // 如果事务对象为null，打印事务ID和活动事务的键集，然后抛出异常
-            System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
+        } catch (NullPointerException n) { // 如果事务对象为null，说明上层状态错乱，直接退出
             Panic.panic(n);
         }
 
-        lock.lock(); // 获取锁，防止并发问题
-        activeTransaction.remove(xid); // 从活动事务中移除这个事务
-        lock.unlock(); // 释放锁
+        if(t.readOnly) {
+            activeTransaction.remove(xid);
+            return;                    // 只读事务没有在 TM 和锁表中登记
+        }
+        if(t.asyncCommit) {
+            tm.commitAsync(xid);
+            startFlusher();
+        } else {
+            flushCommits();
+            tm.commit(xid); // 调用事务管理器的commit方法，进行事务的提交操作
+        }
 
+        lock.lock(); // 获取锁，防止并发问题
+        try {
+            activeTransaction.remove(xid); // 从活动事务中移除这个事务
+            activeXids.remove(xid);
+        } finally {
+            lock.unlock(); // 释放锁
+        }
         lt.remove(xid); // 从锁表中移除这个事务的锁
-        tm.commit(xid); // 调用事务管理器的commit方法，进行事务的提交操作
     }
 
+    /**
+     * 持久化异步提交的事务：先把日志落盘，再把提交状态写入 XID 文件，
+     * 崩溃时 XID 文件里已提交的事务，它的日志一定都在磁盘上
+     */
+    void flushCommits() {
+        flushLock.lock();
+        try {
+            long[] xids = tm.pendingCommits();
+            if(xids.length == 0) {
+                return;
+            }
+            dm.flushLog();
+            tm.persistCommits(xids);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void startFlusher() {
+        if(flusher != null) {
+            return;
+        }
+        synchronized(this) {
+            if(flusher != null) {
+                return;
+            }
+            if(closed) {
+                flushCommits();     // 关闭之后的异步提交直接落盘
+                return;
+            }
+            ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread th = new Thread(r, "async-commit-flusher");
+                th.setDaemon(true);
+                return th;
+            });
+            s.scheduleWithFixedDelay(this::flushCommits, FLUSH_DELAY_MS, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            flusher = s;
+        }
+    }
+
+    /**
+     * 关闭：停止 flusher，并把还没有落盘的异步提交落盘，之后才能关闭 DM 和 TM
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService s;
+        synchronized(this) {
+            closed = true;
+            s = flusher;
+        }
+        if(s != null) {
+            s.shutdown();
+            try {
+                s.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        flushCommits();
+    }
+
+    /**
+     * 冻结水位线：最小的活跃事务ID和所有快照的 xmin 中最小的一个，已经自动回滚的事务的快照不再使用，不算在内；
+     * 比它小的事务都已经结束，并且不在任何快照的活跃列表中，它们的数据版本对所有事务的可见性只取决于是否提交。
+     * 返回前把异步提交落盘，水位线之前的事务在 TM 中的状态都已经持久化
+     */
+    @Override
+    public long freezeHorizon() {
+        long horizon;
+        lock.lock();
+        try {
+            horizon = activeXids.min();
+            for (Transaction t : activeTransaction.values()) {
+                if(t.snapshot != null && !t.autoAborted) {
+                    horizon = Math.min(horizon, t.snapshot.xmin);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        flushCommits();
+        return horizon;
+    }
+
+    @Override
+    public boolean freeze(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.freeze(horizon, tm::isCommitted);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void freezeXids(long horizon) {
+        // 冻结版本的日志没有逐条落盘，事务状态丢弃之前必须先落盘，否则崩溃后未提交版本的修改丢失，却被当成已提交
+        dm.flushLog();
+        tm.freeze(horizon - 1);
+    }
+
+    @Override
+    public long frozenXid() {
+        return tm.frozenXid();
+    }
+
+    // 记下错误并自动回滚，返回要抛出的错误
+    private Exception autoAbort(Transaction t, Exception err) {
+        t.err = err;
+        internAbort(t.xid, true);
+        return err;
+    }
 
     // 手动回滚
     @Override
@@ -220,16 +551,31 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * @param autoAborted 是否自动回滚
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+        if(t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
         if(!autoAborted) {
             activeTransaction.remove(xid);
+            lock.lock();
+            activeXids.remove(xid);
+            lock.unlock();
         }
-        lock.unlock();
 
         if(t.autoAborted) return;
         lt.remove(xid);
         tm.abort(xid);
+        if(autoAborted) {
+            // 客户端还没有回滚之前事务留在 activeTransaction 中，但它已经结束，不能再挡住快照和冻结水位线
+            lock.lock();
+            try {
+                t.autoAborted = true;
+                activeXids.remove(xid);
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     // 释放Entry缓存
@@ -22,7 +22,8 @@ public class Visibility {
             return false;
         } else {
             // 已提交删除当前事务版本，并且这个删除的事务id是在此事务之后发生 或者 是一个未提交的活跃事务操作删除的，就是版本跳跃
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            // 快照把此事务之后开始的事务也视为活跃的，见 Snapshot
+            return tm.isCommitted(xmax) && t.isInSnapshot(xmax);
         }
     }
 
@@ -75,6 +76,7 @@ public class Visibility {
      * 可重复读，多了一个记录活跃事务，简而言之活跃事务操作的数据版本都是不可见的
      * 读取事务t操作的版本只要没被删除都是可见的；
      * 读取其他事务操作过的版本数据，只能读取在本事务开始前就已经提交的事务，并且没有在活跃事务列表里面也没有被删除
+     * 在本事务之后开始的事务在快照中也视为活跃，所以只比较快照，不比较 xid，只读事务的 xid 是一个负数句柄
      *
      * @param tm 事务管理器
      * @param t  事务
@@ -89,12 +91,12 @@ public class Visibility {
         if (xmin == xid && xmax == 0) return true;
 
         // 大范围，只能读取在本事务开始前就已经提交的事务，并且没有在活跃事务列表里面
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (tm.isCommitted(xmin) && !t.isInSnapshot(xmin)) {
             // 当前版本还不能被删除
             if (xmax == 0) return true;
             // 删除的事务在本事务之后开始，或者未提交，再或者是活跃事务也是对当前事务可见的
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (!tm.isCommitted(xmax) || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
@@ -12,6 +12,9 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadPageFileException = new RuntimeException("Bad page file!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadPageChecksumException = new RuntimeException("Bad page checksum!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -19,6 +22,8 @@ public class Error {
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
+    public static final Exception LockNotAvailableException = new RuntimeException("Lock not available!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot modify data in a read-only transaction!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
     // tbm
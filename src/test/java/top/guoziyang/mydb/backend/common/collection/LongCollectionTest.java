@@ -0,0 +1,123 @@
+package top.guoziyang.mydb.backend.common.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongCollectionTest {
+
+    static Random random = new SecureRandom();
+
+    // 键的范围很小，频繁命中已有的键和删除后前移的探测链；包含 0 和负数
+    private long randomKey() {
+        return random.nextInt(512) - 64;
+    }
+
+    @Test
+    public void testLongObjectMap() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = randomKey();
+            switch (random.nextInt(3)) {
+                case 0:
+                    long value = random.nextLong();
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        List<Long> values = new ArrayList<>();
+        map.forEachValue(values::add);
+        assertEquals(expected.size(), values.size());
+        assertTrue(expected.values().containsAll(values));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    @Test
+    public void testLongIntMap() {
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = randomKey();
+            switch (random.nextInt(4)) {
+                case 0:
+                    int value = random.nextInt();
+                    Integer old = expected.put(key, value);
+                    assertEquals(old == null ? 0 : old, map.put(key, value));
+                    break;
+                case 1:
+                    Integer removed = expected.remove(key);
+                    assertEquals(removed == null ? 0 : removed, map.remove(key));
+                    break;
+                case 2:
+                    int sum = expected.getOrDefault(key, 0) + 1;
+                    expected.put(key, sum);
+                    assertEquals(sum, map.addTo(key, 1));
+                    break;
+                default:
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                    assertEquals((int) expected.getOrDefault(key, 0), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+    }
+
+    @Test
+    public void testLongSet() {
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = randomKey();
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.add(key), set.add(key));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), set.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.contains(key), set.contains(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        Set<Long> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void testLongList() {
+        LongList list = new LongList(1);
+        for (long i = 0; i < 1000; i++) {
+            list.add(i * 3);
+        }
+        assertEquals(1000, list.size());
+        assertEquals(2997, list.get(999));
+        assertTrue(list.contains(300));
+        assertFalse(list.contains(301));
+        assertEquals(1000, list.toArray().length);
+        list.clear();
+        assertTrue(list.isEmpty());
+    }
+}
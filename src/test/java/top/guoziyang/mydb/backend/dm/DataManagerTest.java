@@ -1,12 +1,14 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,11 +16,16 @@ import org.junit.Test;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.page.PageTrailer;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
+import top.guoziyang.mydb.backend.utils.TestFiles;
+import top.guoziyang.mydb.common.Error;
 
 public class DataManagerTest {
 
@@ -108,8 +115,7 @@ public class DataManagerTest {
         cdl.await();
         dm0.close(); mdm.close();
 
-        new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        TestFiles.removeAll("/tmp/TESTDMSingle");
     }
 
     @Test
@@ -128,8 +134,7 @@ public class DataManagerTest {
         cdl.await();
         dm0.close(); mdm.close();
 
-        new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        TestFiles.removeAll("/tmp/TestDMMulti");
     }
 
     @Test
@@ -153,9 +158,464 @@ public class DataManagerTest {
         }
         dm0.close(); mdm.close();
         
-        new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
-        new File("/tmp/TestRecoverySimple.xid").delete();
+        TestFiles.removeAll("/tmp/TestRecoverySimple");
 
     }
+
+    @Test
+    public void testDMInsertConcurrent() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMInsertConcurrent", PageCache.PAGE_SIZE*50, tm0);
+
+        // 多个线程并发插入，每条数据都要能按返回的 uid 原样读回
+        int workerNums = 8, tasksNum = 2000;
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        Lock lock = new ReentrantLock();
+        CountDownLatch cdl = new CountDownLatch(workerNums);
+        for(int i = 0; i < workerNums; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int k = 0; k < tasksNum; k ++) {
+                        byte[] data = RandomUtil.randomBytes(60);
+                        long uid = dm0.insert(0, data);
+                        lock.lock();
+                        uids.add(uid);
+                        datas.add(data);
+                        lock.unlock();
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        assert cdl.await(60, TimeUnit.SECONDS);
+
+        assert uids.size() == workerNums*tasksNum;
+        assert uids.stream().distinct().count() == uids.size();
+        checkItems(dm0, uids, datas);
+        dm0.close();
+
+        TestFiles.removeAll("/tmp/TestDMInsertConcurrent");
+    }
+
+    @Test
+    public void testFreeSpaceMapReopen() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestFreeSpaceMap", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        dm0.close();
+
+        File fsm = new File("/tmp/TestFreeSpaceMap.fsm");
+        assert fsm.exists();
+        long pages = new File("/tmp/TestFreeSpaceMap.db").length() / PageCache.PAGE_SIZE;
+        assert fsm.length() == 4 + 2 * (pages - 1);
+
+        // 正常关闭后重新打开，页面索引从 .fsm 读入，最后一页剩余的空间应该被继续使用
+        dm0 = DataManager.open("/tmp/TestFreeSpaceMap", PageCache.PAGE_SIZE*10, tm0);
+        long uid = dm0.insert(0, RandomUtil.randomBytes(10));
+        assert (uid >>> 32) <= pages;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm0.close();
+
+        TestFiles.removeAll("/tmp/TestFreeSpaceMap");
+    }
+
+    @Test
+    public void testCheckpointRecovery() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestCheckpoint", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 检查点之后只留下检查点日志，再修改第一页数据页上的一条数据后模拟崩溃（不关闭直接重新打开）
+        ((DataManagerImpl)dm0).checkpoint();
+        DataItem di0 = dm0.read(uids.get(0));
+        di0.before();
+        SubArray sa0 = di0.data();
+        byte[] data = RandomUtil.randomBytes(1000);
+        System.arraycopy(data, 0, sa0.raw, sa0.start, data.length);
+        di0.after(0);
+        di0.release();
+        datas.set(0, data);
+
+        // 恢复时不能按检查点之后的日志把之前的页面截掉
+        DataManager dm1 = DataManager.open("/tmp/TestCheckpoint", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        TestFiles.removeAll("/tmp/TestCheckpoint");
+    }
+
+    @Test
+    public void testDeltaUpdateRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDeltaUpdate");
+        DataManager dm0 = DataManager.create("/tmp/TestDeltaUpdate", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 20; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+
+        // 已提交事务只改了 8 个字节，日志只记录变化的区间
+        long committed = tm0.begin();
+        for(int i = 0; i < 10; i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            SubArray sa = di.data();
+            byte[] patch = RandomUtil.randomBytes(8);
+            System.arraycopy(patch, 0, sa.raw, sa.start + 100, 8);
+            System.arraycopy(patch, 0, datas.get(i), 100, 8);
+            assert Recover.updateLog(committed, di).length < 50;
+            di.after(committed);
+            di.release();
+        }
+        tm0.commit(committed);
+
+        // 未提交事务的修改在恢复时被撤销
+        long active = tm0.begin();
+        for(int i = 10; i < 20; i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            SubArray sa = di.data();
+            sa.raw[sa.start + 3] ^= 1;
+            sa.raw[sa.start + 900] ^= 1;
+            di.after(active);
+            di.release();
+        }
+
+        // 不关闭直接重新打开，模拟崩溃
+        DataManager dm1 = DataManager.open("/tmp/TestDeltaUpdate", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        assert tm0.isAborted(active);
+        dm1.close();
+        tm0.close();
+
+        TestFiles.removeAll("/tmp/TestDeltaUpdate");
+    }
+
+    @Test
+    public void testPageUpdateRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestPageUpdate");
+        DataManager dm0 = DataManager.create("/tmp/TestPageUpdate", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 20; i ++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        assert (uids.get(0) >>> 32) == (uids.get(19) >>> 32);
+
+        // 已提交事务修改前 10 个，整页一条日志
+        long committed = tm0.begin();
+        pageUpdate(dm0, committed, uids.subList(0, 10), datas.subList(0, 10));
+        tm0.commit(committed);
+
+        // 未提交事务的修改在恢复时被撤销
+        long active = tm0.begin();
+        pageUpdate(dm0, active, uids.subList(10, 20), null);
+
+        // 不关闭直接重新打开，模拟崩溃
+        DataManager dm1 = DataManager.open("/tmp/TestPageUpdate", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        assert tm0.isAborted(active);
+        dm1.close();
+        tm0.close();
+
+        TestFiles.removeAll("/tmp/TestPageUpdate");
+    }
+
+    // 修改同一页面上的一组 DataItem 的第 8~15 字节，expected 不为 null 时同步修改期望的数据
+    private void pageUpdate(DataManager dm, long xid, List<Long> uids, List<byte[]> expected) throws Exception {
+        List<DataItem> items = new ArrayList<>();
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            di.before();
+            byte[] patch = RandomUtil.randomBytes(8);
+            SubArray sa = di.data();
+            System.arraycopy(patch, 0, sa.raw, sa.start + 8, 8);
+            if(expected != null) {
+                System.arraycopy(patch, 0, expected.get(i), 8, 8);
+            }
+            items.add(di);
+        }
+        dm.afterAll(xid, items);
+        for(DataItem di : items) {
+            di.release();
+        }
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        testPageSize("/tmp/TestPageSize4K", PageCache.MIN_PAGE_SIZE, false);
+        testPageSize("/tmp/TestPageSize64K", PageCache.MAX_PAGE_SIZE, true);
+    }
+
+    private void testPageSize(String path, int pageSize, boolean compress) throws Exception {
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, (long) pageSize*20, tm0, pageSize, compress);
+        int maxData = pageSize - PageTrailer.SIZE - 2 - 3;
+        try {
+            dm0.insert(0, new byte[maxData + 1]);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DataTooLargeException;
+        }
+        // 大页面中的偏移量会超过 32K
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int len : new int[] {maxData, pageSize / 3, pageSize / 3, pageSize / 5, 100}) {
+            byte[] data = RandomUtil.randomBytes(len);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+
+        // 不关闭直接重新打开，模拟崩溃
+        DataManager dm1 = DataManager.open(path, (long) pageSize*20, tm0);
+        assert ((DataManagerImpl) dm1).pc.getPageSize() == pageSize;
+        checkItems(dm1, uids, datas);
+        dm1.close();
+
+        DataManager dm2 = DataManager.open(path, (long) pageSize*20, tm0);
+        checkItems(dm2, uids, datas);
+        dm2.close();
+        tm0.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testPageChecksum() throws Exception {
+        String path = "/tmp/TestPageChecksum";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 40; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        dm0.close();
+
+        // 磁盘上的数据页出错，读到时报错
+        corrupt(path, 2);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        try {
+            dm1.read(uids.get(0));
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.BadPageChecksumException;
+        }
+        dm1.close();
+        tm0.close();
+        TestFiles.removeAll(path);
+
+        // 崩溃时写了一半的页面，恢复时重做这一页的全部日志
+        tm0 = TransactionManager.create(path);
+        dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            uids.set(i, dm0.insert(0, datas.get(i)));
+        }
+        ((DataManagerImpl) dm0).pc.flushAll();
+        corrupt(path, 3);
+        DataManager dm2 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        checkItems(dm2, uids, datas);
+        dm2.close();
+
+        DataManager dm3 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        checkItems(dm3, uids, datas);
+        dm3.close();
+        tm0.close();
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLostNewPage() throws Exception {
+        String path = "/tmp/TestLostNewPage";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 40; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        // 新建页面不刷盘，崩溃后可能整页都是 0
+        try (RandomAccessFile f = new RandomAccessFile(path + ".db", "rw")) {
+            f.seek(PageCache.PAGE_SIZE);
+            f.write(new byte[PageCache.PAGE_SIZE]);
+        }
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        checkItems(dm1, uids, datas);
+        for(int i = 0; i < 40; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm1.insert(0, data));
+            datas.add(data);
+        }
+        dm1.close();
+
+        DataManager dm2 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        checkItems(dm2, uids, datas);
+        dm2.close();
+        tm0.close();
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testInsertLsnOrder() throws Exception {
+        String path = "/tmp/TestInsertLsnOrder";
+        TransactionManager tm0 = TransactionManager.create(path);
+        CountDownLatch logged = new CountDownLatch(1);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] paused = new Thread[1];
+        Logger lg = new PausingLogger(Logger.create(path), () -> {
+            // 插入日志已经写下，页面还没改
+            if(Thread.currentThread() == paused[0]) {
+                logged.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        });
+        DataManagerImpl dm0 = new DataManagerImpl(PageCache.create(path, PageCache.PAGE_SIZE*10, PageCache.PAGE_SIZE, false, true),
+                lg, tm0, FreeSpaceMap.create(path));
+        dm0.initPageOne();
+
+        byte[] data0 = RandomUtil.randomBytes(1000);
+        long uid0 = dm0.insert(0, data0);
+        // 一直引用着这一页，页面不会在引用归零时被换出写回，之后的崩溃前只有 flushAll 写过它
+        DataItem pinned = dm0.read(uid0);
+        byte[] data1 = RandomUtil.randomBytes(1000);
+        long[] uid1 = new long[1];
+        paused[0] = new Thread(() -> {
+            try {
+                uid1[0] = dm0.insert(0, data1);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        paused[0].start();
+        logged.await();
+
+        // 插入停在写完日志之后，同一页面上的修改记下更大的 LSN 并刷盘
+        byte[] update = RandomUtil.randomBytes(1000);
+        Thread updater = new Thread(() -> {
+            try {
+                DataItem di = dm0.read(uid0);
+                di.before();
+                SubArray sa = di.data();
+                System.arraycopy(update, 0, sa.raw, sa.start, update.length);
+                di.after(0);
+                di.release();
+                dm0.pc.flushAll();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        updater.start();
+        updater.join(500);
+        go.countDown();
+        paused[0].join();
+        updater.join();
+        assert (uid0 >>> 32) == (uid1[0] >>> 32);
+        assert pinned.page().getPageNumber() == (int) (uid0 >>> 32);
+
+        // 不关闭直接重新打开，模拟崩溃，恢复时插入不能因为页面 LSN 更大被跳过
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = Arrays.asList(uid0, uid1[0]);
+        checkItems(dm1, uids, Arrays.asList(update, data1));
+        dm1.close();
+        tm0.close();
+        TestFiles.removeAll(path);
+    }
+
+    // 写完插入日志之后先执行 onInsert 再返回
+    private static class PausingLogger implements Logger {
+        private final Logger lg;
+        private final Runnable onInsert;
+
+        PausingLogger(Logger lg, Runnable onInsert) {
+            this.lg = lg;
+            this.onInsert = onInsert;
+        }
+
+        public long log(byte[] data) { return log(data, true); }
+        public long log(byte[] data, boolean force) {
+            long lsn = lg.log(data, force);
+            if(data[0] == 0) {
+                onInsert.run();
+            }
+            return lsn;
+        }
+        public void flush(long lsn) { lg.flush(lsn); }
+        public void truncate(long x) throws Exception { lg.truncate(x); }
+        public byte[] next() { return lg.next(); }
+        public SubArray nextView() { return lg.nextView(); }
+        public long lsn() { return lg.lsn(); }
+        public void rewind() { lg.rewind(); }
+        public void close() { lg.close(); }
+        public long beginCheckpoint(byte[] data) { return lg.beginCheckpoint(data); }
+        public void endCheckpoint(long seq) { lg.endCheckpoint(seq); }
+        public boolean needCheckpoint() { return lg.needCheckpoint(); }
+    }
+
+    // 改掉数据页中间的一个字节
+    private void corrupt(String path, int pgno) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(path + ".db", "rw")) {
+            long pos = (long) (pgno - 1) * PageCache.PAGE_SIZE + 100;
+            f.seek(pos);
+            int b = f.read();
+            f.seek(pos);
+            f.write(b ^ 0xFF);
+        }
+    }
+
+    private void checkItems(DataManager dm, List<Long> uids, List<byte[]> datas) throws Exception {
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+    }
 }
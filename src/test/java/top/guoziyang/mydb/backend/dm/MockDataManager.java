@@ -1,10 +1,12 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
@@ -53,5 +55,18 @@ public class MockDataManager implements DataManager {
 
     @Override
     public void close() {}
+
+    @Override
+    public void afterAll(long xid, List<DataItem> items) {
+        for(DataItem di : items) {
+            di.unlock();
+        }
+    }
+
+    @Override
+    public void setAsyncCommit(LongPredicate asyncCommit) {}
+
+    @Override
+    public void flushLog() {}
     
 }
@@ -48,6 +48,11 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void after(long xid, boolean force) {
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
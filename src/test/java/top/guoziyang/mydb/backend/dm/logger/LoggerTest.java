@@ -1,9 +1,18 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.utils.TestFiles;
+
 public class LoggerTest {
     @Test
     public void testLogger() {
@@ -44,5 +53,206 @@ public class LoggerTest {
         lg.close();
 
         assert new File("/tmp/logger_test.log").delete();
+        assert LoggerImpl.segmentFile("/tmp/logger_test", 0).delete();
+    }
+
+    @Test
+    public void testLsn() {
+        String path = "/tmp/logger_test_lsn";
+        Logger lg = Logger.create(path, 1024);
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long lsn = lg.log(record(i));
+            // LSN 按写入顺序递增，跨日志段也一样
+            assert lsns.isEmpty() || lsn > lsns.get(lsns.size() - 1);
+            lsns.add(lsn);
+        }
+        lg.rewind();
+        for (int i = 0; i < 100; i++) {
+            assert Arrays.equals(record(i), lg.next());
+            assert lg.lsn() == lsns.get(i);
+        }
+        lg.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLoggerLargeAndBadTail() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_test_large");
+        // 记录跨越预读缓冲的边界，其中一条比整个预读缓冲还大
+        int[] sizes = {100, (1 << 20) - 50, 3 << 20, 7, 4096};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            Arrays.fill(data, (byte) i);
+            lg.log(data);
+        }
+        lg.close();
+
+        // 追加一条没有写完的日志，模拟崩溃时的 BadTail
+        try(RandomAccessFile raf = new RandomAccessFile(LoggerImpl.segmentFile("/tmp/logger_test_large", 0), "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(1000);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        lg = Logger.open("/tmp/logger_test_large");
+        lg.rewind();
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] log = lg.next();
+            assert log != null;
+            assert log.length == sizes[i];
+            assert log[0] == (byte) i && log[log.length - 1] == (byte) i;
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_test_large.log").delete();
+        assert LoggerImpl.segmentFile("/tmp/logger_test_large", 0).delete();
+    }
+
+    @Test
+    public void testLoggerSegments() {
+        String path = "/tmp/logger_test_seg";
+        Logger lg = Logger.create(path, 1024);
+        for (int i = 0; i < 100; i++) {
+            lg.log(record(i));
+        }
+        lg.close();
+        assert LoggerImpl.segmentFile(path, 5).exists();
+
+        // 跨日志段按顺序读出所有日志
+        lg = Logger.open(path, 1024);
+        lg.rewind();
+        for (int i = 0; i < 100; i++) {
+            assert Arrays.equals(record(i), lg.next());
+        }
+        assert lg.next() == null;
+
+        // 检查点之前的日志段被删除，之后只能读到检查点日志和之后写入的日志
+        long seq = lg.beginCheckpoint("checkpoint".getBytes());
+        for (int i = 100; i < 105; i++) {
+            lg.log(record(i));
+        }
+        lg.endCheckpoint(seq);
+        lg.close();
+        assert !LoggerImpl.segmentFile(path, 0).exists();
+        assert !LoggerImpl.segmentFile(path, seq - 1).exists();
+
+        lg = Logger.open(path, 1024);
+        lg.rewind();
+        assert "checkpoint".equals(new String(lg.next()));
+        for (int i = 100; i < 105; i++) {
+            assert Arrays.equals(record(i), lg.next());
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLoggerLegacyFile() throws Exception {
+        // 旧版本的单文件日志：[XChecksum] [Log1] ... [LogN]
+        String path = "/tmp/logger_test_legacy";
+        int xChecksum = 0;
+        ByteBuffer buf = ByteBuffer.allocate(4 + 10 * (8 + 100));
+        buf.position(4);
+        for (int i = 0; i < 10; i++) {
+            byte[] data = record(i);
+            byte[] log = ByteBuffer.allocate(8 + data.length)
+                .putInt(data.length).putInt(LoggerImpl.calChecksum(0, data)).put(data).array();
+            xChecksum = LoggerImpl.calChecksum(xChecksum, log);
+            buf.put(log);
+        }
+        buf.putInt(0, xChecksum);
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".log", "rw")) {
+            raf.write(buf.array());
+        }
+
+        Logger lg = Logger.open(path);
+        lg.rewind();
+        for (int i = 0; i < 10; i++) {
+            assert Arrays.equals(record(i), lg.next());
+        }
+        assert lg.next() == null;
+        lg.log(record(10));
+        lg.close();
+
+        lg = Logger.open(path);
+        lg.rewind();
+        for (int i = 0; i <= 10; i++) {
+            assert Arrays.equals(record(i), lg.next());
+        }
+        lg.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLoggerCrc32c() throws Exception {
+        String path = "/tmp/logger_test_crc";
+        Logger lg = Logger.create(path);
+        lg.log(record(1));
+        lg.log(record(2));
+        lg.close();
+
+        // 新建的日志段头部带有版本号，单条日志的校验和是 [Size][Data] 的 CRC32C
+        File seg = LoggerImpl.segmentFile(path, 0);
+        ByteBuffer raw = ByteBuffer.wrap(Files.readAllBytes(seg.toPath()));
+        assert raw.get(4) == LoggerImpl.VERSION_CRC32C;
+        int first = 9;
+        assert raw.getInt(first) == 100;
+        CRC32C crc = new CRC32C();
+        crc.update(raw.array(), first, 4);
+        crc.update(raw.array(), first + 8, 100);
+        assert raw.getInt(first + 4) == (int) crc.getValue();
+
+        // 最后一条日志的内容被破坏，当作 BadTail 移除
+        try(RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            raf.seek(raf.length());
+            raf.write(raw.array(), first, 108);
+            raf.seek(raf.length() - 1);
+            raf.write(0x7F);
+        }
+        lg = Logger.open(path);
+        lg.rewind();
+        assert Arrays.equals(record(1), lg.next());
+        assert Arrays.equals(record(2), lg.next());
+        assert lg.next() == null;
+        lg.close();
+        assert seg.length() == first + 2 * 108;
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testUnforcedLog() {
+        String path = "/tmp/logger_test_async";
+        Logger lg = Logger.create(path);
+        long lsn1 = lg.log(record(1), false);
+        long lsn2 = lg.log(record(2), false);
+        lg.flush(lsn1);                     // 落盘到 lsn1 时，之前写入的 lsn2 也一起落盘
+        lg.flush(lsn2);
+        lg.log(record(3), false);
+        lg.close();                         // 关闭时落盘
+
+        lg = Logger.open(path);
+        lg.rewind();
+        assert Arrays.equals(record(1), lg.next());
+        assert Arrays.equals(record(2), lg.next());
+        assert Arrays.equals(record(3), lg.next());
+        assert lg.next() == null;
+        lg.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) i);
+        data[0] = (byte) (i >> 8);
+        return data;
     }
 }
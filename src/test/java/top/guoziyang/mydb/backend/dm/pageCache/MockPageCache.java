@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 import top.guoziyang.mydb.backend.dm.page.MockPage;
 import top.guoziyang.mydb.backend.dm.page.Page;
@@ -52,7 +53,36 @@ public class MockPageCache implements PageCache {
         return noPages.intValue();
     }
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    @Override
+    public int getUsableSize() {
+        return PAGE_SIZE;
+    }
+
+    @Override
+    public boolean hasChecksum() {
+        return false;
+    }
+
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void flushAll() {}
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {}
+
+    @Override
+    public void beginRecovery() {}
+
+    @Override
+    public int endRecovery() {
+        return 0;
+    }
     
 }
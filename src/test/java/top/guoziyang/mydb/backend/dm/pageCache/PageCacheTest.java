@@ -1,10 +1,12 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,6 +45,295 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testCompressedPageCache() throws Exception {
+        new File("/tmp/pcacher_compress_test.db").delete();
+        PageCache pc = PageCache.create("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 10, true);
+        byte[][] expect = new byte[101][];
+        for(int i = 1; i <= 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            if(i % 10 == 0) {
+                tmp = RandomUtil.randomBytes(PageCache.PAGE_SIZE);    // 压不下来的页面
+            } else {
+                // 第一页开头记录的是页面大小和格式标志，保持为 0（默认页面大小，不开启页面校验）
+                for(int j = 8; j < 300; j ++) {
+                    tmp[j] = (byte)(j % 7 + i);
+                }
+            }
+            assert pc.newPage(tmp) == i;
+            expect[i] = tmp;
+        }
+        // 修改一部分页面，逐出时写回到新的位置
+        for(int i = 1; i <= 100; i += 3) {
+            Page pg = pc.getPage(i);
+            pg.setDirty(true);
+            pg.getData()[PageCache.PAGE_SIZE - 1] = (byte)i;
+            expect[i][PageCache.PAGE_SIZE - 1] = (byte)i;
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_compress_test.db").length() < PageCache.PAGE_SIZE * 20;
+
+        pc = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 10);
+        assert pc.getPageNumber() == 100;
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert Arrays.equals(expect[i], pg.getData());
+            pg.release();
+        }
+        pc.truncateByBgno(50);
+        byte[] tmp = new byte[PageCache.PAGE_SIZE];
+        tmp[0] = 1;
+        assert pc.newPage(tmp) == 51;
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 10);
+        assert pc.getPageNumber() == 51;
+        for(int i = 1; i <= 50; i ++) {
+            Page pg = pc.getPage(i);
+            assert Arrays.equals(expect[i], pg.getData());
+            pg.release();
+        }
+        Page pg = pc.getPage(51);
+        assert Arrays.equals(tmp, pg.getData());
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_compress_test.db").delete();
+        assert new File("/tmp/pcacher_compress_test" + PageMap.MAP_SUFFIX).delete();
+    }
+
+    @Test
+    public void testBufferPool() throws Exception {
+        new File("/tmp/pcacher_pool_test.db").delete();
+        PageCache pc = PageCache.create("/tmp/pcacher_pool_test", PageCache.PAGE_SIZE * 10);
+        pc.close();
+        // 堆外缓冲池只放得下 20 页，访问 60 页时会不断淘汰
+        pc = PageCache.open("/tmp/pcacher_pool_test", PageCache.PAGE_SIZE * 10, PageCache.PAGE_SIZE * 20);
+        MockPageCache mpc = new MockPageCache();
+        for(int i = 0; i < 60; i ++) {
+            byte[] data = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+            Arrays.fill(data, 0, 8, (byte) 0);              // 第一页开头记录的是页面大小和格式标志
+            assert pc.newPage(data) == mpc.newPage(data);
+        }
+        for(int i = 0; i < 3000; i ++) {
+            int pgno = Math.abs(random.nextInt()) % 60 + 1;
+            Page pg = pc.getPage(pgno);
+            Page mpg = mpc.getPage(pgno);
+            assert Arrays.equals(mpg.getData(), pg.getData());
+            if(i % 3 == 0) {
+                byte[] patch = RandomUtil.randomBytes(16);
+                int pos = Math.abs(random.nextInt()) % (PageCache.PAGE_SIZE - 24) + 8;
+                System.arraycopy(patch, 0, pg.getData(), pos, 16);
+                System.arraycopy(patch, 0, mpg.getData(), pos, 16);
+                pg.setDirty(true);
+            }
+            if(i % 500 == 0) {
+                pc.flushAll();
+            }
+            pg.release();
+        }
+        pc.close();
+
+        // 不开缓冲池重新打开，磁盘上的内容和缓冲池中的一致
+        pc = PageCache.open("/tmp/pcacher_pool_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 60; i ++) {
+            Page pg = pc.getPage(i);
+            assert Arrays.equals(mpc.getPage(i).getData(), pg.getData());
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_pool_test.db").delete();
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        new File("/tmp/pcacher_readahead_test.db").delete();
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 200; i ++) {
+            byte[] data = new byte[PageCache.PAGE_SIZE];
+            data[PageCache.PAGE_SIZE - 1] = (byte) i;
+            pc.newPage(data);
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 10);
+        // 先拿住第 40 页并修改，之后的顺序扫描会把它的旧内容预读进窗口
+        Page held = pc.getPage(40);
+        held.getData()[4] = 1;
+        held.setDirty(true);
+        for(int i = 37; i <= 39; i ++) {
+            pc.getPage(i).release();
+        }
+        held.release();                         // 写回时让窗口中的旧内容失效
+        Page pg = pc.getPage(40);
+        assert pg.getData()[4] == 1;
+        pg.release();
+
+        for(int i = 1; i <= 200; i ++) {
+            pg = pc.getPage(i);
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) i;
+            pg.release();
+        }
+        assert pc.readAheadHits() > 150;
+        assert pc.readAheadHitRate() > 0.8;
+        pc.close();
+        assert new File("/tmp/pcacher_readahead_test.db").delete();
+    }
+
+    @Test
+    public void testConcurrentIO() throws Exception {
+        testConcurrentIO("/tmp/pcacher_concurrent_test", false);
+        testConcurrentIO("/tmp/pcacher_concurrent_ctest", true);
+    }
+
+    // 多个线程同时读写各自的页面，另一个线程不断做检查点式的刷盘，最后磁盘上的内容必须是每页最后一次修改的结果
+    private void testConcurrentIO(String path, boolean compress) throws Exception {
+        new File(path + ".db").delete();
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 40, compress);
+        int threads = 8, pagesPerThread = 8;
+        byte[][] expect = new byte[threads * pagesPerThread + 1][];
+        for(int i = 1; i <= threads * pagesPerThread; i ++) {
+            expect[i] = new byte[PageCache.PAGE_SIZE];
+            pc.newPage(expect[i]);
+        }
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            int base = t * pagesPerThread;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < 300; i ++) {
+                        int pgno = base + Math.abs(random.nextInt()) % pagesPerThread + 1;
+                        Page pg = pc.getPage(pgno);
+                        assert Arrays.equals(expect[pgno], pg.getData());
+                        int pos = Math.abs(random.nextInt()) % (PageCache.PAGE_SIZE - 8) + 8;
+                        pg.getData()[pos] ++;
+                        expect[pgno][pos] ++;
+                        pg.setDirty(true);
+                        pg.release();
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        while(done.getCount() > 0) {
+            pc.flushAll();
+        }
+        done.await();
+        pc.close();
+
+        PageCache pc2 = PageCache.open(path, PageCache.PAGE_SIZE * 40);
+        for(int i = 1; i <= threads * pagesPerThread; i ++) {
+            Page pg = pc2.getPage(i);
+            assert Arrays.equals(expect[i], pg.getData());
+            pg.release();
+        }
+        pc2.close();
+        assert new File(path + ".db").delete();
+        new File(path + PageMap.MAP_SUFFIX).delete();
+    }
+
+    @Test
+    public void testExtentAllocation() throws Exception {
+        String path = "/tmp/pcacher_extent_test";
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        f.delete();
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 300; i ++) {
+            byte[] data = new byte[PageCache.PAGE_SIZE];
+            data[PageCache.PAGE_SIZE - 1] = (byte) i;
+            assert pc.newPage(data) == i;
+        }
+        // 文件按段扩展，比实际用到的页数长
+        assert f.length() > 300L * PageCache.PAGE_SIZE && f.length() % PageCache.PAGE_SIZE == 0;
+        pc.close();
+        // 正常关闭时截掉没用上的部分
+        assert f.length() == 300L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 10);
+        assert pc.getPageNumber() == 300;
+        for(int i = 1; i <= 300; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte) i;
+            pg.release();
+        }
+        // 截断后重新扩展
+        pc.truncateByBgno(10);
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 11;
+        pc.close();
+        assert f.length() == 11L * PageCache.PAGE_SIZE;
+        assert f.delete();
+    }
+
+    @Test
+    public void testFlushAllWithEviction() throws Exception {
+        String path = "/tmp/pcacher_flush_evict_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 10, PageCache.PAGE_SIZE, false, true);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread checkpointer = new Thread(() -> {
+            while(!done.get()) {
+                pc.flushAll();
+            }
+        });
+        // 检查点写回前等日志落盘比较慢，拉长拷贝页面和写盘之间的时间
+        pc.setLogFlusher(lsn -> {
+            if(Thread.currentThread() == checkpointer) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        });
+        checkpointer.start();
+        try {
+            for(int i = 1; i <= 2000; i ++) {
+                Page pg = pc.getPage(pgno);
+                // 被驱逐的页面重新从磁盘读入，检查点不能用旧内容覆盖驱逐时写下的新内容
+                assert ByteBuffer.wrap(pg.getData()).getInt(0) == i - 1;
+                pg.lock();
+                ByteBuffer.wrap(pg.getData()).putInt(0, i);
+                pg.setDirty(true);
+                pg.unlock();
+                pg.release();
+            }
+        } finally {
+            done.set(true);
+            checkpointer.join();
+        }
+        pc.close();
+        assert new File(path + PageCacheImpl.DB_SUFFIX).delete();
+    }
+
+    @Test
+    public void testLZCodec() {
+        byte[] out = new byte[PageCache.PAGE_SIZE * 2];
+        byte[] back = new byte[PageCache.PAGE_SIZE];
+        for(int round = 0; round < 200; round ++) {
+            byte[] src = new byte[PageCache.PAGE_SIZE];
+            int runs = random.nextInt(50);
+            for(int r = 0; r < runs; r ++) {
+                int pos = random.nextInt(PageCache.PAGE_SIZE);
+                int len = Math.min(random.nextInt(500), PageCache.PAGE_SIZE - pos);
+                byte[] rnd = RandomUtil.randomBytes(random.nextInt(8) + 1);
+                for(int j = 0; j < len; j ++) {
+                    src[pos + j] = rnd[j % rnd.length];
+                }
+            }
+            int len = LZCodec.compress(src, src.length, out);
+            assert len > 0;
+            assert LZCodec.decompress(out, 0, len, back) == src.length;
+            assert Arrays.equals(src, back);
+        }
+        byte[] rnd = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+        assert LZCodec.compress(rnd, rnd.length, new byte[PageCache.PAGE_SIZE - 1]) == -1;
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
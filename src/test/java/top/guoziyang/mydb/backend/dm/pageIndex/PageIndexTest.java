@@ -1,5 +1,14 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
@@ -23,4 +32,46 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testPageIndexMulti() throws InterruptedException {
+        PageIndex pIndex = new PageIndex();
+        int pages = 1000;
+        for(int i = 1; i <= pages; i ++) {
+            pIndex.add(i, PageCache.PAGE_SIZE / 2);
+        }
+
+        // 多个线程反复取出、放回页面，同一时刻一个页面只能被一个线程持有，最后所有页面都要回到索引中
+        // 断言失败只记下来，由主线程检查，工作线程里抛出的错误不会让测试失败
+        Set<Integer> holding = ConcurrentHashMap.newKeySet();
+        AtomicReference<String> failure = new AtomicReference<>();
+        int workers = 8;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < 10000; i ++) {
+                        PageInfo pi = pIndex.select(100);
+                        if(pi == null) continue;
+                        if(!holding.add(pi.pgno)) {
+                            failure.compareAndSet(null, "page " + pi.pgno + " selected twice");
+                        }
+                        holding.remove(pi.pgno);
+                        pIndex.add(pi.pgno, pi.freeSpace);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t.toString());
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        assertTrue("workers did not finish", cdl.await(60, TimeUnit.SECONDS));
+        assertNull(failure.get());
+
+        for(int i = 1; i <= pages; i ++) {
+            assert pIndex.select(100) != null;
+        }
+        assert pIndex.select(100) == null;
+    }
 }
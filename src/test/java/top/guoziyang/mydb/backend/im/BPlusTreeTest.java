@@ -1,6 +1,5 @@
 package top.guoziyang.mydb.backend.im;
 
-import java.io.File;
 import java.util.List;
 
 import org.junit.Test;
@@ -9,6 +8,7 @@ import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.TestFiles;
 
 public class BPlusTreeTest {
     @Test
@@ -30,7 +30,12 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
-        assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        int[] seen = new int[lim];
+        tree.scan(uid -> seen[(int) uid]++);
+        for(int i = 0; i < lim; i ++) {
+            assert seen[i] == 1;
+        }
+
+        TestFiles.removeAll("/tmp/TestTreeSingle");
     }
 }
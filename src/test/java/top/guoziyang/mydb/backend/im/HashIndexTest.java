@@ -0,0 +1,129 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.TestFiles;
+
+public class HashIndexTest {
+    @Test
+    public void testHashIndexSingle() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexSingle", PageCache.PAGE_SIZE*10, tm);
+
+        long dir = HashIndex.create(dm);
+        HashIndex index = HashIndex.load(dir, dm);
+
+        int lim = 20000;
+        for(int i = lim-1; i >= 0; i --) {
+            index.insert(i, i);
+        }
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = index.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+
+        List<Long> uids = index.searchRange(100, 199);
+        assert uids.size() == 100;
+
+        int[] seen = new int[lim];
+        index.scan(uid -> seen[(int) uid]++);
+        for(int i = 0; i < lim; i ++) {
+            assert seen[i] == 1;
+        }
+
+        TestFiles.removeAll("/tmp/TestHashIndexSingle");
+    }
+
+    @Test
+    public void testHashIndexLarge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexLarge", PageCache.PAGE_SIZE*1000, tm);
+
+        long dir = HashIndex.create(dm);
+        HashIndex index = HashIndex.load(dir, dm);
+
+        // 目录可以扩容到几百个桶以上，不同的 key 不应该落进溢出链
+        int lim = 120000;
+        for(int i = 0; i < lim; i ++) {
+            index.insert(i, i);
+        }
+        assert (1 << index.globalDepth()) * Bucket.BUCKET_CAPACITY > lim;
+        for(int i = 0; i < lim; i ++) {
+            assert index.chainLength(i) == 1;
+            List<Long> uids = index.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+        index.close();
+        dm.close();
+
+        // 重新打开后目录段仍然完整
+        dm = DataManager.open("/tmp/TestHashIndexLarge", PageCache.PAGE_SIZE*1000, tm);
+        index = HashIndex.load(dir, dm);
+        for(int i = 0; i < lim; i += 97) {
+            assert index.search(i).get(0) == i;
+        }
+        index.close();
+        dm.close();
+
+        TestFiles.removeAll("/tmp/TestHashIndexLarge");
+    }
+
+    @Test
+    public void testHashIndexDuplicated() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexDup", PageCache.PAGE_SIZE*10, tm);
+
+        long dir = HashIndex.create(dm);
+        HashIndex index = HashIndex.load(dir, dm);
+
+        int lim = 1000;
+        for(int i = 1; i <= lim; i ++) {
+            index.insert(2333, i);
+            index.insert(i, i);
+        }
+
+        assert index.search(2333).size() == lim;
+        assert index.search(1).size() == 1;
+
+        TestFiles.removeAll("/tmp/TestHashIndexDup");
+    }
+
+    @Test
+    public void testHashIndexSameKey() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndexSameKey", PageCache.PAGE_SIZE*10, tm);
+
+        long dir = HashIndex.create(dm);
+        HashIndex index = HashIndex.load(dir, dm);
+
+        // 重复 key 分不开，应该直接进溢出链，而不是一路把目录扩容到最大深度
+        int lim = 200;
+        for(int i = 1; i <= lim; i ++) {
+            index.insert(42, i);
+        }
+        assert index.globalDepth() == 0;
+        assert index.chainLength(42) == (lim + Bucket.BUCKET_CAPACITY - 1) / Bucket.BUCKET_CAPACITY;
+
+        boolean[] seen = new boolean[lim + 1];
+        for(long uid : index.search(42)) {
+            assert !seen[(int) uid];
+            seen[(int) uid] = true;
+        }
+        for(int i = 1; i <= lim; i ++) {
+            assert seen[i];
+        }
+        index.close();
+        dm.close();
+
+        TestFiles.removeAll("/tmp/TestHashIndexSameKey");
+    }
+}
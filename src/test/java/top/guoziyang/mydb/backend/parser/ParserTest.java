@@ -11,6 +11,7 @@ import top.guoziyang.mydb.backend.parser.statement.Create;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.Set;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 
@@ -29,6 +30,16 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateHash() throws Exception {
+        String stat = "create table student id int32, name string, (index name) (hash id)";
+        Object res = Parser.Parse(stat.getBytes());
+        Create create = (Create)res;
+        assert "student".equals(create.tableName);
+        assert Arrays.equals(new String[]{"name"}, create.index);
+        assert Arrays.equals(new String[]{"id"}, create.hashIndex);
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -41,12 +52,38 @@ public class ParserTest {
         begin = (Begin)res;
         assert !begin.isRepeatableRead;
 
+        stat = "begin read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert !begin.isRepeatableRead;
+        assert begin.isReadOnly;
+
+        stat = "begin isolation level repeatable read read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isRepeatableRead;
+        assert begin.isReadOnly;
+
         stat = "begin isolation level repeatable read";
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
     }
 
+    @Test
+    public void testSet() throws Exception {
+        String stat = "set synchronous_commit = off";
+        Object res = Parser.Parse(stat.getBytes());
+        Set set = (Set)res;
+        assert "synchronous_commit".equals(set.name);
+        assert "off".equals(set.value);
+
+        try {
+            Parser.Parse("set synchronous_commit off".getBytes());
+            assert false;
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testRead() throws Exception {
         String stat = "select name, id, strudeng from student where id > 1 and id < 4";
@@ -80,6 +117,17 @@ public class ParserTest {
         System.out.println("Delete");
         System.out.println(gson.toJson(delete));
         System.out.println("======================");
+        assert !delete.noWait && !delete.skipLocked;
+
+        delete = (Delete)Parser.Parse("delete from jobs where id > 5 and id < 10 skip locked".getBytes());
+        assert delete.skipLocked && !delete.noWait;
+        assert "and".equals(delete.where.logicOp);
+        delete = (Delete)Parser.Parse("delete from jobs where id = 5 nowait".getBytes());
+        assert delete.noWait;
+        try {
+            Parser.Parse("delete from jobs where id = 5 skip".getBytes());
+            assert false;
+        } catch (Exception e) {}
     }
 
     @Test
@@ -102,5 +150,10 @@ public class ParserTest {
         System.out.println("Update");
         System.out.println(gson.toJson(update));
         System.out.println("======================");
+
+        update = (Update)Parser.Parse("update jobs set state = 1 nowait".getBytes());
+        assert update.where == null && update.noWait;
+        update = (Update)Parser.Parse("update jobs set state = 1 where id = 5 skip locked".getBytes());
+        assert update.where != null && update.skipLocked;
     }
 }
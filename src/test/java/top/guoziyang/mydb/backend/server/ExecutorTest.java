@@ -1,14 +1,20 @@
 package top.guoziyang.mydb.backend.server;
 
-import java.io.File;
 import java.util.concurrent.CountDownLatch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.TestFiles;
 import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.Error;
 
 public class ExecutorTest {
     String path = "/tmp/mydb";
@@ -38,10 +44,7 @@ public class ExecutorTest {
     public void testInsert10000() throws Exception {
         Executor exe = testCreate();
         testInsert(exe, 10000, 1);
-        new File(path + ".db").delete();
-        new File(path + ".bt").delete();
-        new File(path + ".log").delete();
-        new File(path + ".xid").delete();
+        TestFiles.removeAll(path);
     }
 
     private void testMultiInsert(int total, int noWorkers) throws Exception {
@@ -70,9 +73,255 @@ public class ExecutorTest {
     @Test
     public void test100000With4() throws Exception {
         testMultiInsert(10000, 4);
-        new File(path + ".db").delete();
-        new File(path + ".bt").delete();
-        new File(path + ".log").delete();
-        new File(path + ".xid").delete();
+        TestFiles.removeAll(path);
+    }
+
+    private int rows(byte[] res) {
+        return new String(res).split("\n", -1).length - 1;
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor writer = new Executor(tbm);
+        Executor reader = new Executor(tbm);
+        writer.execute(CREATE_TABLE);
+        writer.execute(INSERT);
+
+        byte[] SELECT = "select * from test_table where id = 2333".getBytes();
+        long next = tm.nextXid();
+        assertEquals(1, rows(reader.execute(SELECT)));
+        assertEquals(next, tm.nextXid());           // 单独的查询不分配XID
+
+        reader.execute("begin isolation level repeatable read read only".getBytes());
+        assertThrows(Error.ReadOnlyTransactionException.getClass(), () -> reader.execute(INSERT));
+        writer.execute(INSERT);
+        assertEquals(1, rows(reader.execute(SELECT)));  // 快照之后提交的插入不可见
+        reader.execute("commit".getBytes());
+        assertEquals(next + 1, tm.nextXid());
+        assertEquals(2, rows(reader.execute(SELECT)));
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        Executor old = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute(INSERT);
+        exe.execute(INSERT);
+        exe.execute("begin".getBytes());
+        exe.execute(INSERT);
+        exe.execute("abort".getBytes());                        // 回滚的插入，冻结时置为无效
+        exe.execute("begin".getBytes());
+        exe.execute("delete from test_table where id = 2333".getBytes());
+        exe.execute("abort".getBytes());                        // 回滚的删除，冻结时清掉 XMAX
+        byte[] SELECT = "select * from test_table where id = 2333".getBytes();
+
+        old.execute("begin isolation level repeatable read".getBytes());
+        assertEquals(2, rows(old.execute(SELECT)));
+        exe.execute(INSERT);
+        assertTrue(tbm.freeze());                               // 水位线停在可重复读事务的快照上
+        long frozen = tm.frozenXid();
+        assertTrue(frozen > 0);
+        assertEquals(2, rows(old.execute(SELECT)));             // 快照之后提交的插入没有被冻结，仍然不可见
+        assertFalse(tbm.freeze());
+        old.execute("commit".getBytes());
+
+        assertTrue(tbm.freeze());
+        assertTrue(tm.frozenXid() > frozen);
+        frozen = tm.frozenXid();
+        assertEquals(3, rows(exe.execute(SELECT)));
+        exe.execute(INSERT);
+        tm.close();
+        dm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        exe = new Executor(tbm);
+        assertEquals(frozen, tm.frozenXid());
+        assertEquals(4, rows(exe.execute(SELECT)));
+        exe.execute("delete from test_table where id = 2333".getBytes());
+        assertEquals(0, rows(exe.execute(SELECT)));
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testAsyncCommitFlushedOnClose() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute("set synchronous_commit = off".getBytes());
+        for (int i = 0; i < 10; i++) {
+            exe.execute(INSERT);
+        }
+        // 关闭时停下 flusher，并把还没落盘的异步提交落盘
+        tbm.close();
+        assertEquals(0, tm.pendingCommits().length);
+        tm.close();
+        dm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        exe = new Executor(tbm);
+        assertEquals(10, rows(exe.execute("select * from test_table where id = 2333".getBytes())));
+        tbm.close();
+        tm.close();
+        dm.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLockWait() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor a = new Executor(tbm);
+        Executor b = new Executor(tbm);
+        a.execute(CREATE_TABLE);
+        for (int i = 1; i <= 3; i++) {
+            a.execute(("insert into test_table values " + i).getBytes());
+        }
+        byte[] SELECT_ALL = "select * from test_table".getBytes();
+
+        a.execute("begin".getBytes());
+        assertEquals("update 1", new String(a.execute("update test_table set id = 11 where id = 1".getBytes())));
+
+        // 跳过 a 锁住的行
+        b.execute("begin".getBytes());
+        assertEquals("delete 2", new String(b.execute("delete from test_table where id > 0 skip locked".getBytes())));
+        b.execute("abort".getBytes());
+        assertEquals("update 2", new String(b.execute("update test_table set id = 5 where id > 0 and id < 10 skip locked".getBytes())));
+
+        // nowait 和等锁超时都会回滚事务
+        b.execute("begin".getBytes());
+        assertThrows(Error.LockNotAvailableException.getClass(), () -> b.execute("delete from test_table where id = 1 nowait".getBytes()));
+        b.execute("abort".getBytes());
+        b.execute("set lock_timeout = 20".getBytes());
+        long start = System.currentTimeMillis();
+        assertThrows(Error.LockNotAvailableException.getClass(), () -> b.execute("delete from test_table where id = 1".getBytes()));
+        assertTrue(System.currentTimeMillis() - start >= 20);
+
+        a.execute("commit".getBytes());
+        assertEquals("delete 1", new String(b.execute("delete from test_table where id = 11 nowait".getBytes())));
+        assertEquals(2, rows(b.execute(SELECT_ALL)));
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testAutoAbortLeavesHorizon() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor a = new Executor(tbm);
+        Executor b = new Executor(tbm);
+        a.execute(CREATE_TABLE);
+        a.execute("insert into test_table values 1".getBytes());
+
+        a.execute("begin".getBytes());
+        a.execute("update test_table set id = 11 where id = 1".getBytes());
+        long xa = vm.freezeHorizon();
+
+        // b 因为拿不到锁被自动回滚，客户端一直不回滚，也不应该挡住冻结水位线
+        b.execute("begin isolation level repeatable read".getBytes());
+        assertThrows(Error.LockNotAvailableException.getClass(), () -> b.execute("delete from test_table where id = 1 nowait".getBytes()));
+        a.execute("commit".getBytes());
+        assertTrue(vm.freezeHorizon() > xa + 1);
+
+        b.execute("abort".getBytes());
+        tbm.close();
+        tm.close();
+        dm.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testLockEscalation() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor a = new Executor(tbm);
+        Executor b = new Executor(tbm);
+        a.execute(CREATE_TABLE);
+        a.execute("set synchronous_commit = off".getBytes());
+        a.execute("begin".getBytes());
+        for (int i = 1; i <= 1100; i++) {       // 超过锁升级的行数
+            a.execute(("insert into test_table values " + i).getBytes());
+        }
+        a.execute("commit".getBytes());
+
+        // 升级为表锁后别的事务不能在表中加行锁
+        a.execute("begin".getBytes());
+        assertEquals("delete 1100", new String(a.execute("delete from test_table where id > 0".getBytes())));
+        b.execute("begin".getBytes());
+        assertThrows(Error.LockNotAvailableException.getClass(), () -> b.execute("delete from test_table where id = 5 nowait".getBytes()));
+        b.execute("abort".getBytes());
+        a.execute("abort".getBytes());
+        assertEquals(1100, rows(b.execute("select * from test_table".getBytes())));
+
+        // 别的事务持有行锁时不升级，逐行加锁
+        b.execute("begin".getBytes());
+        assertEquals("delete 1", new String(b.execute("delete from test_table where id = 5".getBytes())));
+        a.execute("begin".getBytes());
+        assertEquals("delete 1099", new String(a.execute("delete from test_table where id > 0 skip locked".getBytes())));
+        a.execute("abort".getBytes());
+        b.execute("abort".getBytes());
+
+        // 升级后的批量更新
+        assertEquals("update 1100", new String(a.execute("update test_table set id = 7 where id < 10000".getBytes())));
+        assertEquals(0, rows(b.execute("select * from test_table where id > 7".getBytes())));
+        assertEquals(0, rows(b.execute("select * from test_table where id < 7".getBytes())));
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testAsyncCommit() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute("set synchronous_commit = off".getBytes());
+        exe.execute(INSERT);
+        exe.execute("begin".getBytes());
+        exe.execute(INSERT);
+        exe.execute("commit".getBytes());
+        assertEquals(2, rows(exe.execute("select * from test_table where id = 2333".getBytes())));
+        assertThrows(Error.InvalidCommandException.getClass(), () -> exe.execute("set synchronous_commit = maybe".getBytes()));
+
+        for (int i = 0; i < 100 && tm.pendingCommits().length > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, tm.pendingCommits().length);  // 后台线程已经把异步提交落盘
+
+        exe.execute("set synchronous_commit = on".getBytes());
+        exe.execute(INSERT);
+        assertEquals(0, tm.pendingCommits().length);
+
+        TestFiles.removeAll(path);
     }
 }
@@ -0,0 +1,91 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.parser.Parser;
+import top.guoziyang.mydb.backend.parser.statement.Begin;
+import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.TestFiles;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+public class TableManagerTest {
+    String path = "/tmp/TestTableManager";
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testFreezeEveryIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManagerImpl tbm = (TableManagerImpl) TableManager.create(path, vm, dm);
+
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create) Parser.Parse("create table t a int32, b int32 (index b) (hash a)".getBytes()));
+        tbm.commit(xid);
+        Table tb = tbm.tableCache.get("t");
+        Field a = tb.fields.get(0), b = tb.fields.get(1);
+
+        // 插入写完哈希索引 a 之后回滚，B+ 树索引 b 中没有这个版本
+        xid = tbm.begin(new Begin()).xid;
+        long uid = vm.insert(xid, Bytes.concat(a.value2Raw(1), b.value2Raw(7)));
+        a.insert(1, uid);
+        tbm.abort(xid);
+
+        xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 2 8".getBytes()));
+        tbm.commit(xid);
+
+        assertTrue(tbm.freeze());
+        xid = tbm.begin(new Begin()).xid;
+        assertEquals(0, rows(tbm.read(xid, (Select) Parser.Parse("select * from t where a = 1".getBytes()))));
+        assertEquals(1, rows(tbm.read(xid, (Select) Parser.Parse("select * from t where a = 2".getBytes()))));
+        tbm.commit(xid);
+        tbm.close();
+        tm.close();
+        dm.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    @Test
+    public void testFreezeTableWithoutIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+
+        // 没有索引的表读不到数据版本，不应该妨碍丢弃事务状态
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create) Parser.Parse("create table u a int32 (index)".getBytes()));
+        tbm.create(xid, (Create) Parser.Parse("create table t a int32 (index a)".getBytes()));
+        tbm.commit(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into u values 1".getBytes()));
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 2".getBytes()));
+        tbm.commit(xid);
+
+        assertTrue(tbm.freeze());
+        assertEquals(xid, vm.frozenXid());
+        xid = tbm.begin(new Begin()).xid;
+        assertEquals(1, rows(tbm.read(xid, (Select) Parser.Parse("select * from t where a = 2".getBytes()))));
+        tbm.commit(xid);
+        tbm.close();
+        tm.close();
+        dm.close();
+
+        TestFiles.removeAll(path);
+    }
+
+    private int rows(byte[] res) {
+        return new String(res).split("\n", -1).length - 1;
+    }
+}
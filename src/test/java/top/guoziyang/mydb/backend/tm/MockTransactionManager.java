@@ -7,9 +7,33 @@ public class MockTransactionManager implements TransactionManager {
         return 0;
     }
 
+    @Override
+    public long nextXid() {
+        return 1;
+    }
+
     @Override
     public void commit(long xid) {}
 
+    @Override
+    public void commitAsync(long xid) {}
+
+    @Override
+    public void freeze(long xid) {}
+
+    @Override
+    public long frozenXid() {
+        return 0;
+    }
+
+    @Override
+    public long[] pendingCommits() {
+        return new long[0];
+    }
+
+    @Override
+    public void persistCommits(long[] xids) {}
+
     @Override
     public void abort(long xid) {}
 
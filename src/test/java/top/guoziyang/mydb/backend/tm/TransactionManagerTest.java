@@ -1,10 +1,12 @@
 package top.guoziyang.mydb.backend.tm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,6 +41,146 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testAsyncCommit() {
+        String path = "/tmp/tranmger_test_async";
+        TransactionManager tmger = TransactionManager.create(path);
+        long x1 = tmger.begin();
+        long x2 = tmger.begin();
+        tmger.commitAsync(x1);
+        tmger.commitAsync(x2);
+        assert tmger.isCommitted(x1) && !tmger.isActive(x1);
+        long[] pending = tmger.pendingCommits();
+        assert pending.length == 2;
+        tmger.persistCommits(new long[] {x1});
+        assert tmger.pendingCommits().length == 1;
+        tmger.close();
+
+        // 没有持久化的异步提交，重新打开后仍是活跃的，会在恢复时回滚
+        tmger = TransactionManager.open(path);
+        assert tmger.isCommitted(x1);
+        assert tmger.isActive(x2);
+        assert tmger.pendingCommits().length == 0;
+        tmger.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        String path = "/tmp/tranmger_test_prealloc";
+        File f = new File(path + ".xid");
+        TransactionManager tmger = TransactionManager.create(path);
+        long first = tmger.begin();
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + TransactionManagerImpl.XID_CHUNK;
+        tmger.commit(first);
+        for (int i = 1; i < TransactionManagerImpl.XID_CHUNK; i++) {
+            tmger.begin();
+        }
+        long last = tmger.begin();                  // 第二个区间
+        assert last == TransactionManagerImpl.XID_CHUNK + 1;
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 2L * TransactionManagerImpl.XID_CHUNK;
+        tmger.abort(last);
+        tmger.close();
+
+        // 扩展了文件但没来得及写文件头就崩溃，多出来的区间在打开时截掉
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(f.length() + TransactionManagerImpl.XID_CHUNK);
+        }
+        tmger = TransactionManager.open(path);
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 2L * TransactionManagerImpl.XID_CHUNK;
+        assert tmger.isCommitted(first);
+        assert tmger.isAborted(last);
+        assert tmger.nextXid() == 2L * TransactionManagerImpl.XID_CHUNK + 1;  // 不重用崩溃前可能分配过的XID
+        tmger.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testFreeze() {
+        String path = "/tmp/tranmger_test_freeze";
+        File f = new File(path + ".xid");
+        TransactionManager tmger = TransactionManager.create(path);
+        long[] xids = new long[10];
+        for (int i = 0; i < xids.length; i++) {
+            xids[i] = tmger.begin();
+        }
+        tmger.abort(xids[2]);
+        tmger.commit(xids[7]);
+        tmger.abort(xids[8]);
+        tmger.freeze(xids[5]);
+        assert tmger.frozenXid() == xids[5];
+        assert tmger.isCommitted(xids[2]) && !tmger.isAborted(xids[2]);    // 冻结的事务都视为已提交
+        assert tmger.isCommitted(xids[7]);
+        assert tmger.isAborted(xids[8]);
+        assert tmger.isActive(xids[9]);
+        assert f.length() == TransactionManagerImpl.LEN_FROZEN_HEADER_LENGTH + TransactionManagerImpl.XID_CHUNK - xids[5];
+        tmger.commit(xids[9]);
+        tmger.close();
+
+        tmger = TransactionManager.open(path);
+        assert tmger.frozenXid() == xids[5];
+        assert tmger.isCommitted(xids[7]) && tmger.isAborted(xids[8]) && tmger.isCommitted(xids[9]);
+        long next = tmger.nextXid();
+        for (long xid = next; xid <= TransactionManagerImpl.XID_CHUNK + next; xid++) {
+            assert tmger.begin() == xid;             // 冻结之后的文件照常预分配
+        }
+        tmger.abort(next);
+        tmger.freeze(next - 1);
+        assert tmger.isAborted(next);
+        tmger.close();
+
+        tmger = TransactionManager.open(path);
+        assert tmger.frozenXid() == next - 1;
+        assert tmger.isAborted(next);
+        tmger.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testFreezeConcurrent() throws Exception {
+        String path = "/tmp/tranmger_test_freeze_concurrent";
+        TransactionManager tmger = TransactionManager.create(path);
+        int total = 3 * TransactionManagerImpl.XID_CHUNK;
+        for (int i = 0; i < total / 2; i++) {
+            tmger.begin();
+        }
+        // 按XID从小到大结束事务，同时开启新事务跨过预分配的区间，主线程不断冻结已经结束的部分
+        AtomicLong finished = new AtomicLong();
+        Thread t = new Thread(() -> {
+            for (long xid = 1; xid <= total; xid++) {
+                if(xid <= total / 2) {
+                    tmger.begin();
+                }
+                if(xid % 2 == 0) {
+                    tmger.commit(xid);
+                } else {
+                    tmger.abort(xid);
+                }
+                finished.set(xid);
+            }
+        });
+        t.start();
+        while(t.isAlive()) {
+            tmger.freeze(finished.get() / 2);
+        }
+        t.join();
+
+        long frozen = tmger.frozenXid();
+        assert frozen > 0;
+        for (long xid = 1; xid <= total; xid++) {
+            assert xid <= frozen || xid % 2 == 0 ? tmger.isCommitted(xid) : tmger.isAborted(xid);
+        }
+        tmger.close();
+
+        TransactionManager reopened = TransactionManager.open(path);
+        assert reopened.frozenXid() == frozen;
+        for (long xid = frozen + 1; xid <= total; xid++) {
+            assert xid % 2 == 0 ? reopened.isCommitted(xid) : reopened.isAborted(xid);
+        }
+        reopened.close();
+        assert new File(path + ".xid").delete();
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;
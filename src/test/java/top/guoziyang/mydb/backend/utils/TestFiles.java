@@ -0,0 +1,20 @@
+package top.guoziyang.mydb.backend.utils;
+
+import java.io.File;
+
+public class TestFiles {
+    /**
+     * 删除数据库路径 path 派生出的所有文件：.db .xid .fsm .bt .pmap，日志清单 .log 和各个日志段 .log.NNNNNNNNNN
+     */
+    public static void removeAll(String path) {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if(files == null) {
+            return;
+        }
+        for (File f : files) {
+            f.delete();
+        }
+    }
+}
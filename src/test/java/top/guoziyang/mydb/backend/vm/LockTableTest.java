@@ -1,12 +1,25 @@
 package top.guoziyang.mydb.backend.vm;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
-import java.util.concurrent.locks.Lock;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
 
 public class LockTableTest {
 
@@ -39,14 +52,7 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assertNull(lt.add(i, i));
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -54,14 +60,7 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                assertNotNull(lt.add(i, i+1));
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -76,4 +75,191 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testWaitAndGrant() throws Exception {
+        LockTable lt = new LockTable();
+        assertNull(lt.add(1, 1));
+        assertNull(lt.add(1, 1));
+        CountDownLatch w2 = lt.add(2, 1);
+        CountDownLatch w3 = lt.add(3, 1);
+        assertNotNull(w2);
+        assertNotNull(w3);
+
+        lt.remove(1);
+        assertTrue(w2.await(1, TimeUnit.SECONDS));
+        assertEquals(1, w3.getCount());
+
+        // 3 等待 2 持有的 1，2 再等待 3 持有的资源就是死锁
+        assertNull(lt.add(3, 2));
+        assertThrows(RuntimeException.class, ()->lt.add(2, 2));
+        lt.remove(2);
+        assertTrue(w3.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTryAddAndCancelWait() throws Exception {
+        LockTable lt = new LockTable();
+        assertTrue(lt.tryAdd(1, 1));
+        assertTrue(lt.tryAdd(1, 1));
+        assertFalse(lt.tryAdd(2, 1));               // 不进入等待队列
+
+        CountDownLatch w2 = lt.add(2, 1);
+        CountDownLatch w3 = lt.add(3, 1);
+        assertFalse(w2.await(10, TimeUnit.MILLISECONDS));
+        assertTrue(lt.cancelWait(2));               // 超时放弃，锁直接交给 3
+        lt.remove(1);
+        assertTrue(w3.await(1, TimeUnit.SECONDS));
+        assertEquals(1, w2.getCount());
+        assertFalse(lt.cancelWait(3));              // 已经拿到锁
+
+        lt.remove(2);
+        lt.remove(3);
+        assertTrue(lt.tryAdd(2, 1));
+    }
+
+    @Test
+    public void testEscalate() throws Exception {
+        LockTable lt = new LockTable();
+        long table = 100;
+        assertNull(lt.intend(1, table));
+        assertTrue(lt.tryAdd(1, 1));
+        assertFalse(lt.escalate(2, table));         // 1 在表中加了行锁
+        assertTrue(lt.escalate(1, table));          // 只有自己的意向时可以升级
+        assertTrue(lt.holdsTable(1, table));
+
+        // 表锁释放后等待者全部唤醒，重新登记意向
+        CountDownLatch w2 = lt.intend(2, table);
+        CountDownLatch w3 = lt.intend(3, table);
+        assertNotNull(w2);
+        assertFalse(w2.await(10, TimeUnit.MILLISECONDS));
+        lt.remove(1);
+        assertTrue(w2.await(1, TimeUnit.SECONDS));
+        assertTrue(w3.await(1, TimeUnit.SECONDS));
+        assertNull(lt.intend(2, table));
+        assertNull(lt.intend(3, table));
+        assertFalse(lt.escalate(2, table));
+        lt.remove(3);
+        assertTrue(lt.escalate(2, table));
+        lt.remove(2);
+
+        // 等表锁和等行锁构成的环同样是死锁
+        assertTrue(lt.escalate(4, table));
+        assertTrue(lt.tryAdd(5, 1));
+        assertNotNull(lt.add(4, 1));
+        assertThrows(RuntimeException.class, () -> lt.intend(5, table));
+        lt.remove(5);
+        assertFalse(lt.holdsTable(5, table));
+    }
+
+    @Test
+    public void testConcurrentDeadLock() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            LockTable lt = new LockTable();
+            assertNull(lt.add(1, 1));
+            assertNull(lt.add(2, 2));
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger deadlocks = new AtomicInteger();
+            Thread[] ts = new Thread[2];
+            for (int i = 0; i < 2; i++) {
+                long xid = i + 1, uid = 2 - i;
+                ts[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        CountDownLatch l = lt.add(xid, uid);
+                        if(l != null) {
+                            l.await();
+                        }
+                    } catch (Exception e) {
+                        deadlocks.incrementAndGet();
+                    }
+                    lt.remove(xid);
+                });
+                ts[i].start();
+            }
+            start.countDown();
+            for (Thread t : ts) {
+                t.join(5000);
+                assertFalse(t.isAlive());
+            }
+            assertEquals(1, deadlocks.get());
+        }
+    }
+
+    /**
+     * 多个线程以事务的方式随机锁住少量热点资源，遇到死锁就回滚
+     * 检查同一资源不会同时被两个事务持有，失败的事务都是因为死锁，结束后所有资源都已释放
+     */
+    @Test
+    public void testContention() throws Exception {
+        final int threads = 16, txPerThread = 2000, hot = 64, locksPerTx = 4;
+        LockTable lt = new LockTable();
+        AtomicLong[] owners = new AtomicLong[hot + 1];
+        for (int i = 1; i <= hot; i++) {
+            owners[i] = new AtomicLong();
+        }
+        AtomicLong nextXid = new AtomicLong();
+        AtomicInteger committed = new AtomicInteger(), aborted = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger(), unexpected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                Random random = new SecureRandom();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < txPerThread; n++) {
+                    long xid = nextXid.incrementAndGet();
+                    List<Integer> held = new ArrayList<>();
+                    try {
+                        for (int k = 0; k < locksPerTx; k++) {
+                            int uid = random.nextInt(hot) + 1;
+                            CountDownLatch l = lt.add(xid, uid);
+                            if(l != null) {
+                                l.await();
+                            }
+                            if(held.contains(uid)) {
+                                continue;
+                            }
+                            if(!owners[uid].compareAndSet(0, xid)) {
+                                violations.incrementAndGet();
+                            }
+                            held.add(uid);
+                        }
+                        committed.incrementAndGet();
+                    } catch (Exception e) {
+                        if(e == Error.DeadlockException) {
+                            aborted.incrementAndGet();
+                        } else {
+                            unexpected.incrementAndGet();
+                        }
+                    }
+                    for (int uid : held) {
+                        owners[uid].compareAndSet(xid, 0);
+                    }
+                    lt.remove(xid);
+                }
+            });
+            ts[i].start();
+        }
+
+        start.countDown();
+        for (Thread t : ts) {
+            t.join(60000);
+            assertFalse(t.isAlive());
+        }
+
+        assertEquals(0, violations.get());
+        assertEquals(0, unexpected.get());
+        assertEquals(threads * txPerThread, committed.get() + aborted.get());
+        assertTrue(committed.get() > 0);
+        long xid = nextXid.incrementAndGet();
+        for (int uid = 1; uid <= hot; uid++) {
+            assertNull(lt.add(xid, uid));
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package top.guoziyang.mydb.backend.vm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SnapshotTest {
+
+    static Random random = new SecureRandom();
+
+    @Test
+    public void testSnapshot() {
+        ActiveXids active = new ActiveXids(0);
+        active.add(3);
+        active.add(5);
+        active.add(9);
+        Snapshot s = active.snapshot(12);
+        assertEquals(3, s.xmin);
+        assertEquals(12, s.xmax);
+        assertEquals(false, s.isActive(2));
+        assertEquals(true, s.isActive(3));
+        assertEquals(false, s.isActive(4));
+        assertEquals(true, s.isActive(9));
+        assertEquals(false, s.isActive(11));
+        assertEquals(true, s.isActive(12));
+        assertEquals(true, s.isActive(100));
+
+        Snapshot readOnly = active.snapshot();         // 不分配XID，截止到最后开始的事务
+        assertEquals(10, readOnly.xmax);
+        assertEquals(true, readOnly.isActive(9));
+        assertEquals(true, readOnly.isActive(10));
+
+        Snapshot empty = new ActiveXids(0).snapshot(7);
+        assertEquals(false, empty.isActive(6));
+        assertEquals(true, empty.isActive(7));
+    }
+
+    /**
+     * 开始和结束事务交替进行，之前的快照共享数组，之后的修改不能影响它们
+     */
+    @Test
+    public void testSharedSnapshots() {
+        ActiveXids active = new ActiveXids(0);
+        TreeSet<Long> expected = new TreeSet<>();
+        List<Snapshot> snapshots = new ArrayList<>();
+        List<TreeSet<Long>> views = new ArrayList<>();
+        long next = 1;
+        for (int i = 0; i < 5000; i++) {
+            if(expected.isEmpty() || random.nextInt(3) != 0) {
+                long xid = next++;
+                if(random.nextBoolean()) {
+                    snapshots.add(active.snapshot(xid));
+                    views.add(new TreeSet<>(expected));
+                }
+                active.add(xid);
+                expected.add(xid);
+            } else {
+                Long[] xids = expected.toArray(new Long[0]);
+                long xid = xids[random.nextInt(xids.length)];
+                active.remove(xid);
+                expected.remove(xid);
+            }
+            assertEquals(expected.size(), active.size());
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            Snapshot s = snapshots.get(i);
+            for (long xid = 1; xid < s.xmax; xid++) {
+                assertEquals(views.get(i).contains(xid), s.isActive(xid));
+            }
+        }
+    }
+}